@@ -0,0 +1,313 @@
+package org.fly.android.localvpn;
+
+import android.net.VpnService;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.fly.android.localvpn.firewall.Connector;
+import org.fly.android.localvpn.firewall.Dns;
+import org.fly.android.localvpn.firewall.Firewall;
+import org.fly.android.localvpn.store.TCB;
+import org.fly.android.localvpn.structs.CacheStats;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * 上游连接竞速
+ *
+ * 客户端 SYN 的目标 IP 连接没有马上完成时, 每隔 raceDelay 再连接同一个域名解析出的其它 IP,
+ * 第一个连上的 channel 绑定到 TCB 上, 其余的关闭. 客户端看到的仍然是原来的 IP.
+ * 所有地址都失败才给客户端回 RST.
+ *
+ * tick 和 select 在 TCPInput 的线程中调用, start 在 TCPOutput 的线程中调用
+ */
+public class ConnectRacer implements Closeable {
+
+    private static final String TAG = ConnectRacer.class.getSimpleName();
+
+    private final Selector selector;
+    private final VpnService vpnService;
+    private final List<Race> races = new ArrayList<>();
+    // hit: 备选地址赢了, miss: 原地址赢了
+    private final CacheStats stats = new CacheStats();
+
+    public ConnectRacer(Selector selector, VpnService vpnService) {
+        this.selector = selector;
+        this.vpnService = vpnService;
+    }
+
+    /**
+     * tcb 的 channel 已经注册 OP_CONNECT, 有备选地址时开始竞速
+     */
+    public void start(TCB tcb, InetSocketAddress destination)
+    {
+        Connector connector = Firewall.getConnector();
+        if (!connector.isRace())
+            return;
+
+        List<InetAddress> siblings = Dns.getSiblings(destination.getAddress());
+        if (siblings.isEmpty())
+            return;
+
+        LinkedList<InetAddress> alternatives = new LinkedList<>(siblings.subList(0, Math.min(siblings.size(), connector.getRaceMax())));
+
+        synchronized (this)
+        {
+            races.add(new Race(tcb, destination.getPort(), alternatives, connector.getRaceDelay()));
+        }
+
+        selector.wakeup();
+    }
+
+    /**
+     * 到下一个备选地址需要连接的毫秒数, 没有返回 0 (select 一直等待)
+     */
+    public synchronized long getTimeout()
+    {
+        long timeout = 0;
+        long now = SystemClock.elapsedRealtime();
+
+        for (Race race: races
+             ) {
+            if (race.alternatives.isEmpty())
+                continue;
+
+            long wait = Math.max(1, race.nextAt - now);
+            timeout = timeout == 0 ? wait : Math.min(timeout, wait);
+        }
+
+        return timeout;
+    }
+
+    /**
+     * 发起到时间的备选连接, 清理 TCB 已经不在等待连接的竞速
+     */
+    public synchronized void tick()
+    {
+        long now = SystemClock.elapsedRealtime();
+        Iterator<Race> it = races.iterator();
+
+        while (it.hasNext())
+        {
+            Race race = it.next();
+
+            if (TCB.getTCB(race.tcb.ipAndPort) != race.tcb || race.tcb.status != TCB.TCBStatus.SYN_SENT)
+            {
+                race.close(null);
+                it.remove();
+                continue;
+            }
+
+            while (!race.alternatives.isEmpty() && race.nextAt <= now)
+            {
+                launch(race, race.alternatives.poll());
+                race.nextAt = now + race.delay;
+            }
+        }
+    }
+
+    private void launch(Race race, InetAddress address)
+    {
+        SocketChannel channel = null;
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            vpnService.protect(channel.socket());
+            channel.connect(new InetSocketAddress(address, race.port));
+
+            Attempt attempt = new Attempt(race, channel);
+            channel.register(selector, SelectionKey.OP_CONNECT, attempt);
+            race.attempts.add(attempt);
+
+            Log.d(TAG, "Race connect: " + race.tcb.ipAndPort + " -> " + address);
+        } catch (IOException e)
+        {
+            Log.d(TAG, "Race connect failed: " + address + ", " + e.getMessage());
+            close(channel);
+        }
+    }
+
+    /**
+     * TCB 原来的 channel 连接成功, 关闭所有备选连接
+     */
+    public synchronized void finish(TCB tcb)
+    {
+        Race race = find(tcb);
+        if (race == null)
+            return;
+
+        stats.miss();
+        race.close(null);
+        races.remove(race);
+    }
+
+    /**
+     * 备选连接成功, 其它连接全部关闭
+     *
+     * @return false 表示已经有别的连接赢了, attempt 已被关闭
+     */
+    public synchronized boolean win(Attempt attempt)
+    {
+        Race race = attempt.race;
+        if (!races.contains(race))
+        {
+            close(attempt.channel);
+            return false;
+        }
+
+        stats.hit();
+        race.close(attempt);
+        races.remove(race);
+        return true;
+    }
+
+    /**
+     * TCB 原来的 channel 连接失败
+     *
+     * @return true 表示还有备选连接, 不要回复 RST
+     */
+    public synchronized boolean fail(TCB tcb)
+    {
+        Race race = find(tcb);
+        if (race == null)
+            return false;
+
+        race.primaryFailed = true;
+        return proceed(race);
+    }
+
+    /**
+     * 备选连接失败
+     *
+     * @return true 表示还有别的连接, 或者竞速已经结束, 不要回复 RST
+     */
+    public synchronized boolean fail(Attempt attempt)
+    {
+        Race race = attempt.race;
+        race.attempts.remove(attempt);
+        close(attempt.channel);
+
+        if (!races.contains(race))
+            return true;
+
+        return proceed(race);
+    }
+
+    private boolean proceed(Race race)
+    {
+        if (!race.primaryFailed || !race.attempts.isEmpty())
+            return true;
+
+        if (!race.alternatives.isEmpty())
+        {
+            // 不用再等, 马上连接下一个
+            race.nextAt = SystemClock.elapsedRealtime();
+            selector.wakeup();
+            return true;
+        }
+
+        races.remove(race);
+        return false;
+    }
+
+    private Race find(TCB tcb)
+    {
+        for (Race race: races
+             ) {
+            if (race.tcb == tcb)
+                return race;
+        }
+        return null;
+    }
+
+    public CacheStats getStats() {
+        return stats;
+    }
+
+    private static void close(SocketChannel channel)
+    {
+        if (channel == null)
+            return;
+
+        try {
+            channel.close();
+        } catch (IOException e)
+        {
+            // Ignore
+        }
+    }
+
+    @Override
+    public synchronized void close()
+    {
+        for (Race race: races
+             ) {
+            race.close(null);
+        }
+        races.clear();
+    }
+
+    private static class Race {
+        final TCB tcb;
+        final int port;
+        final LinkedList<InetAddress> alternatives;
+        final long delay;
+        final List<Attempt> attempts = new ArrayList<>();
+
+        long nextAt;
+        boolean primaryFailed = false;
+
+        Race(TCB tcb, int port, LinkedList<InetAddress> alternatives, long delay) {
+            this.tcb = tcb;
+            this.port = port;
+            this.alternatives = alternatives;
+            this.delay = delay;
+            this.nextAt = SystemClock.elapsedRealtime() + delay;
+        }
+
+        /**
+         * 关闭 winner 之外的所有备选连接
+         */
+        void close(Attempt winner)
+        {
+            for (Attempt attempt: attempts
+                 ) {
+                if (attempt != winner)
+                    ConnectRacer.close(attempt.channel);
+            }
+            attempts.clear();
+            alternatives.clear();
+        }
+    }
+
+    /**
+     * 一个备选连接, 作为 SelectionKey 的 attachment
+     */
+    public static class Attempt {
+        private final Race race;
+        private final SocketChannel channel;
+
+        Attempt(Race race, SocketChannel channel) {
+            this.race = race;
+            this.channel = channel;
+        }
+
+        public TCB getTcb() {
+            return race.tcb;
+        }
+
+        public SocketChannel getChannel() {
+            return channel;
+        }
+    }
+}
@@ -0,0 +1,592 @@
+package org.fly.android.localvpn;
+
+import android.net.VpnService;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.fly.android.localvpn.firewall.Dns;
+import org.fly.android.localvpn.firewall.Firewall;
+import org.fly.android.localvpn.firewall.Resolver;
+import org.fly.android.localvpn.store.UDB;
+import org.fly.android.localvpn.structs.BufferUtils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 所有发往 53 端口的 DNS 查询复用少量长期存在的上游 socket
+ *
+ * 发出时把客户端的事务 ID 换成随机的上游 ID, 回复到达时按 (socket, 上游 ID) 找回客户端的 UDB 并还原 ID.
+ * socket 只在启动时 protect 和注册一次, 查询路径上不再创建 DatagramChannel
+ *
+ * {@link Resolver} 配置为 parallel/staggered 时, 查询同时 (或按延迟从低到高错开) 发给所有上游,
+ * 取第一个有效的回复, 并记录每个上游的延迟 EWMA
+ */
+public class DnsForwarder implements Closeable {
+
+    private static final String TAG = DnsForwarder.class.getSimpleName();
+
+    public static final int DNS_PORT = 53;
+
+    private static final int POOL_SIZE = 4;
+    // 超过这个时间没有回复的查询会被清理
+    private static final long TIMEOUT = 10000;
+    // tick 中清理超时查询的间隔
+    private static final long PURGE_INTERVAL = 1000;
+    private static final int MAX_PENDING = 4096;
+    private static final int MAX_ID_TRIES = 16;
+
+    private static final int RCODE_SERVER_FAILURE = 2;
+    private static final int RCODE_REFUSED = 5;
+
+    private final Selector selector;
+    private final DatagramChannel[] channels = new DatagramChannel[POOL_SIZE];
+    private final ConcurrentHashMap<Integer, Pending> pending = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<InetSocketAddress, Upstream> upstreams = new ConcurrentHashMap<>();
+    // 还有上游没有发送的 staggered 查询
+    private final List<Race> staggered = new ArrayList<>();
+    // 竞速中其它上游都超时, 只能用无效回复应答的查询, 由 UDPInput 取出
+    private final ConcurrentLinkedQueue<Pending> late = new ConcurrentLinkedQueue<>();
+    private final Random random = new Random();
+
+    // send 时加锁
+    private int next = 0;
+    private long sent = 0;
+    private long lastPurge = 0;
+
+    /**
+     * @param vpnService 用来 protect 上游 socket, 为 null 时不 protect, 只用于在 VPN 之外测试
+     */
+    public DnsForwarder(Selector selector, VpnService vpnService) throws IOException
+    {
+        this.selector = selector;
+
+        try {
+            for (int i = 0; i < POOL_SIZE; i++) {
+                DatagramChannel channel = DatagramChannel.open();
+                channels[i] = channel;
+
+                if (vpnService != null)
+                    vpnService.protect(channel.socket());
+                channel.configureBlocking(false);
+                channel.register(selector, SelectionKey.OP_READ, this);
+            }
+        } catch (IOException e)
+        {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * 发送查询, UDPOutput 发送客户端的查询, UDPInput 发送预取的查询
+     *
+     * @param udb 发起查询的客户端, 预取时为 null
+     * @param query 完整的查询报文
+     * @param server 客户端指定的服务器, 配置了多个上游竞速时忽略
+     */
+    public void send(UDB udb, ByteBuffer query, InetSocketAddress server) throws IOException
+    {
+        send(udb, query, server, Firewall.getResolver());
+    }
+
+    public synchronized void send(UDB udb, ByteBuffer query, InetSocketAddress server, Resolver resolver) throws IOException
+    {
+        if (query.remaining() < 2)
+            return;
+
+        long now = SystemClock.elapsedRealtime();
+        if (++sent % 256 == 0 || pending.size() > MAX_PENDING)
+            purge(now);
+
+        int clientId = BufferUtils.getUnsignedShort(query, query.position());
+        String question = Dns.question(query);
+
+        if (resolver == null || !resolver.isRacing())
+        {
+            sendTo(new Pending(udb, clientId, question, null, getUpstream(server), now), query.duplicate());
+            return;
+        }
+
+        byte[] bytes = new byte[query.remaining()];
+        query.duplicate().get(bytes);
+
+        Race race = new Race(udb, clientId, question, bytes, sortByLatency(resolver.getAddresses()));
+
+        if (resolver.getMode() == Resolver.Mode.PARALLEL)
+        {
+            while (race.hasNext())
+                sendNext(race, now);
+        } else {
+            sendNext(race, now);
+
+            if (race.hasNext())
+            {
+                race.nextSendAt = now + resolver.getStagger();
+                synchronized (staggered) {
+                    staggered.add(race);
+                }
+                // UDPInput 可能正阻塞在 select 上, 唤醒它重新计算超时
+                selector.wakeup();
+            }
+        }
+    }
+
+    /**
+     * 发出到时间的 staggered 查询, 清理超时的查询, 由 UDPInput 在每次 select 之后调用
+     */
+    public void tick() throws IOException
+    {
+        tick(Firewall.getResolver());
+    }
+
+    public synchronized void tick(Resolver resolver) throws IOException
+    {
+        long now = SystemClock.elapsedRealtime();
+        if (now - lastPurge >= PURGE_INTERVAL)
+            purge(now);
+
+        long stagger = resolver == null ? 0 : resolver.getStagger();
+
+        List<Race> due = new ArrayList<>();
+        synchronized (staggered) {
+            Iterator<Race> it = staggered.iterator();
+            while (it.hasNext())
+            {
+                Race race = it.next();
+                if (race.done.get() || !race.hasNext())
+                    it.remove();
+                else if (now >= race.nextSendAt)
+                    due.add(race);
+            }
+        }
+
+        for (Race race: due
+             ) {
+            sendNext(race, now);
+            race.nextSendAt = now + stagger;
+        }
+    }
+
+    /**
+     * 距离下一个 staggered 查询需要发出的毫秒数, 给 select 用作超时
+     */
+    public long getTimeout(long max)
+    {
+        long now = SystemClock.elapsedRealtime();
+        long timeout = max;
+
+        synchronized (staggered) {
+            for (Race race: staggered
+                 ) {
+                if (!race.done.get() && race.hasNext())
+                    timeout = Math.min(timeout, race.nextSendAt - now);
+            }
+        }
+
+        // select(0) 会一直阻塞
+        return Math.max(1, timeout);
+    }
+
+    private void sendNext(Race race, long now) throws IOException
+    {
+        InetSocketAddress address = race.take();
+
+        sendTo(new Pending(race.udb, race.clientId, race.question, race, getUpstream(address), now), ByteBuffer.wrap(race.query));
+    }
+
+    private void sendTo(Pending item, ByteBuffer query) throws IOException
+    {
+        int index = next;
+        next = (next + 1) % POOL_SIZE;
+
+        int id = -1, key = -1;
+        for (int i = 0; i < MAX_ID_TRIES; i++) {
+            id = random.nextInt(0x10000);
+            key = key(index, id);
+
+            if (pending.putIfAbsent(key, item) == null)
+                break;
+
+            id = -1;
+        }
+
+        if (id == -1)
+        {
+            Log.w(TAG, "No free DNS id, drop query: " + item.getName());
+            failed(item);
+            return;
+        }
+
+        BufferUtils.putUnsignedShort(query, query.position(), id);
+
+        if (channels[index].send(query, item.upstream.address) == 0)
+        {
+            // 发送缓冲区满了, 客户端会重试
+            pending.remove(key);
+            failed(item);
+            Log.w(TAG, "DNS upstream busy, drop query: " + item.getName());
+        }
+    }
+
+    /**
+     * 读取一个上游回复
+     *
+     * @param buffer 读取到的回复, 已经还原成客户端的事务 ID, 并 flip
+     * @return 对应的查询, 不认识的回复, 竞速中落败或者需要等待其它上游的回复返回 null
+     */
+    public Pending receive(DatagramChannel channel, ByteBuffer buffer) throws IOException
+    {
+        SocketAddress from = channel.receive(buffer);
+        buffer.flip();
+
+        if (from == null || buffer.remaining() < 4)
+            return null;
+
+        int index = indexOf(channel);
+        if (index < 0)
+            return null;
+
+        int key = key(index, BufferUtils.getUnsignedShort(buffer, 0));
+        Pending item = pending.get(key);
+
+        // 只接受发往的那个服务器的回复
+        if (item == null || !item.upstream.address.equals(from))
+            return null;
+
+        // 问题也要和查询的一致 (不分大小写), 否则可能是猜中了 ID 的伪造回复; 查询继续等真正的回复
+        String question = Dns.question(buffer);
+        if (item.question == null ? question != null : !item.question.equals(question))
+        {
+            Log.w(TAG, "DNS reply question mismatch: " + question + ", expected " + item.question + " from " + from);
+            return null;
+        }
+
+        pending.remove(key);
+        item.upstream.update(SystemClock.elapsedRealtime() - item.sentAt);
+
+        BufferUtils.putUnsignedShort(buffer, 0, item.clientId);
+
+        Race race = item.race;
+        if (race != null && !race.finish(item, buffer, isValid(buffer)))
+            return null;
+
+        return item;
+    }
+
+    /**
+     * 竞速中最后一个上游超时或发送失败时, 之前收到的无效回复, 没有时返回 null
+     * 由 UDPInput 在每次 select 之后取出, 应答客户端
+     */
+    public Pending poll()
+    {
+        return late.poll();
+    }
+
+    private void failed(Pending item)
+    {
+        Pending reply = item.failed();
+        if (reply == null)
+            return;
+
+        late.offer(reply);
+        // UDPOutput 上发送失败时, UDPInput 可能正阻塞在 select 上
+        selector.wakeup();
+    }
+
+    /**
+     * SERVFAIL 和 REFUSED 不算有效回复, 还有其它上游时继续等待
+     */
+    private static boolean isValid(ByteBuffer buffer)
+    {
+        int rcode = BufferUtils.getUnsignedShort(buffer, 2) & 0xf;
+        return rcode != RCODE_SERVER_FAILURE && rcode != RCODE_REFUSED;
+    }
+
+    /**
+     * 上游的平均延迟 (毫秒), 没有数据返回 -1
+     */
+    public double getLatency(InetSocketAddress address)
+    {
+        Upstream upstream = upstreams.get(address);
+        return upstream == null || upstream.samples == 0 ? -1 : upstream.ewma;
+    }
+
+    public int getPendingSize() {
+        return pending.size();
+    }
+
+    @Override
+    public void close()
+    {
+        for (DatagramChannel channel : channels) {
+            if (channel == null)
+                continue;
+
+            try
+            {
+                channel.close();
+            }
+            catch (IOException e)
+            {
+                // Ignore
+            }
+        }
+
+        for (Upstream upstream: upstreams.values()
+             ) {
+            Log.i(TAG, "Upstream " + upstream.address + ": " + Math.round(upstream.ewma) + "ms, " + upstream.samples + " samples");
+        }
+
+        pending.clear();
+        late.clear();
+        synchronized (staggered) {
+            staggered.clear();
+        }
+    }
+
+    private Upstream getUpstream(InetSocketAddress address)
+    {
+        Upstream upstream = upstreams.get(address);
+
+        if (upstream == null)
+        {
+            Upstream created = new Upstream(address);
+            upstream = upstreams.putIfAbsent(address, created);
+            if (upstream == null)
+                upstream = created;
+        }
+
+        return upstream;
+    }
+
+    /**
+     * 按延迟从低到高, 没有数据的排在最前面, 先探测一次
+     */
+    private List<InetSocketAddress> sortByLatency(List<InetSocketAddress> addresses)
+    {
+        List<InetSocketAddress> list = new ArrayList<>(addresses);
+
+        Collections.sort(list, new Comparator<InetSocketAddress>() {
+            @Override
+            public int compare(InetSocketAddress a, InetSocketAddress b) {
+                return Double.compare(getLatency(a), getLatency(b));
+            }
+        });
+
+        return list;
+    }
+
+    private int indexOf(DatagramChannel channel)
+    {
+        for (int i = 0; i < channels.length; i++) {
+            if (channels[i] == channel)
+                return i;
+        }
+        return -1;
+    }
+
+    private static int key(int index, int id)
+    {
+        return (index << 16) | id;
+    }
+
+    private void purge(long now)
+    {
+        lastPurge = now;
+
+        Iterator<Map.Entry<Integer, Pending>> it = pending.entrySet().iterator();
+        while (it.hasNext())
+        {
+            Pending item = it.next().getValue();
+            if (now - item.sentAt >= TIMEOUT)
+            {
+                // 超时按 TIMEOUT 计入延迟, 慢的上游会排到后面
+                item.upstream.update(TIMEOUT);
+                it.remove();
+                failed(item);
+            }
+        }
+    }
+
+    public static class Pending {
+        final UDB udb;
+        final int clientId;
+        // 查询中问题的缓存 key, 不是一个问题时为 null
+        final String question;
+        final Race race;
+        final Upstream upstream;
+        final long sentAt;
+        // 竞速中保存的无效回复, 已经还原成客户端的事务 ID
+        private ByteBuffer reply = null;
+
+        Pending(UDB udb, int clientId, String question, Race race, Upstream upstream, long sentAt) {
+            this.udb = udb;
+            this.clientId = clientId;
+            this.question = question;
+            this.race = race;
+            this.upstream = upstream;
+            this.sentAt = sentAt;
+        }
+
+        /**
+         * @return 竞速中需要改用之前收到的无效回复时返回那个查询, 否则返回 null
+         */
+        Pending failed()
+        {
+            return race == null ? null : race.failed();
+        }
+
+        String getName()
+        {
+            return udb == null ? "prefetch" : udb.getIpAndPort();
+        }
+
+        /**
+         * 预取的查询为 null
+         */
+        public UDB getUdb() {
+            return udb;
+        }
+
+        /**
+         * 实际回复的上游
+         */
+        public InetSocketAddress getServer() {
+            return upstream.address;
+        }
+
+        /**
+         * 回复按这个 key 缓存, 不用回复自己的问题
+         */
+        public String getQuestion() {
+            return question;
+        }
+
+        /**
+         * {@link #poll()} 取出的查询才有, 是保存下来的无效回复
+         */
+        public ByteBuffer getReply() {
+            return reply == null ? null : reply.duplicate();
+        }
+    }
+
+    /**
+     * 同一个查询发往多个上游
+     */
+    static class Race {
+        final UDB udb;
+        final int clientId;
+        final String question;
+        final byte[] query;
+        final List<InetSocketAddress> order;
+        final AtomicBoolean done = new AtomicBoolean(false);
+
+        // 以下字段由 Race 自己的锁保护
+        private int next = 0;
+        private int outstanding = 0;
+        // 最后收到的无效回复, 其它上游都失败时用它应答
+        private Pending invalid = null;
+        volatile long nextSendAt = 0;
+
+        Race(UDB udb, int clientId, String question, byte[] query, List<InetSocketAddress> order) {
+            this.udb = udb;
+            this.clientId = clientId;
+            this.question = question;
+            this.query = query;
+            this.order = order;
+        }
+
+        synchronized boolean hasNext() {
+            return next < order.size();
+        }
+
+        /**
+         * 取出下一个要发送的上游
+         */
+        synchronized InetSocketAddress take() {
+            outstanding++;
+            return order.get(next++);
+        }
+
+        /**
+         * 一个上游超时或者发送失败
+         *
+         * @return 所有上游都结束了, 并且之前收到过无效回复时返回那个回复的查询
+         */
+        Pending failed()
+        {
+            synchronized (this) {
+                outstanding--;
+
+                if (outstanding > 0 || hasNext() || invalid == null)
+                    return null;
+            }
+
+            return done.compareAndSet(false, true) ? invalid : null;
+        }
+
+        /**
+         * 收到一个上游的回复
+         *
+         * @param buffer 已经还原成客户端的事务 ID
+         * @return true 表示用这个回复应答客户端
+         */
+        boolean finish(Pending item, ByteBuffer buffer, boolean valid)
+        {
+            synchronized (this) {
+                outstanding--;
+
+                // 无效回复: 还有上游没回复或者没发送, 继续等
+                if (!valid && (outstanding > 0 || hasNext()))
+                {
+                    byte[] bytes = new byte[buffer.remaining()];
+                    buffer.duplicate().get(bytes);
+                    item.reply = ByteBuffer.wrap(bytes);
+                    invalid = item;
+
+                    // staggered 模式下立即发给下一个上游
+                    nextSendAt = 0;
+                    return false;
+                }
+            }
+
+            return done.compareAndSet(false, true);
+        }
+    }
+
+    static class Upstream {
+        // EWMA 的权重
+        private static final double ALPHA = 0.2;
+
+        final InetSocketAddress address;
+        volatile double ewma = 0;
+        volatile long samples = 0;
+
+        Upstream(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        synchronized void update(long rtt)
+        {
+            ewma = samples == 0 ? rtt : ewma * (1 - ALPHA) + rtt * ALPHA;
+            samples++;
+        }
+    }
+}
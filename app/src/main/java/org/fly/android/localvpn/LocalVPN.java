@@ -36,6 +36,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 
 
 public class LocalVPN extends Activity
@@ -62,16 +63,16 @@ public class LocalVPN extends Activity
     };
 
     public static String readAssetFile(AssetManager mgr, String path) {
-        String contents = "";
+        StringBuilder contents = new StringBuilder();
         InputStream is = null;
         BufferedReader reader = null;
         try {
             is = mgr.open(path);
-            reader = new BufferedReader(new InputStreamReader(is));
-            contents = reader.readLine();
-            String line = null;
-            while ((line = reader.readLine()) != null) {
-                contents += '\n' + line;
+            reader = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
+            char[] buffer = new char[8192];
+            int n;
+            while ((n = reader.read(buffer)) != -1) {
+                contents.append(buffer, 0, n);
             }
         } catch (final Exception e) {
             e.printStackTrace();
@@ -89,7 +90,7 @@ public class LocalVPN extends Activity
                 }
             }
         }
-        return contents;
+        return contents.toString();
     }
 
     @Override
@@ -109,7 +110,15 @@ public class LocalVPN extends Activity
         });
 
 
-        Firewall.createTable(readAssetFile(getAssets(), "grid.json"));
+        // blocklist 的相对路径基于 files 目录
+        Firewall.setDirectory(getFilesDir());
+        Firewall.setCacheDirectory(getCacheDir());
+        // files/grid.json 存在时覆盖内置规则, 修改后自动热加载
+        // 启动时只编译其中一份, 文件无效时才用内置规则
+        File gridFile = new File(getFilesDir(), "grid.json");
+        if (!gridFile.exists() || !Firewall.createTable(gridFile))
+            Firewall.createTable(readAssetFile(getAssets(), "grid.json"));
+        Firewall.watch(gridFile);
 
         final Button httpButton = findViewById(R.id.okhttp);
 
@@ -23,7 +23,13 @@ import android.os.ParcelFileDescriptor;
 import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 
+import org.fly.android.localvpn.firewall.Dns;
+import org.fly.android.localvpn.firewall.Firewall;
+import org.fly.android.localvpn.firewall.HttpMetrics;
+import org.fly.android.localvpn.firewall.Resolver;
+
 import java.io.Closeable;
+import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -40,6 +46,7 @@ public class LocalVPNService extends VpnService
     private static final String TAG = LocalVPNService.class.getSimpleName();
     private static final String VPN_ADDRESS = "10.0.0.2"; // Only IPv4 support for now
     private static final String VPN_ROUTE = "0.0.0.0"; // Intercept everything
+    private static final String DNS_CACHE_FILE = "dns-cache.bin";
 
     public static final String BROADCAST_VPN_STATE = "org.fly.android.localvpn.VPN_STATE";
 
@@ -54,12 +61,18 @@ public class LocalVPNService extends VpnService
 
     private Selector udpSelector;
     private Selector tcpSelector;
+    private DnsForwarder dnsForwarder;
+    private WarmPool warmPool;
+    private ConnectRacer connectRacer;
 
     @Override
     public void onCreate()
     {
         super.onCreate();
         isRunning = true;
+        // 在后台恢复上次的 DNS 缓存, 不阻塞启动
+        if (Firewall.getResolver().isPersist())
+            Dns.openStore(new File(getCacheDir(), DNS_CACHE_FILE));
         setupVPN();
         try
         {
@@ -68,12 +81,15 @@ public class LocalVPNService extends VpnService
             deviceToNetworkUDPQueue = new ConcurrentLinkedQueue<>();
             deviceToNetworkTCPQueue = new ConcurrentLinkedQueue<>();
             networkToDeviceQueue = new ConcurrentLinkedQueue<>();
+            dnsForwarder = new DnsForwarder(udpSelector, this);
+            warmPool = new WarmPool(this);
+            connectRacer = new ConnectRacer(tcpSelector, this);
 
             executorService = Executors.newFixedThreadPool(5);
-            executorService.submit(new UDPInput(networkToDeviceQueue, udpSelector));
-            executorService.submit(new UDPOutput(deviceToNetworkUDPQueue, networkToDeviceQueue, udpSelector, this));
-            executorService.submit(new TCPInput(networkToDeviceQueue, tcpSelector));
-            executorService.submit(new TCPOutput(deviceToNetworkTCPQueue, networkToDeviceQueue, tcpSelector, this));
+            executorService.submit(new UDPInput(networkToDeviceQueue, udpSelector, dnsForwarder, warmPool));
+            executorService.submit(new UDPOutput(deviceToNetworkUDPQueue, networkToDeviceQueue, udpSelector, this, dnsForwarder));
+            executorService.submit(new TCPInput(networkToDeviceQueue, tcpSelector, connectRacer));
+            executorService.submit(new TCPOutput(deviceToNetworkTCPQueue, networkToDeviceQueue, tcpSelector, this, warmPool, connectRacer));
             executorService.submit(new VPNRunnable(
                     this,
                     vpnInterface.getFileDescriptor(),
@@ -102,8 +118,10 @@ public class LocalVPNService extends VpnService
 
             builder.addAddress(VPN_ADDRESS, 32);
             builder.addRoute(VPN_ROUTE, 0);
-            builder.addDnsServer("223.5.5.5");
-            builder.addDnsServer("8.8.8.8");
+            for (String server: Resolver.DEFAULT_UPSTREAMS
+                 ) {
+                builder.addDnsServer(server);
+            }
 
             vpnInterface = builder
                     .setSession(getString(R.string.app_name))
@@ -130,6 +148,23 @@ public class LocalVPNService extends VpnService
         isRunning = false;
         executorService.shutdownNow();
         cleanup();
+        Dns.closeStore();
+        Log.i(TAG, "DNS rule cache: " + Firewall.getDnsStats());
+        Log.i(TAG, "HTTP rule cache: " + Firewall.getHttpStats());
+        Log.i(TAG, "DNS answer cache: " + Dns.getCacheStats());
+        Log.i(TAG, "DNS coalesced queries: " + Dns.getCoalescedCount());
+        if (warmPool != null)
+            Log.i(TAG, "TCP warm connections: " + warmPool.getStats());
+        if (connectRacer != null)
+            Log.i(TAG, "TCP connect races: " + connectRacer.getStats());
+        if (HttpMetrics.getTotal() > 0)
+        {
+            Log.i(TAG, "HTTP transactions: " + HttpMetrics.getTotal());
+            for (HttpMetrics.Host host: HttpMetrics.getSlowestHosts(5)
+                 ) {
+                Log.i(TAG, "HTTP slow host " + host);
+            }
+        }
         Log.i(TAG, "Stopped");
     }
 
@@ -138,7 +173,7 @@ public class LocalVPNService extends VpnService
         deviceToNetworkTCPQueue = null;
         deviceToNetworkUDPQueue = null;
         networkToDeviceQueue = null;
-        closeResources(udpSelector, tcpSelector, vpnInterface);
+        closeResources(dnsForwarder, warmPool, connectRacer, udpSelector, tcpSelector, vpnInterface);
     }
 
     // TODO: Move this to a "utils" class for reuse
@@ -146,6 +181,9 @@ public class LocalVPNService extends VpnService
     {
         for (Closeable resource : resources)
         {
+            if (resource == null)
+                continue;
+
             try
             {
                 resource.close();
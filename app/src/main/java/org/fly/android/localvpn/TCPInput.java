@@ -19,6 +19,7 @@ package org.fly.android.localvpn;
 import android.util.Log;
 
 import org.fly.android.localvpn.contract.TcpIO;
+import org.fly.android.localvpn.firewall.Firewall;
 import org.fly.android.localvpn.store.TCB;
 import org.fly.android.localvpn.store.TCB.TCBStatus;
 
@@ -28,6 +29,7 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
@@ -35,10 +37,13 @@ public class TCPInput extends TcpIO implements Runnable
 {
     private static final String TAG = TCPInput.class.getSimpleName();
 
-    public TCPInput(ConcurrentLinkedQueue<ByteBuffer> outputQueue, Selector selector)
+    private ConnectRacer connectRacer;
+
+    public TCPInput(ConcurrentLinkedQueue<ByteBuffer> outputQueue, Selector selector, ConnectRacer connectRacer)
     {
         this.outputQueue = outputQueue;
         this.selector = selector;
+        this.connectRacer = connectRacer;
     }
 
     @Override
@@ -49,7 +54,9 @@ public class TCPInput extends TcpIO implements Runnable
             Log.d(TAG, "Started");
             while (!Thread.interrupted())
             {
-                int readyChannels = selector.select();
+                // 有竞速中的连接时, 到时间醒来发起下一个备选连接
+                int readyChannels = selector.select(connectRacer.getTimeout());
+                connectRacer.tick();
 
                 if (readyChannels == 0) {
                     Thread.sleep(10);
@@ -86,36 +93,118 @@ public class TCPInput extends TcpIO implements Runnable
 
     private void processConnect(SelectionKey key, Iterator<SelectionKey> keyIterator)
     {
+        if (key.attachment() instanceof ConnectRacer.Attempt)
+        {
+            processRaceConnect(key, keyIterator, (ConnectRacer.Attempt) key.attachment());
+            return;
+        }
+
         TCB tcb = (TCB) key.attachment();
-        Packet referencePacket = tcb.referencePacket;
         try
         {
             if (tcb.channel.finishConnect())
             {
                 keyIterator.remove();
-                tcb.status = TCBStatus.SYN_RECEIVED;
-
-                // TODO: Set MSS for receiving larger packets from the device
-                ByteBuffer responseBuffer = ByteBuffer.allocate(LocalVPN.BUFFER_SIZE);
-                referencePacket.generateTCPBuffer(responseBuffer, (byte) (Packet.TCPHeader.SYN | Packet.TCPHeader.ACK),
-                        tcb, 0);
-                outputQueue.offer(responseBuffer);
-
-                tcb.incrementSeq();// SYN counts as a byte
-
-                key.interestOps(SelectionKey.OP_READ);
+                connectRacer.finish(tcb);
+                synchronized (tcb)
+                {
+                    established(key, tcb);
+                }
             }
         }
         catch (IOException e)
         {
+            // 备选地址还在连接, 等它们的结果
+            if (connectRacer.fail(tcb))
+            {
+                Log.d(TAG, "Connection error, racing: " + tcb.ipAndPort + ", " + e.getMessage());
+                keyIterator.remove();
+                key.cancel();
+                return;
+            }
+
             Log.e(TAG, "Connection error: " + tcb.ipAndPort, e);
-            ByteBuffer responseBuffer = ByteBuffer.allocate(LocalVPN.BUFFER_SIZE);
-            referencePacket.generateTCPBuffer(responseBuffer, (byte) Packet.TCPHeader.RST, 0, tcb.myAcknowledgementNum, 0);
-            outputQueue.offer(responseBuffer);
-            TCB.closeTCB(tcb);
+            reset(tcb);
+        }
+    }
+
+    private void processRaceConnect(SelectionKey key, Iterator<SelectionKey> keyIterator, ConnectRacer.Attempt attempt)
+    {
+        TCB tcb = attempt.getTcb();
+        try
+        {
+            if (!attempt.getChannel().finishConnect())
+                return;
+        }
+        catch (IOException e)
+        {
+            keyIterator.remove();
+            if (!connectRacer.fail(attempt))
+            {
+                Log.e(TAG, "Connection error: " + tcb.ipAndPort, e);
+                reset(tcb);
+            }
+            return;
+        }
+
+        keyIterator.remove();
+        synchronized (tcb)
+        {
+            // 已经有别的连接赢了, 或者 TCB 已经关闭
+            if (tcb.status != TCBStatus.SYN_SENT || !connectRacer.win(attempt))
+            {
+                key.cancel();
+                try {
+                    attempt.getChannel().close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+                return;
+            }
+
+            Log.d(TAG, "Race won: " + tcb.ipAndPort + " -> " + attempt.getChannel().socket().getInetAddress());
+
+            // 换掉原来的 channel
+            if (tcb.selectionKey != null)
+                tcb.selectionKey.cancel();
+            try {
+                tcb.channel.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+
+            tcb.channel = attempt.getChannel();
+            tcb.selectionKey = key;
+            key.attach(tcb);
+
+            established(key, tcb);
         }
     }
 
+    private void established(SelectionKey key, TCB tcb)
+    {
+        tcb.connectedAt = System.nanoTime();
+        tcb.status = TCBStatus.SYN_RECEIVED;
+
+        // TODO: Set MSS for receiving larger packets from the device
+        ByteBuffer responseBuffer = ByteBuffer.allocate(LocalVPN.BUFFER_SIZE);
+        tcb.referencePacket.generateTCPBuffer(responseBuffer, (byte) (Packet.TCPHeader.SYN | Packet.TCPHeader.ACK),
+                tcb, 0);
+        outputQueue.offer(responseBuffer);
+
+        tcb.incrementSeq();// SYN counts as a byte
+
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    private void reset(TCB tcb)
+    {
+        ByteBuffer responseBuffer = ByteBuffer.allocate(LocalVPN.BUFFER_SIZE);
+        tcb.referencePacket.generateTCPBuffer(responseBuffer, (byte) Packet.TCPHeader.RST, 0, tcb.myAcknowledgementNum, 0);
+        outputQueue.offer(responseBuffer);
+        TCB.closeTCB(tcb);
+    }
+
     private void processInput(SelectionKey key, Iterator<SelectionKey> keyIterator)
     {
         keyIterator.remove();
@@ -144,6 +233,18 @@ public class TCPInput extends TcpIO implements Runnable
 
             if (readBytes == -1)
             {
+                if (Firewall.getInspector().isResponse())
+                    tcb.getFirewall().readEnd();
+
+                LinkedList<ByteBuffer> replies = tcb.getFirewall().reorderEnd();
+                if (replies != null)
+                {
+                    for (ByteBuffer reply: replies
+                         ) {
+                        sendToClient(tcb, reply);
+                    }
+                }
+
                 // End of stream, stop waiting until we push more data
                 key.interestOps(0);
                 tcb.waitingForNetworkData = false;
@@ -154,6 +255,13 @@ public class TCPInput extends TcpIO implements Runnable
                     return;
                 }
 
+                // 还有被窗口挡住的数据, FIN 等它们发完
+                if (!tcb.getSending().isEmpty())
+                {
+                    tcb.pendingFin = (byte) Packet.TCPHeader.FIN;
+                    return;
+                }
+
                 tcb.status = TCBStatus.LAST_ACK;
                 referencePacket.generateTCPBuffer(receiveBuffer, (byte) Packet.TCPHeader.FIN, tcb, 0);
 
@@ -162,6 +270,34 @@ public class TCPInput extends TcpIO implements Runnable
             }
             else
             {
+                ByteBuffer data = receiveBuffer.duplicate();
+                data.flip();
+                data.position(HEADER_SIZE);
+
+                // 只观察回复, 不影响转发
+                if (Firewall.getInspector().isResponse())
+                    tcb.getFirewall().read(data);
+
+                // 管线化的请求中有命中规则的, 规则的回复按请求的顺序插在上游的回复之间;
+                // 发送队列中还有没发完的数据时, 也要排在它们后面
+                LinkedList<ByteBuffer> ordered = tcb.getFirewall().reorder(data);
+                if (ordered != null || !tcb.getSending().isEmpty())
+                {
+                    if (ordered == null)
+                    {
+                        ordered = new LinkedList<>();
+                        ByteBuffer copy = ByteBuffer.allocate(readBytes);
+                        copy.put(data);
+                        ordered.add(copy);
+                    }
+
+                    for (ByteBuffer buffer: ordered
+                         ) {
+                        sendToClient(tcb, buffer);
+                    }
+                    return;
+                }
+
                 // XXX: We should ideally be splitting segments by MTU/MSS, but this seems to work without
                 referencePacket.generateTCPBuffer(receiveBuffer, (byte) (Packet.TCPHeader.PSH | Packet.TCPHeader.ACK),
                         tcb, readBytes);
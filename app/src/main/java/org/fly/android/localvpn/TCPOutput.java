@@ -38,14 +38,18 @@ public class TCPOutput extends TcpIO implements Runnable
     private static final String TAG = TCPOutput.class.getSimpleName();
 
     private LocalVPNService vpnService;
+    private WarmPool warmPool;
+    private ConnectRacer connectRacer;
 
     public TCPOutput(ConcurrentLinkedQueue<Packet> inputQueue, ConcurrentLinkedQueue<ByteBuffer> outputQueue,
-                     Selector selector, LocalVPNService vpnService) throws IOException
+                     Selector selector, LocalVPNService vpnService, WarmPool warmPool, ConnectRacer connectRacer) throws IOException
     {
         this.inputQueue = inputQueue;
         this.outputQueue = outputQueue;
         this.selector = selector;
         this.vpnService = vpnService;
+        this.warmPool = warmPool;
+        this.connectRacer = connectRacer;
     }
 
     @Override
@@ -127,9 +131,18 @@ public class TCPOutput extends TcpIO implements Runnable
         currentPacket.swapSourceAndDestination();
         if (tcpHeader.isSYN())
         {
-            SocketChannel outputChannel = SocketChannel.open();
-            outputChannel.configureBlocking(false);
-            vpnService.protect(outputChannel.socket());
+            InetSocketAddress destination = new InetSocketAddress(destinationAddress, destinationPort);
+
+            // 收到 DNS 回复时预先连好的 channel
+            SocketChannel outputChannel = warmPool == null ? null : warmPool.take(destination);
+            boolean warm = outputChannel != null;
+
+            if (!warm)
+            {
+                outputChannel = SocketChannel.open();
+                outputChannel.configureBlocking(false);
+                vpnService.protect(outputChannel.socket());
+            }
 
             TCB tcb = new TCB(
                     ipAndPort,
@@ -141,14 +154,17 @@ public class TCPOutput extends TcpIO implements Runnable
 
             try
             {
-                Log.d(TAG, "Connect: " + tcb.getIpAndPort());
+                Log.d(TAG, (warm ? "Warm connect: " : "Connect: ") + tcb.getIpAndPort());
 
-                outputChannel.connect(new InetSocketAddress(destinationAddress, destinationPort));
+                tcb.connectAt = System.nanoTime();
+                if (!warm)
+                    outputChannel.connect(destination);
 
                 //由于上面是异步的, 不可能这么快返回连接成功, 连接成功会触发selector的事件驱动
                 //但是本地连接会快速的返回
                 if (outputChannel.finishConnect())
                 {
+                    tcb.connectedAt = System.nanoTime();
                     tcb.status = TCBStatus.SYN_RECEIVED;
                     // TODO: Set MSS for receiving larger packets from the device
                     currentPacket.generateTCPBuffer(responseBuffer, (byte) (TCPHeader.SYN | TCPHeader.ACK),
@@ -162,6 +178,10 @@ public class TCPOutput extends TcpIO implements Runnable
                     tcb.status = TCBStatus.SYN_SENT;
                     selector.wakeup();
                     tcb.selectionKey = outputChannel.register(selector, SelectionKey.OP_CONNECT, tcb);
+
+                    // 预连接已经先跑了一段, 不再竞速
+                    if (!warm && connectRacer != null)
+                        connectRacer.start(tcb, destination);
                     return;
                 }
             }
@@ -223,6 +243,13 @@ public class TCPOutput extends TcpIO implements Runnable
                 referencePacket.generateTCPBuffer(responseBuffer, (byte) TCPHeader.ACK,
                         tcb, 0);
             }
+            // 还有被窗口挡住的数据, 先只确认客户端的 FIN, 数据发完后再发 FIN
+            else if (!tcb.getSending().isEmpty())
+            {
+                tcb.pendingFin = (byte) (TCPHeader.FIN | TCPHeader.ACK);
+                referencePacket.generateTCPBuffer(responseBuffer, (byte) TCPHeader.ACK,
+                        tcb, 0);
+            }
             // 客戶端揮手2,3,回復FIN+ACK
             else
             {
@@ -271,8 +298,16 @@ public class TCPOutput extends TcpIO implements Runnable
                 return;
             }
 
+            // 客户端确认了多少, 以及还能接收多少
+            tcb.acknowledge(tcpHeader);
+
             // 空ACK 可以不用轉發給remote， 因為空ACK是手机和VPN的确认包，理论上需要验证seq，VPN->Remote的通讯依赖于channel
-            if (payloadSize == 0) return; // Empty ACK, ignore
+            // 但窗口可能打开了, 继续发送还没发完的回复
+            if (payloadSize == 0)
+            {
+                flushToClient(tcb);
+                return;
+            }
 
             // 給selector 添加一個OP_READ監聽狀態
             if (!tcb.waitingForNetworkData)
@@ -16,13 +16,15 @@
 
 package org.fly.android.localvpn;
 
+import android.os.SystemClock;
 import android.util.Log;
 
 import org.fly.android.localvpn.contract.UdpIO;
 import org.fly.android.localvpn.store.UDB;
-import org.fly.protocol.dns.content.Dns;
+import org.fly.protocol.dns.content.DnsReader;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectionKey;
@@ -35,10 +37,23 @@ public class UDPInput extends UdpIO implements Runnable
 {
     private static final String TAG = UDPInput.class.getSimpleName();
 
-    public UDPInput(ConcurrentLinkedQueue<ByteBuffer> outputQueue, Selector selector)
+    // 预取检查间隔
+    private static final long PREFETCH_INTERVAL = 1000;
+    // 每次最多预取的查询数
+    private static final int PREFETCH_BUDGET = 16;
+
+    private DnsForwarder dnsForwarder;
+    private WarmPool warmPool;
+    private long lastPrefetch = 0;
+    // 只用于日志
+    private final DnsReader dnsReader = new DnsReader();
+
+    public UDPInput(ConcurrentLinkedQueue<ByteBuffer> outputQueue, Selector selector, DnsForwarder dnsForwarder, WarmPool warmPool)
     {
         this.outputQueue = outputQueue;
         this.selector = selector;
+        this.dnsForwarder = dnsForwarder;
+        this.warmPool = warmPool;
     }
 
     @Override
@@ -49,7 +64,22 @@ public class UDPInput extends UdpIO implements Runnable
             Log.i(TAG, "Started");
             while (!Thread.interrupted())
             {
-                int readyChannels = selector.select();
+                int readyChannels = selector.select(dnsForwarder == null ? PREFETCH_INTERVAL : dnsForwarder.getTimeout(PREFETCH_INTERVAL));
+
+                if (dnsForwarder != null)
+                {
+                    dnsForwarder.tick();
+
+                    // 竞速中其它上游都超时, 用之前收到的无效回复应答
+                    DnsForwarder.Pending late;
+                    while ((late = dnsForwarder.poll()) != null)
+                        reply(late.getUdb(), late.getReply(), late.getServer(), late.getQuestion());
+                }
+
+                prefetch();
+
+                if (warmPool != null)
+                    warmPool.tick();
 
                 if (readyChannels == 0) {
                     Thread.sleep(5);
@@ -62,43 +92,37 @@ public class UDPInput extends UdpIO implements Runnable
                 while (keyIterator.hasNext() && !Thread.interrupted())
                 {
                     SelectionKey key = keyIterator.next();
-                    UDB udb = (UDB)key.attachment();
                     if (key.isValid() && key.isReadable())
                     {
                         keyIterator.remove();
 
-                        ByteBuffer receiveBuffer = ByteBuffer.allocate(LocalVPN.BUFFER_SIZE);
-                        // Leave space for the header
-                        receiveBuffer.position(HEADER_SIZE);
-
                         DatagramChannel inputChannel = (DatagramChannel) key.channel();
                         // XXX: We should handle any IOExceptions here immediately,
                         // but that probably won't happen with UDP
                         ByteBuffer buffer = ByteBuffer.allocate(LocalVPN.BUFFER_SIZE);
-                        int readBytes = inputChannel.read(buffer);
-                        buffer.flip();
-
-                        try {
-                            if (udb.getFirewall().getProtocol() instanceof org.fly.android.localvpn.firewall.Dns)
-                            {
-                                Dns dns = new Dns(buffer.duplicate());
-
-                                for (Dns.Record record: dns.getAnswers()
-                                     ) {
-                                    Log.d(TAG, "DNS Recive: --- " + record.getName() + ": " + record.getData());
-                                }
-                            }
-                        } catch (Exception e)
-                        {
+                        UDB udb;
+                        InetSocketAddress server;
+                        // 共享 socket 上回复对应的查询问题, 缓存用它做 key
+                        String question = null;
 
+                        if (key.attachment() instanceof DnsForwarder)
+                        {
+                            // 共享的 DNS socket, 按事务 ID 找回发起查询的客户端
+                            DnsForwarder.Pending pending = ((DnsForwarder) key.attachment()).receive(inputChannel, buffer);
+                            if (pending == null)
+                                continue;
+
+                            udb = pending.getUdb();
+                            server = pending.getServer();
+                            question = pending.getQuestion();
+                        } else {
+                            udb = (UDB) key.attachment();
+                            server = (InetSocketAddress) inputChannel.socket().getRemoteSocketAddress();
+                            inputChannel.read(buffer);
+                            buffer.flip();
                         }
 
-                        receiveBuffer.put(buffer);
-                        Packet referencePacket = udb.referencePacket;
-                        referencePacket.generateUDPBuffer(receiveBuffer, readBytes);
-                        receiveBuffer.position(HEADER_SIZE + readBytes);
-
-                        outputQueue.offer(receiveBuffer);
+                        reply(udb, buffer, server, question);
                     }
                 }
             }
@@ -112,4 +136,88 @@ public class UDPInput extends UdpIO implements Runnable
             Log.w(TAG, e.toString(), e);
         }
     }
+
+    /**
+     * 把上游的回复发给客户端
+     *
+     * @param udb 预取的查询为 null, 回复只用来刷新缓存
+     * @param question 原查询的问题, 每个查询单独的 socket 时为 null
+     */
+    private void reply(UDB udb, ByteBuffer buffer, InetSocketAddress server, String question)
+    {
+        if (udb == null)
+        {
+            onDnsResponse(buffer, server, question);
+            return;
+        }
+
+        ByteBuffer receiveBuffer = ByteBuffer.allocate(LocalVPN.BUFFER_SIZE);
+        // Leave space for the header
+        receiveBuffer.position(HEADER_SIZE);
+
+        int readBytes = buffer.limit();
+
+        if (udb.getFirewall().getProtocol() instanceof org.fly.android.localvpn.firewall.Dns)
+        {
+            onDnsResponse(buffer, server, question);
+
+            // 客户端马上就会连接回复中的 IP
+            if (warmPool != null)
+                warmPool.offer(buffer.duplicate());
+        }
+
+        receiveBuffer.put(buffer);
+        Packet referencePacket = udb.referencePacket;
+        referencePacket.generateUDPBuffer(receiveBuffer, readBytes);
+        receiveBuffer.position(HEADER_SIZE + readBytes);
+
+        outputQueue.offer(receiveBuffer);
+    }
+
+    /**
+     * 上游 DNS 回复: 放入缓存, 并发给合并到这次查询上的其它客户端
+     */
+    private void onDnsResponse(ByteBuffer buffer, InetSocketAddress server, String question)
+    {
+        try {
+            if (Log.isLoggable(TAG, Log.DEBUG) && dnsReader.reset(buffer))
+            {
+                while (dnsReader.nextRecord())
+                {
+                    if (dnsReader.getSection() == DnsReader.SECTION_ANSWER)
+                        Log.d(TAG, "DNS Recive: --- " + dnsReader.readName(dnsReader.getNameOffset()) + ": " + dnsReader.getType());
+                }
+            }
+
+            for (org.fly.android.localvpn.firewall.Dns.Reply reply: org.fly.android.localvpn.firewall.Dns.onResponse(buffer.duplicate(), server, question)
+                 ) {
+                sendToClient((UDB) reply.getBlock(), reply.getBuffer());
+            }
+        } catch (Exception e)
+        {
+            Log.w(TAG, "Handle DNS response failed: " + server, e);
+        }
+    }
+
+    /**
+     * 在 TTL 过期前刷新热点记录, 每次最多 PREFETCH_BUDGET 个
+     */
+    private void prefetch()
+    {
+        long now = SystemClock.elapsedRealtime();
+        if (dnsForwarder == null || now - lastPrefetch < PREFETCH_INTERVAL)
+            return;
+
+        lastPrefetch = now;
+
+        for (org.fly.android.localvpn.firewall.Dns.PrefetchQuery query: org.fly.android.localvpn.firewall.Dns.prefetch(PREFETCH_BUDGET)
+             ) {
+            try {
+                dnsForwarder.send(null, query.getBuffer(), query.getServer());
+            } catch (IOException e)
+            {
+                Log.w(TAG, "DNS prefetch failed: " + query.getServer(), e);
+            }
+        }
+    }
 }
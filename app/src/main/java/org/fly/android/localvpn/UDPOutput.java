@@ -36,16 +36,19 @@ public class UDPOutput extends UdpIO implements Runnable
     private static final String TAG = UDPOutput.class.getSimpleName();
 
     private LocalVPNService vpnService;
+    private DnsForwarder dnsForwarder;
 
     public UDPOutput(ConcurrentLinkedQueue<Packet> inputQueue,
                      ConcurrentLinkedQueue<ByteBuffer> outputQueue,
                      Selector selector,
-                     LocalVPNService vpnService)
+                     LocalVPNService vpnService,
+                     DnsForwarder dnsForwarder)
     {
         this.inputQueue = inputQueue;
         this.outputQueue = outputQueue;
         this.selector = selector;
         this.vpnService = vpnService;
+        this.dnsForwarder = dnsForwarder;
     }
 
     @Override
@@ -77,7 +80,15 @@ public class UDPOutput extends UdpIO implements Runnable
 
                 UDB udb = UDB.getUDB(ipAndPort);
 
-                if (udb == null) {
+                if (udb == null && dnsForwarder != null && destinationPort == DnsForwarder.DNS_PORT) {
+
+                    // DNS 走共享的上游 socket, 不需要单独的 channel
+                    udb = new UDB(ipAndPort, null, currentPacket);
+                    currentPacket.swapSourceAndDestination(); // 交换源和目标
+
+                    UDB.putUDB(ipAndPort, udb);
+
+                } else if (udb == null) {
 
                     DatagramChannel outputChannel = DatagramChannel.open();
 
@@ -116,7 +127,12 @@ public class UDPOutput extends UdpIO implements Runnable
                     {
                         ByteBuffer buff;
                         while ((buff = byteBuffers.poll()) != null)
-                            sendToRemote(udb, buff);
+                        {
+                            if (udb.channel == null)
+                                dnsForwarder.send(udb, buff, new InetSocketAddress(destinationAddress, destinationPort));
+                            else
+                                sendToRemote(udb, buff);
+                        }
                     }
 
                 }
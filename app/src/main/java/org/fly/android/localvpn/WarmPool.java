@@ -0,0 +1,218 @@
+package org.fly.android.localvpn;
+
+import android.net.VpnService;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.fly.android.localvpn.firewall.Connector;
+import org.fly.android.localvpn.firewall.Firewall;
+import org.fly.android.localvpn.structs.CacheStats;
+import org.fly.protocol.dns.content.Dns;
+import org.fly.protocol.dns.content.DnsReader;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * 预连接池
+ *
+ * 客户端收到 DNS 回复之后几乎马上就会连接其中的 IP, 所以在回复经过时就先连上去,
+ * 客户端的 SYN 到达时直接接管已经连好 (或正在连) 的 channel, 省掉一次到上游的握手.
+ * 在 {@link Connector} 中开启, 没有被用上的连接超过 warmIdle 后关闭, 关闭 warm 后所有连接都会关闭.
+ * 除了 offer/take, UDPInput 每次 select 之后也会调用 {@link #tick()}, 没有流量时也能及时清理
+ */
+public class WarmPool implements Closeable {
+
+    private static final String TAG = WarmPool.class.getSimpleName();
+
+    // 每个回复最多预连接的地址数, 客户端一般只连第一个
+    private static final int MAX_ADDRESSES = 2;
+
+    private final VpnService vpnService;
+    private final HashMap<InetSocketAddress, Warm> pool = new HashMap<>();
+    private final DnsReader reader = new DnsReader();
+    private final CacheStats stats = new CacheStats();
+
+    public WarmPool(VpnService vpnService) {
+        this.vpnService = vpnService;
+    }
+
+    /**
+     * 上游的 DNS 回复, 预连接其中的 A 记录
+     *
+     * @param message 完整的回复报文
+     */
+    public synchronized void offer(ByteBuffer message)
+    {
+        Connector connector = Firewall.getConnector();
+        long now = SystemClock.elapsedRealtime();
+        purge(now, connector);
+
+        if (!connector.isWarm())
+            return;
+
+        if (!reader.reset(message) || reader.getRcode() != 0)
+            return;
+
+        int addresses = 0;
+        while (addresses < MAX_ADDRESSES && reader.nextRecord())
+        {
+            // 只支持 IPv4
+            if (reader.getSection() != DnsReader.SECTION_ANSWER || reader.getType() != Dns.TYPE.A.getValue() || reader.getRdLength() != 4)
+                continue;
+
+            byte[] ip = new byte[4];
+            for (int i = 0; i < 4; i++)
+                ip[i] = message.get(reader.getRdataOffset() + i);
+
+            InetAddress address;
+            try {
+                address = InetAddress.getByAddress(ip);
+            } catch (IOException e)
+            {
+                continue;
+            }
+
+            if (address.isAnyLocalAddress() || address.isLoopbackAddress() || address.isMulticastAddress())
+                continue;
+
+            addresses++;
+
+            for (Integer port: connector.getWarmPorts()
+                 ) {
+                if (pool.size() >= connector.getWarmMax())
+                    return;
+
+                if (port != null)
+                    connect(new InetSocketAddress(address, port), now);
+            }
+        }
+    }
+
+    private void connect(InetSocketAddress address, long now)
+    {
+        if (pool.containsKey(address))
+            return;
+
+        SocketChannel channel = null;
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            vpnService.protect(channel.socket());
+            channel.connect(address);
+
+            pool.put(address, new Warm(channel, now));
+        } catch (IOException e)
+        {
+            Log.d(TAG, "Warm connect failed: " + address + ", " + e.getMessage());
+            close(channel);
+        }
+    }
+
+    /**
+     * 取出连到 address 的 channel, 可能还在连接中; 没有或者已经失败返回 null
+     */
+    public synchronized SocketChannel take(InetSocketAddress address)
+    {
+        Connector connector = Firewall.getConnector();
+        if (!connector.isWarm() && pool.isEmpty())
+            return null;
+
+        purge(SystemClock.elapsedRealtime(), connector);
+
+        Warm warm = pool.remove(address);
+        if (warm == null)
+        {
+            stats.miss();
+            return null;
+        }
+
+        try {
+            // 非阻塞, 还在连接中返回 false, 连接失败抛异常
+            warm.channel.finishConnect();
+        } catch (IOException e)
+        {
+            close(warm.channel);
+            stats.miss();
+            return null;
+        }
+
+        stats.hit();
+        return warm.channel;
+    }
+
+    /**
+     * 关闭超过 warmIdle 的连接, 由 UDPInput 定时调用
+     */
+    public synchronized void tick()
+    {
+        if (!pool.isEmpty())
+            purge(SystemClock.elapsedRealtime(), Firewall.getConnector());
+    }
+
+    /**
+     * 关闭 warm 后 (比如重新加载了规则) 所有连接都不会再用上
+     */
+    private void purge(long now, Connector connector)
+    {
+        if (pool.isEmpty())
+            return;
+
+        long idle = connector.isWarm() ? connector.getWarmIdle() : 0;
+
+        Iterator<Map.Entry<InetSocketAddress, Warm>> it = pool.entrySet().iterator();
+        while (it.hasNext())
+        {
+            Warm warm = it.next().getValue();
+            if (now - warm.createdAt >= idle)
+            {
+                close(warm.channel);
+                it.remove();
+            }
+        }
+    }
+
+    public CacheStats getStats() {
+        return stats;
+    }
+
+    private static void close(SocketChannel channel)
+    {
+        if (channel == null)
+            return;
+
+        try {
+            channel.close();
+        } catch (IOException e)
+        {
+            // Ignore
+        }
+    }
+
+    @Override
+    public synchronized void close()
+    {
+        for (Warm warm: pool.values()
+             ) {
+            close(warm.channel);
+        }
+        pool.clear();
+    }
+
+    private static class Warm {
+        final SocketChannel channel;
+        final long createdAt;
+
+        Warm(SocketChannel channel, long createdAt) {
+            this.channel = channel;
+            this.createdAt = createdAt;
+        }
+    }
+}
@@ -7,6 +7,7 @@ import org.fly.android.localvpn.store.TCB;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.Selector;
+import java.util.LinkedList;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
 public abstract class TcpIO {
@@ -33,27 +34,47 @@ public abstract class TcpIO {
     }
 
     /**
-     * 回复本地客户端的数据
+     * 回复本地客户端的数据, 先放入 TCB 的发送队列, 在客户端的窗口内分段发送
      *
      * @param tcb
-     * @param replyBuffer
+     * @param replyBuffer 写入模式, 可以是映射的文件, 发送时不会修改其中的内容
      */
     public void sendToClient(TCB tcb, ByteBuffer replyBuffer)
     {
         replyBuffer.flip();
+
+        if (replyBuffer.hasRemaining())
+            tcb.getSending().offer(replyBuffer);
+
+        flushToClient(tcb);
+    }
+
+    /**
+     * 发送队列中窗口允许的部分, 剩下的等客户端的 ACK 打开窗口后再发送
+     * 每段从回复中直接复制到包中, 不经过中间的数组
+     *
+     * @param tcb
+     */
+    public void flushToClient(TCB tcb)
+    {
+        LinkedList<ByteBuffer> sending = tcb.getSending();
         Packet referencePacket = tcb.referencePacket;
 
-        int readBytes;
-        //按照MTU分割
-        while ((readBytes = Math.min(replyBuffer.remaining(), Packet.MUTE_SIZE - HEADER_SIZE)) > 0)
+        ByteBuffer replyBuffer;
+        while ((replyBuffer = sending.peek()) != null)
         {
-            ByteBuffer segmentBuffer = ByteBuffer.allocate(LocalVPN.BUFFER_SIZE);
+            //按照MTU和窗口分割
+            int readBytes = Math.min(replyBuffer.remaining(), Math.min(Packet.MUTE_SIZE - HEADER_SIZE, tcb.getSendWindow()));
+            if (readBytes <= 0)
+                break;
 
+            ByteBuffer segmentBuffer = ByteBuffer.allocate(HEADER_SIZE + readBytes);
             segmentBuffer.position(HEADER_SIZE);
 
-            byte[] bytes = new byte[readBytes];
-            replyBuffer.get(bytes);
-            segmentBuffer.put(bytes);
+            ByteBuffer slice = replyBuffer.duplicate();
+            slice.limit(slice.position() + readBytes);
+            segmentBuffer.put(slice);
+            replyBuffer.position(replyBuffer.position() + readBytes);
 
             referencePacket.generateTCPBuffer(segmentBuffer, (byte) (Packet.TCPHeader.PSH | Packet.TCPHeader.ACK),
                     tcb, readBytes);
@@ -62,6 +83,22 @@ public abstract class TcpIO {
             segmentBuffer.position(HEADER_SIZE + readBytes);
 
             outputQueue.offer(segmentBuffer);
+
+            if (!replyBuffer.hasRemaining())
+                sending.poll();
+        }
+
+        // 推迟的 FIN 排在所有数据之后
+        if (sending.isEmpty() && tcb.pendingFin != 0)
+        {
+            ByteBuffer finBuffer = ByteBuffer.allocate(LocalVPN.BUFFER_SIZE);
+            referencePacket.generateTCPBuffer(finBuffer, tcb.pendingFin, tcb, 0);
+
+            tcb.incrementSeq(); // FIN counts as a byte
+            tcb.status = TCB.TCBStatus.LAST_ACK;
+            tcb.pendingFin = 0;
+
+            outputQueue.offer(finBuffer);
         }
     }
 }
@@ -0,0 +1,43 @@
+package org.fly.android.localvpn.firewall;
+
+import android.util.Log;
+
+import java.util.zip.Deflater;
+
+/**
+ * 规则回复的压缩配置, grid.json 中的 compression 节点
+ *
+ * <pre>
+ * "compression": {
+ *     "level": 6,            // gzip 的压缩级别 0 ~ 9, -1 为默认
+ *     "precompress": true    // 加载时预先压缩固定的回复, 客户端接受 gzip 时直接发送
+ * }
+ * </pre>
+ */
+public class Compression {
+
+    private static final String TAG = Compression.class.getSimpleName();
+
+    public int level = -1;
+    public boolean precompress = false;
+
+    /**
+     * 无效的级别使用默认值
+     */
+    public void init()
+    {
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION)
+        {
+            Log.w(TAG, "Invalid compression level: " + level);
+            level = Deflater.DEFAULT_COMPRESSION;
+        }
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public boolean isPrecompress() {
+        return precompress;
+    }
+}
@@ -0,0 +1,59 @@
+package org.fly.android.localvpn.firewall;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 上游 TCP 连接的配置, grid.json 中的 connector 节点
+ *
+ * <pre>
+ * "connector": {
+ *     "warm": true,           // 收到 DNS 回复时预先连接解析出的 IP
+ *     "warmPorts": [443, 80], // 预连接的端口
+ *     "warmIdle": 10000,      // 预连接多久没被用上就关闭, 毫秒
+ *     "warmMax": 16,          // 最多同时保留的预连接
+ *     "race": true,           // 连接慢时, 错开地连接同一个域名解析出的其它 IP, 谁先连上用谁
+ *     "raceDelay": 250,       // 每个备选地址之间间隔的毫秒数
+ *     "raceMax": 2            // 最多尝试的备选地址数
+ * }
+ * </pre>
+ */
+public class Connector {
+
+    public boolean warm = false;
+    public List<Integer> warmPorts = new ArrayList<>(Arrays.asList(443, 80));
+    public long warmIdle = 10000;
+    public int warmMax = 16;
+    public boolean race = false;
+    public long raceDelay = 250;
+    public int raceMax = 2;
+
+    public boolean isWarm() {
+        return warm && warmPorts != null && !warmPorts.isEmpty() && warmMax > 0;
+    }
+
+    public List<Integer> getWarmPorts() {
+        return warmPorts;
+    }
+
+    public long getWarmIdle() {
+        return Math.max(0, warmIdle);
+    }
+
+    public int getWarmMax() {
+        return warmMax;
+    }
+
+    public boolean isRace() {
+        return race && raceMax > 0;
+    }
+
+    public long getRaceDelay() {
+        return Math.max(0, raceDelay);
+    }
+
+    public int getRaceMax() {
+        return raceMax;
+    }
+}
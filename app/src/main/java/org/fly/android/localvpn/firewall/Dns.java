@@ -1,111 +1,339 @@
 package org.fly.android.localvpn.firewall;
 
-import org.fly.android.localvpn.LocalVPN;
+import android.util.Log;
+
 import org.fly.android.localvpn.contract.IFirewall;
-import org.fly.protocol.dns.request.Request;
-import org.fly.protocol.dns.response.Response;
+import org.fly.android.localvpn.store.Block;
+import org.fly.android.localvpn.structs.CacheStats;
+import org.fly.protocol.dns.content.DnsReader;
+import org.fly.protocol.dns.content.DnsWriter;
+import org.fly.protocol.dns.response.Template;
 import org.fly.protocol.exception.RequestException;
 import org.fly.protocol.exception.ResponseException;
 
+import java.io.File;
 import java.io.IOException;
-import java.nio.BufferUnderflowException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class Dns implements IFirewall {
 
+    private static final String TAG = Dns.class.getSimpleName();
+
+    // 所有 DNS 会话共用的回复缓存
+    private static final DnsCache cache = new DnsCache();
+    // 等待上游回复的查询
+    private static final DnsInflight inflight = new DnsInflight();
+    // 同一个回复中的多个 IP, 用于连接竞速
+    private static final DnsSiblings siblings = new DnsSiblings();
+    // 打开/加载/关闭持久化缓存, 不占用服务启动的线程
+    private static final ExecutorService storeExecutor = Executors.newSingleThreadExecutor();
+    private static DnsCacheStore store;
+
+    // 读写报文的游标, 每个线程复用一个, 判断/匹配/改写报文时不分配对象
+    private static final ThreadLocal<DnsReader> readers = new ThreadLocal<DnsReader>() {
+        @Override
+        protected DnsReader initialValue() {
+            return new DnsReader();
+        }
+    };
+
+    private static final ThreadLocal<DnsWriter> writers = new ThreadLocal<DnsWriter>() {
+        @Override
+        protected DnsWriter initialValue() {
+            return new DnsWriter();
+        }
+    };
+
     private Firewall firewall;
 
     public Dns(Firewall firewall) {
         this.firewall = firewall;
     }
 
-    private static Request getRequest(ByteBuffer byteBuffer)
+    public static boolean maybe(ByteBuffer readableBuffer)
     {
-        Request request = new Request();
+        DnsReader reader = readers.get();
+
+        if (!reader.reset(readableBuffer) || reader.isResponse() /*|| reader.getOpcode() != 0 */|| reader.getQdCount() <= 0)
+            return false;
+
+        // 所有的问题都完整
+        while (reader.nextQuestion()) {
+            // skip
+        }
+
+        return !reader.isMalformed();
+    }
+
+    /**
+     * 报文中唯一问题的缓存 key (小写的域名 类型 类), 不是一个问题时返回 null
+     */
+    public static String question(ByteBuffer message)
+    {
+        DnsReader reader = readers.get();
+
+        if (!reader.reset(message) || reader.getQdCount() != 1 || !reader.nextQuestion())
+            return null;
+
+        return DnsCache.key(reader);
+    }
+
+    /**
+     * 收到上游的回复, 放入缓存, 并分发给合并到这次查询上的其它客户端
+     *
+     * @param message 完整的回复报文, 从 position 0 开始
+     * @param server 回复来自的服务器, 可以为 null
+     * @param question 原查询的 {@link #question(ByteBuffer)}, 回复的问题和它不一致时不缓存;
+     *                 为 null 时 (每个查询单独的 socket) 用回复自己的问题
+     * @return 需要额外发给其它客户端的回复, 发给原查询者的回复不在其中
+     */
+    public static List<Reply> onResponse(ByteBuffer message, InetSocketAddress server, String question)
+    {
+        List<Reply> replies = new LinkedList<>();
 
         try {
-            request.read(byteBuffer);
+            DnsReader reader = readers.get();
+
+            if (!reader.reset(message) || reader.getQdCount() != 1 || !reader.nextQuestion())
+                return replies;
+
+            String key = DnsCache.key(reader);
+            if (question != null && !question.equals(key))
+                return replies;
+
+            cache.put(reader, key, server);
+
+            if (Firewall.getConnector().isRace() && reader.reset(message))
+                siblings.put(reader);
+
+            List<DnsInflight.Waiter> waiters = inflight.complete(key);
+            if (!waiters.isEmpty())
+            {
+                byte[] bytes = DnsCache.toBytes(message);
+
+                for (DnsInflight.Waiter waiter: waiters
+                     ) {
+                    replies.add(new Reply(waiter.block, DnsCache.reply(bytes, waiter.id, ByteBuffer.wrap(waiter.request))));
+                }
+            }
         } catch (Exception e)
         {
-            return null;
+            Log.w(TAG, "Handle DNS response failed", e);
         }
 
-        return request;
+        return replies;
     }
 
-    public static boolean maybe(ByteBuffer readableBuffer)
+    /**
+     * 生成快要过期的热点记录的刷新查询, 回复到达后和普通回复一样交给 {@link #onResponse}
+     *
+     * @param budget 最多生成的查询数
+     */
+    public static List<PrefetchQuery> prefetch(int budget)
     {
-        Request.Header header = new Request.Header();
+        List<PrefetchQuery> queries = new LinkedList<>();
 
-        try
-        {
-            header.read(readableBuffer.duplicate());
+        for (DnsCache.Prefetch prefetch: cache.prefetch(budget)
+             ) {
+            try {
+                // 头部 + 域名 (最多多出首尾两个字节) + 类型和类
+                ByteBuffer out = ByteBuffer.allocate(DnsReader.HEADER_SIZE + prefetch.name.length() + 2 + 4);
 
-            if (!header.isQuery() /*|| !header.isQueryDomain() */|| header.getQdCount() <= 0)
-                return false;
+                // 事务 ID 由 DnsForwarder 重新分配, RD = 1
+                writers.get().reset(out)
+                        .header(0, 0x0100, 1, 0, 0, 0)
+                        .question(prefetch.name, prefetch.type, prefetch.clazz);
+                out.flip();
 
-        } catch (BufferUnderflowException e)
-        {
-            return false;
+                queries.add(new PrefetchQuery(out, prefetch.server));
+            } catch (Exception e)
+            {
+                Log.w(TAG, "Build prefetch query failed: " + prefetch.name, e);
+            }
         }
 
-        return getRequest(readableBuffer.duplicate()) != null;
+        return queries;
     }
 
-    @Override
-    public LinkedList<ByteBuffer> write(ByteBuffer readableBuffer) throws IOException, RequestException, ResponseException {
+    /**
+     * 在后台打开持久化的缓存文件并恢复没过期的记录, 之后的回复都会写入这个文件
+     */
+    public static void openStore(final File file)
+    {
+        storeExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                if (store != null)
+                    return;
 
-        Request request = getRequest(readableBuffer);
+                long start = System.nanoTime();
 
-        if (request == null || request.getHeader().getQdCount() <= 0)
+                try {
+                    store = DnsCacheStore.open(file);
+                } catch (IOException e)
+                {
+                    Log.w(TAG, "Open DNS cache failed: " + file, e);
+                    return;
+                }
 
-            System.out.println("Invalid DNS");
+                // 先接上写入, 加载期间到达的新回复优先
+                cache.setStore(store);
+                int restored = store.load(cache);
 
-        for (Request.Query record: request.getQuestions()
-             ) {
-            System.out.println("DNS: -- " + firewall.getBlock().getIpAndPort() + " " + record.getName() + "-" + record.getType());
+                Log.d(TAG, "DNS cache restored: " + restored + ", " + (System.nanoTime() - start) / 1000000 + "ms");
+            }
+        });
+    }
+
+    public static void closeStore()
+    {
+        storeExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                if (store == null)
+                    return;
+
+                cache.setStore(null);
+
+                try {
+                    store.close();
+                } catch (IOException e)
+                {
+                    Log.w(TAG, "Close DNS cache failed", e);
+                }
+                store = null;
+            }
+        });
+    }
+
+    /**
+     * 最近的 DNS 回复中和 address 属于同一个域名的其它 IPv4 地址
+     */
+    public static List<InetAddress> getSiblings(InetAddress address) {
+        return siblings.get(address);
+    }
+
+    public static long getCoalescedCount() {
+        return inflight.getCoalesced();
+    }
+
+    public static CacheStats getCacheStats() {
+        return cache.getStats();
+    }
+
+    @Override
+    public LinkedList<ByteBuffer> write(ByteBuffer readableBuffer) throws IOException, RequestException, ResponseException {
+
+        ByteBuffer raw = readableBuffer.duplicate();
+        DnsReader reader = readers.get();
+
+        if (!reader.reset(raw) || reader.getQdCount() <= 0 || !reader.nextQuestion())
+        {
+            Log.w(TAG, "Invalid DNS");
+            firewall.accept();
+            return null;
         }
 
-        Request.Query record = request.getQuestions().get(0);
+        int id = reader.getId();
+        int qdCount = reader.getQdCount();
+        String name = reader.readName(reader.getNameOffset());
+
+        if (Log.isLoggable(TAG, Log.DEBUG))
+            Log.d(TAG, "DNS: -- " + firewall.getBlock().getIpAndPort() + " " + name + "-" + org.fly.protocol.dns.content.Dns.TYPE.from(reader.getType()));
 
-        List<String> table = Firewall.getFilter().matchDns(record.getName(), record.getType());
+        // 命中规则, 用预先编码好的回复应答, 只需要复制问题并填上事务 ID
+        Template template = Firewall.getFilter().matchDns(name, reader.getType());
 
-        if (table != null)
+        if (template != null)
         {
             LinkedList<ByteBuffer> linkedList = new LinkedList<>();
+            linkedList.add(template.reply(reader));
 
-            try {
-                ByteBuffer out = ByteBuffer.allocate(LocalVPN.BUFFER_SIZE);
-                Response response = Response.create(request.getHeader().getId(), record.getName(), table.get(0), record.getType(), 10);
+            firewall.drop();
+            return linkedList;
+        }
 
-                for (int i = 1; i < table.size() ; i++)
-                    response.addAnswer(new org.fly.protocol.dns.content.Dns.Record(record.getName(), record.getType(), table.get(i), 10));
+        if (qdCount == 1)
+        {
+            // reader 还停在问题上
+            String key = DnsCache.key(reader);
 
-                if (request.getHeader().getRd() > 0)
-                {
-                    response.getHeader().setRa(1);
-                    response.getHeader().setRd(1);
-                }
+            // 缓存命中直接回复, 不再转发给上游
+            ByteBuffer cached = cache.get(key, id, raw);
 
-                response.write(out);
-                linkedList.add(out);
+            if (cached != null)
+            {
+                LinkedList<ByteBuffer> linkedList = new LinkedList<>();
+                linkedList.add(cached);
 
                 firewall.drop();
+                return linkedList;
+            }
 
-            } catch (Exception e)
+            // 相同的查询正在等待上游回复, 回复到达时一起分发
+            if (inflight.join(key, firewall.getBlock(), id, raw))
             {
-                e.printStackTrace();
-                firewall.accept();
-                return null;
+                firewall.drop();
+                return new LinkedList<>();
             }
-
-            return linkedList;
         }
 
         firewall.accept();
 
         return null;
     }
+
+    /**
+     * 预取用的查询
+     */
+    public static class PrefetchQuery {
+        private final ByteBuffer buffer;
+        private final InetSocketAddress server;
+
+        PrefetchQuery(ByteBuffer buffer, InetSocketAddress server) {
+            this.buffer = buffer;
+            this.server = server;
+        }
+
+        /**
+         * 已经 flip, 可以直接发送
+         */
+        public ByteBuffer getBuffer() {
+            return buffer;
+        }
+
+        public InetSocketAddress getServer() {
+            return server;
+        }
+    }
+
+    /**
+     * 需要发给某个客户端的 DNS 回复
+     */
+    public static class Reply {
+        private final Block block;
+        private final ByteBuffer buffer;
+
+        Reply(Block block, ByteBuffer buffer) {
+            this.block = block;
+            this.buffer = buffer;
+        }
+
+        public Block getBlock() {
+            return block;
+        }
+
+        /**
+         * position 在末尾, 和 Firewall 的 response 一样
+         */
+        public ByteBuffer getBuffer() {
+            return buffer;
+        }
+    }
 }
@@ -0,0 +1,359 @@
+package org.fly.android.localvpn.firewall;
+
+import android.os.SystemClock;
+
+import org.fly.android.localvpn.structs.BufferUtils;
+import org.fly.android.localvpn.structs.CacheStats;
+import org.fly.android.localvpn.structs.ConcurrentClockCache;
+import org.fly.protocol.dns.content.Dns;
+import org.fly.protocol.dns.content.DnsReader;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 上游 DNS 回复的本地缓存
+ *
+ * 缓存的是原始报文, 命中时只改写事务 ID, 问题中的域名大小写和各条记录的 TTL,
+ * 不需要重新序列化, 未知类型的记录也能原样返回.
+ * NXDOMAIN 和没有记录的回复按 RFC 2308 用 SOA 计算 TTL 做否定缓存.
+ * TTL 内多次命中的记录在快过期时提前向上游刷新.
+ * 可选地写入 {@link DnsCacheStore}, 服务重启后恢复.
+ * 报文都用 {@link DnsReader} 原地读取, 除了 key 和缓存的副本不再分配对象.
+ */
+class DnsCache {
+
+    private static final int MAX_ENTRIES = 2048;
+    // 正常记录最长缓存 1 天
+    private static final long MAX_TTL = 86400;
+    // 否定缓存最长 5 分钟
+    private static final long MAX_NEGATIVE_TTL = 300;
+
+    private static final int HEADER_SIZE = DnsReader.HEADER_SIZE;
+
+    // TTL 内被命中这么多次才算热点, 过期前预取
+    private static final int HOT_HITS = 2;
+    // TTL 太短的不预取
+    private static final long MIN_PREFETCH_TTL = 10000;
+    // 剩余 TTL 小于这个比例时预取
+    private static final int PREFETCH_PERCENT = 10;
+    private static final long MIN_PREFETCH_WINDOW = 2000;
+
+    private final ConcurrentClockCache<String, Entry> entries = new ConcurrentClockCache<>(MAX_ENTRIES);
+    private final CacheStats stats = new CacheStats();
+    // 持久化, 可以为 null
+    private volatile DnsCacheStore store;
+
+    /**
+     * reader 当前所在问题的 key: 小写的域名 类型 类
+     */
+    static String key(DnsReader reader)
+    {
+        return reader.appendName(new StringBuilder(64), reader.getNameOffset(), true)
+                .append(' ').append(reader.getType())
+                .append(' ').append(reader.getClazz())
+                .toString();
+    }
+
+    /**
+     * 缓存一条上游回复
+     *
+     * @param reader 已经 reset 到完整的回复报文 (从 position 0 开始), 停在唯一的问题上
+     * @param key 这个问题的 {@link #key(DnsReader)}
+     * @param server 回复来自的服务器, 预取时发往这里, 可以为 null
+     */
+    void put(DnsReader reader, String key, InetSocketAddress server)
+    {
+        Entry entry = parse(reader, server, SystemClock.elapsedRealtime());
+        if (entry == null)
+            return;
+
+        entries.put(key, entry);
+
+        DnsCacheStore store = this.store;
+        if (store != null)
+        {
+            // 持久化用系统时间
+            long wall = System.currentTimeMillis();
+            store.save(key, entry.message, wall, wall + entry.expiresAt - entry.createdAt, server);
+        }
+    }
+
+    /**
+     * 恢复一条持久化的回复, 已经过期或者已有更新的记录时忽略
+     *
+     * @param createdAt 写入时的系统时间
+     * @param expiresAt 过期时的系统时间
+     * @return 是否恢复
+     */
+    boolean restore(byte[] message, long createdAt, long expiresAt, InetSocketAddress server)
+    {
+        long wall = System.currentTimeMillis();
+        // 系统时间被往回调过, 算不出剩余的 TTL
+        if (expiresAt <= wall || createdAt > wall)
+            return false;
+
+        DnsReader reader = new DnsReader();
+        if (!reader.reset(ByteBuffer.wrap(message)) || reader.getQdCount() != 1 || !reader.nextQuestion())
+            return false;
+
+        String key = key(reader);
+        Entry entry = parse(reader, server, SystemClock.elapsedRealtime() - (wall - createdAt));
+
+        return entry != null && SystemClock.elapsedRealtime() < entry.expiresAt && entries.putIfAbsent(key, entry);
+    }
+
+    /**
+     * 之后的回复都写入 store, 为 null 时停止
+     */
+    void setStore(DnsCacheStore store) {
+        this.store = store;
+    }
+
+    /**
+     * @param createdAt 收到回复的时间 (elapsedRealtime)
+     * @return 不能缓存时返回 null
+     */
+    private static Entry parse(DnsReader reader, InetSocketAddress server, long createdAt)
+    {
+        if (!reader.isResponse() || reader.isTruncated() || reader.getQdCount() != 1)
+            return null;
+
+        int rcode = reader.getRcode();
+        if (rcode != Dns.RCODE.OK.getValue() && rcode != Dns.RCODE.NAME_ERROR.getValue())
+            return null;
+
+        int type = reader.getType();
+        int clazz = reader.getClazz();
+        String name = reader.readName(reader.getNameOffset());
+
+        long answerTtl = Long.MAX_VALUE;
+        long negativeTtl = 0;
+        boolean soa = false;
+
+        int[] ttlOffsets = new int[reader.getAnCount() + reader.getNsCount() + reader.getArCount()];
+        int count = 0;
+
+        while (reader.nextRecord())
+        {
+            // OPT 的 TTL 字段是扩展标志位
+            if (reader.getType() == Dns.TYPE.OPT.getValue())
+                continue;
+
+            ttlOffsets[count++] = reader.getTtlOffset() - reader.getBase();
+
+            if (reader.getSection() == DnsReader.SECTION_ANSWER)
+            {
+                answerTtl = Math.min(answerTtl, reader.getTtl());
+            } else if (reader.getSection() == DnsReader.SECTION_AUTHORITY && reader.getType() == Dns.TYPE.SOA.getValue() && !soa) {
+                // min(SOA 的 TTL, SOA 的 MINIMUM)
+                negativeTtl = reader.getTtl();
+                if (reader.getRdLength() >= 4)
+                    negativeTtl = Math.min(negativeTtl, reader.u32(reader.getRdataOffset() + reader.getRdLength() - 4));
+                soa = true;
+            }
+        }
+
+        if (reader.isMalformed())
+            return null;
+
+        long ttl;
+        if (rcode == Dns.RCODE.OK.getValue() && reader.getAnCount() > 0)
+            ttl = Math.min(answerTtl == Long.MAX_VALUE ? 0 : answerTtl, MAX_TTL);
+        else
+            // 没有 SOA 则不缓存
+            ttl = Math.min(negativeTtl, MAX_NEGATIVE_TTL);
+
+        if (ttl <= 0)
+            return null;
+
+        if (count < ttlOffsets.length)
+        {
+            int[] trimmed = new int[count];
+            System.arraycopy(ttlOffsets, 0, trimmed, 0, count);
+            ttlOffsets = trimmed;
+        }
+
+        byte[] bytes = toBytes(reader.getBuffer());
+
+        return new Entry(name, type, clazz, server, bytes, ttlOffsets, createdAt, createdAt + ttl * 1000);
+    }
+
+    /**
+     * 用缓存的回复应答 key 对应的查询, 没有或者已经过期返回 null
+     *
+     * @param request 客户端的查询报文, 从 position 0 开始
+     * @return 写好的回复, position 在末尾
+     */
+    ByteBuffer get(String key, int id, ByteBuffer request)
+    {
+        Entry entry = entries.get(key);
+
+        long now = SystemClock.elapsedRealtime();
+        if (entry == null || now >= entry.expiresAt)
+        {
+            if (entry != null)
+                entries.remove(key);
+
+            stats.miss();
+            return null;
+        }
+
+        stats.hit();
+        entry.hits.incrementAndGet();
+
+        ByteBuffer out = reply(entry.message, id, request);
+
+        long elapsed = (now - entry.createdAt) / 1000;
+        for (int offset : entry.ttlOffsets) {
+            long ttl = BufferUtils.getUnsignedInt(out, offset);
+            BufferUtils.putUnsignedInt(out, offset, Math.max(0, ttl - elapsed));
+        }
+
+        return out;
+    }
+
+    /**
+     * 把一份上游回复改写成给某个客户端的回复: 替换事务 ID 和问题中的域名
+     *
+     * @param request 客户端的查询报文, 从 position 0 开始
+     * @return 写好的回复, position 在末尾
+     */
+    static ByteBuffer reply(byte[] message, int id, ByteBuffer request)
+    {
+        ByteBuffer out = ByteBuffer.allocate(message.length);
+        out.put(message);
+
+        BufferUtils.putUnsignedShort(out, 0, id);
+
+        // 客户端可能用 0x20 随机大小写校验回复, 原样带回查询中的域名
+        int length = nameLength(request, HEADER_SIZE);
+        if (length > 0 && length == nameLength(out, HEADER_SIZE))
+        {
+            for (int i = HEADER_SIZE; i < HEADER_SIZE + length; i++)
+                out.put(i, request.get(i));
+        }
+
+        return out;
+    }
+
+    static byte[] toBytes(ByteBuffer message)
+    {
+        ByteBuffer source = message.duplicate();
+        source.position(0);
+        byte[] bytes = new byte[source.limit()];
+        source.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * 挑出快要过期的热点记录, 标记为正在预取
+     *
+     * @param budget 最多返回的数量
+     */
+    List<Prefetch> prefetch(int budget)
+    {
+        List<Prefetch> list = new ArrayList<>();
+        long now = SystemClock.elapsedRealtime();
+
+        for (Entry entry: entries.values()
+             ) {
+            if (list.size() >= budget)
+                break;
+
+            long ttl = entry.expiresAt - entry.createdAt;
+            long remaining = entry.expiresAt - now;
+
+            if (entry.server == null || ttl < MIN_PREFETCH_TTL || remaining <= 0 || entry.hits.get() < HOT_HITS)
+                continue;
+
+            if (remaining > Math.max(ttl * PREFETCH_PERCENT / 100, MIN_PREFETCH_WINDOW))
+                continue;
+
+            if (entry.prefetching.compareAndSet(false, true))
+                list.add(new Prefetch(entry.name, entry.type, entry.clazz, entry.server));
+        }
+
+        return list;
+    }
+
+    CacheStats getStats() {
+        return stats;
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    void clear() {
+        entries.clear();
+    }
+
+    /**
+     * 未压缩域名在报文中占用的字节数, 遇到压缩指针或越界返回 -1
+     */
+    private static int nameLength(ByteBuffer buffer, int offset)
+    {
+        int position = offset;
+        int limit = buffer.limit();
+
+        while (position < limit)
+        {
+            int length = buffer.get(position) & 0xff;
+            if (length == 0)
+                return position + 1 - offset;
+            if ((length & 0xc0) != 0)
+                return -1;
+
+            position += length + 1;
+        }
+
+        return -1;
+    }
+
+    private static class Entry {
+        final String name;
+        final int type;
+        final int clazz;
+        final InetSocketAddress server;
+        final byte[] message;
+        final int[] ttlOffsets;
+        final long createdAt;
+        final long expiresAt;
+
+        final AtomicInteger hits = new AtomicInteger();
+        final AtomicBoolean prefetching = new AtomicBoolean(false);
+
+        Entry(String name, int type, int clazz, InetSocketAddress server, byte[] message, int[] ttlOffsets, long createdAt, long expiresAt) {
+            this.name = name;
+            this.type = type;
+            this.clazz = clazz;
+            this.server = server;
+            this.message = message;
+            this.ttlOffsets = ttlOffsets;
+            this.createdAt = createdAt;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * 需要重新向上游查询的记录
+     */
+    static class Prefetch {
+        final String name;
+        final int type;
+        final int clazz;
+        final InetSocketAddress server;
+
+        Prefetch(String name, int type, int clazz, InetSocketAddress server) {
+            this.name = name;
+            this.type = type;
+            this.clazz = clazz;
+            this.server = server;
+        }
+    }
+}
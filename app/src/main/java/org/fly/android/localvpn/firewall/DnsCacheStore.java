@@ -0,0 +1,235 @@
+package org.fly.android.localvpn.firewall;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * DNS 缓存的持久化, 服务重启之后不用等上游就能回复
+ *
+ * 文件是固定数量, 固定大小的槽位, 整个 mmap 进来, 写入就是内存拷贝, 由系统回写.
+ * key 的哈希直接决定槽位, 冲突时新的覆盖旧的, 所以文件大小固定为 SLOTS * SLOT_SIZE.
+ *
+ * <pre>
+ * 槽位: length(4) crc(4) createdAt(8) expiresAt(8) addressLength(1) address(16) port(2) ... message
+ * </pre>
+ * 时间是系统时间, length 最后写, 为 0 表示空槽位; crc 覆盖 length 之后的内容, 防止写了一半的槽位
+ */
+class DnsCacheStore implements Closeable {
+
+    private static final String TAG = DnsCacheStore.class.getSimpleName();
+
+    private static final int MAGIC = 0x444e5343; // DNSC
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+
+    static final int SLOTS = 1024;
+    static final int SLOT_SIZE = 1024;
+
+    private static final int SLOT_HEADER = 48;
+    private static final int CREATED_AT = 8;
+    private static final int EXPIRES_AT = 16;
+    private static final int ADDRESS = 24;
+    private static final int PORT = 41;
+
+    // 放不下的回复不持久化
+    static final int MAX_MESSAGE = SLOT_SIZE - SLOT_HEADER;
+
+    private static final byte[] EMPTY_ADDRESS = new byte[16];
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+    private final CRC32 crc = new CRC32();
+    // save 时 crc 用的槽位头
+    private final byte[] header = new byte[SLOT_HEADER - CREATED_AT];
+
+    private DnsCacheStore(RandomAccessFile file, MappedByteBuffer buffer) {
+        this.file = file;
+        this.buffer = buffer;
+    }
+
+    /**
+     * 打开或创建缓存文件, 格式不对时清空重建
+     */
+    static DnsCacheStore open(File path) throws IOException
+    {
+        long size = HEADER_SIZE + (long) SLOTS * SLOT_SIZE;
+        RandomAccessFile file = new RandomAccessFile(path, "rw");
+
+        try {
+            boolean valid = file.length() == size;
+            if (valid)
+            {
+                file.seek(0);
+                valid = file.readInt() == MAGIC && file.readInt() == VERSION
+                        && file.readInt() == SLOTS && file.readInt() == SLOT_SIZE;
+            }
+
+            if (!valid)
+            {
+                // 清空, 所有槽位的 length 都是 0
+                file.setLength(0);
+                file.setLength(size);
+            }
+
+            MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+            if (!valid)
+                buffer.putInt(0, MAGIC).putInt(4, VERSION).putInt(8, SLOTS).putInt(12, SLOT_SIZE);
+
+            return new DnsCacheStore(file, buffer);
+        } catch (IOException | RuntimeException e)
+        {
+            file.close();
+            throw e;
+        }
+    }
+
+    private static int slot(String key)
+    {
+        int hash = key.hashCode();
+        hash ^= hash >>> 16;
+        return HEADER_SIZE + (hash & (SLOTS - 1)) * SLOT_SIZE;
+    }
+
+    /**
+     * @param createdAt 写入的系统时间
+     * @param expiresAt 过期的系统时间
+     */
+    synchronized void save(String key, byte[] message, long createdAt, long expiresAt, InetSocketAddress server)
+    {
+        if (message.length > MAX_MESSAGE)
+            return;
+
+        int slot = slot(key);
+
+        try {
+            buffer.putInt(slot, 0);
+
+            buffer.putLong(slot + CREATED_AT, createdAt);
+            buffer.putLong(slot + EXPIRES_AT, expiresAt);
+
+            byte[] address = server == null || server.getAddress() == null ? new byte[0] : server.getAddress().getAddress();
+            buffer.put(slot + ADDRESS, (byte) address.length);
+            at(slot + ADDRESS + 1).put(address).put(EMPTY_ADDRESS, 0, 16 - address.length);
+            buffer.putShort(slot + PORT, (short) (server == null ? 0 : server.getPort()));
+
+            at(slot + SLOT_HEADER).put(message);
+
+            buffer.putInt(slot + 4, checksum(crc, header, slot, message));
+            buffer.putInt(slot, message.length);
+        } catch (RuntimeException e)
+        {
+            // 映射的文件被删除或者磁盘已满时会抛 InternalError/BufferOverflow 之类的异常, 不影响内存中的缓存
+            Log.w(TAG, "Save DNS cache failed", e);
+        }
+    }
+
+    /**
+     * 读出所有没过期的槽位
+     *
+     * @return 恢复的数量
+     */
+    int load(DnsCache cache)
+    {
+        CRC32 crc = new CRC32();
+        byte[] header = new byte[SLOT_HEADER - CREATED_AT];
+        long now = System.currentTimeMillis();
+        int restored = 0;
+
+        for (int i = 0; i < SLOTS; i++)
+        {
+            int slot = HEADER_SIZE + i * SLOT_SIZE;
+            byte[] message;
+            long createdAt;
+            long expiresAt;
+            InetSocketAddress server;
+
+            synchronized (this)
+            {
+                int length = buffer.getInt(slot);
+                if (length <= 0 || length > MAX_MESSAGE)
+                    continue;
+
+                expiresAt = buffer.getLong(slot + EXPIRES_AT);
+                if (expiresAt <= now)
+                    continue;
+
+                message = new byte[length];
+                at(slot + SLOT_HEADER).get(message);
+
+                if (checksum(crc, header, slot, message) != buffer.getInt(slot + 4))
+                    continue;
+
+                createdAt = buffer.getLong(slot + CREATED_AT);
+                server = address(slot);
+            }
+
+            if (cache.restore(message, createdAt, expiresAt, server))
+                restored++;
+        }
+
+        return restored;
+    }
+
+    private InetSocketAddress address(int slot)
+    {
+        int length = buffer.get(slot + ADDRESS) & 0xff;
+        if (length != 4 && length != 16)
+            return null;
+
+        byte[] address = new byte[length];
+        at(slot + ADDRESS + 1).get(address);
+
+        try {
+            return new InetSocketAddress(InetAddress.getByAddress(address), buffer.getShort(slot + PORT) & 0xffff);
+        } catch (IOException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * 从 offset 开始读写的视图, 用于整块复制
+     */
+    private ByteBuffer at(int offset)
+    {
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        return view;
+    }
+
+    /**
+     * crc 覆盖时间, 地址和报文
+     *
+     * @param header 读取槽位头用的数组
+     */
+    private int checksum(CRC32 crc, byte[] header, int slot, byte[] message)
+    {
+        at(slot + CREATED_AT).get(header);
+
+        crc.reset();
+        crc.update(header);
+        crc.update(message);
+        return (int) crc.getValue();
+    }
+
+    @Override
+    public synchronized void close() throws IOException
+    {
+        try {
+            buffer.force();
+        } finally {
+            file.close();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package org.fly.android.localvpn.firewall;
+
+import android.os.SystemClock;
+
+import org.fly.android.localvpn.store.Block;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 正在等待上游回复的 DNS 查询
+ *
+ * 同一个 (qname, qtype, class) 只有第一个查询发往上游, 之后的查询挂在它后面,
+ * 回复到达时按各自的事务 ID 分发给所有等待的客户端
+ */
+class DnsInflight {
+
+    // 超过这个时间没有回复, 下一个查询重新发往上游
+    private static final long TIMEOUT = 3000;
+    private static final int MAX_FLIGHTS = 256;
+
+    private final ConcurrentHashMap<String, Flight> flights = new ConcurrentHashMap<>();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * @param request 客户端的查询报文, 从 position 0 开始
+     * @return true 表示已经有相同的查询在进行, 不需要再发往上游
+     */
+    boolean join(String key, Block block, int id, ByteBuffer request)
+    {
+        long now = SystemClock.elapsedRealtime();
+
+        while (true)
+        {
+            Flight flight = flights.get(key);
+
+            if (flight == null || now - flight.startedAt >= TIMEOUT)
+            {
+                Flight leader = new Flight(now);
+
+                boolean replaced = flight == null
+                        ? flights.putIfAbsent(key, leader) == null
+                        : flights.replace(key, flight, leader);
+
+                if (!replaced)
+                    continue;
+
+                if (flights.size() > MAX_FLIGHTS)
+                    purge(now);
+
+                return false;
+            }
+
+            if (flight.add(new Waiter(block, id, DnsCache.toBytes(request))))
+            {
+                coalesced.incrementAndGet();
+                return true;
+            }
+            // 回复刚好到达, flight 已经结束, 重试
+        }
+    }
+
+    /**
+     * 上游回复到达, 返回所有等待的客户端
+     */
+    List<Waiter> complete(String key)
+    {
+        Flight flight = flights.remove(key);
+
+        return flight == null ? Collections.<Waiter>emptyList() : flight.close();
+    }
+
+    long getCoalesced() {
+        return coalesced.get();
+    }
+
+    private void purge(long now)
+    {
+        Iterator<Map.Entry<String, Flight>> it = flights.entrySet().iterator();
+        while (it.hasNext())
+        {
+            if (now - it.next().getValue().startedAt >= TIMEOUT)
+                it.remove();
+        }
+    }
+
+    private static class Flight {
+        final long startedAt;
+        private List<Waiter> waiters = new ArrayList<>();
+
+        Flight(long startedAt) {
+            this.startedAt = startedAt;
+        }
+
+        synchronized boolean add(Waiter waiter)
+        {
+            if (waiters == null)
+                return false;
+
+            waiters.add(waiter);
+            return true;
+        }
+
+        synchronized List<Waiter> close()
+        {
+            List<Waiter> list = waiters;
+            waiters = null;
+            return list == null ? Collections.<Waiter>emptyList() : list;
+        }
+    }
+
+    static class Waiter {
+        final Block block;
+        final int id;
+        // 原始查询报文
+        final byte[] request;
+
+        Waiter(Block block, int id, byte[] request) {
+            this.block = block;
+            this.id = id;
+            this.request = request;
+        }
+    }
+}
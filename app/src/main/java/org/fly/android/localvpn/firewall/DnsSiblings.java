@@ -0,0 +1,109 @@
+package org.fly.android.localvpn.firewall;
+
+import android.os.SystemClock;
+
+import org.fly.android.localvpn.structs.ConcurrentClockCache;
+import org.fly.protocol.dns.content.Dns;
+import org.fly.protocol.dns.content.DnsReader;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 同一个回复中的多个 A 记录互为备选地址
+ *
+ * 记录 IP -> 同组的其它 IP, 连接某个 IP 很慢时可以换到同一个域名的其它 IP
+ */
+class DnsSiblings {
+
+    private static final int MAX_ENTRIES = 1024;
+    // 一组最多记录的地址
+    private static final int MAX_ADDRESSES = 8;
+    // TTL 很短的回复也保留一会儿, 备选地址只是尝试, 过期的影响不大
+    private static final long MIN_TTL = 30;
+    private static final long MAX_TTL = 3600;
+
+    private final ConcurrentClockCache<InetAddress, Group> groups = new ConcurrentClockCache<>(MAX_ENTRIES);
+
+    /**
+     * @param reader 已经 reset 到回复报文
+     */
+    void put(DnsReader reader)
+    {
+        if (!reader.isResponse() || reader.getRcode() != Dns.RCODE.OK.getValue() || reader.getAnCount() < 2)
+            return;
+
+        List<InetAddress> addresses = new ArrayList<>();
+        long ttl = MAX_TTL;
+
+        while (addresses.size() < MAX_ADDRESSES && reader.nextRecord())
+        {
+            if (reader.getSection() != DnsReader.SECTION_ANSWER)
+                break;
+
+            if (reader.getType() != Dns.TYPE.A.getValue() || reader.getRdLength() != 4)
+                continue;
+
+            byte[] ip = new byte[4];
+            for (int i = 0; i < 4; i++)
+                ip[i] = (byte) reader.u8(reader.getRdataOffset() + i);
+
+            try {
+                addresses.add(InetAddress.getByAddress(ip));
+            } catch (UnknownHostException e)
+            {
+                continue;
+            }
+
+            ttl = Math.min(ttl, reader.getTtl());
+        }
+
+        if (addresses.size() < 2)
+            return;
+
+        Group group = new Group(addresses.toArray(new InetAddress[addresses.size()]),
+                SystemClock.elapsedRealtime() + Math.max(ttl, MIN_TTL) * 1000);
+
+        for (InetAddress address: group.addresses
+             ) {
+            groups.put(address, group);
+        }
+    }
+
+    /**
+     * 和 address 同组的其它地址, 按回复中的顺序
+     */
+    List<InetAddress> get(InetAddress address)
+    {
+        Group group = groups.get(address);
+        if (group == null)
+            return Collections.emptyList();
+
+        if (SystemClock.elapsedRealtime() >= group.expiresAt)
+        {
+            groups.remove(address);
+            return Collections.emptyList();
+        }
+
+        List<InetAddress> list = new ArrayList<>(group.addresses.length - 1);
+        for (InetAddress sibling: group.addresses
+             ) {
+            if (!sibling.equals(address))
+                list.add(sibling);
+        }
+        return list;
+    }
+
+    private static class Group {
+        final InetAddress[] addresses;
+        final long expiresAt;
+
+        Group(InetAddress[] addresses, long expiresAt) {
+            this.addresses = addresses;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
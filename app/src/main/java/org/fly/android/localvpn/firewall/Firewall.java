@@ -1,34 +1,172 @@
 package org.fly.android.localvpn.firewall;
 
+import android.os.FileObserver;
 import android.util.Log;
 
+import org.apache.commons.codec.digest.DigestUtils;
 import org.fly.android.localvpn.LocalVPN;
 import org.fly.android.localvpn.Packet;
 import org.fly.android.localvpn.contract.IFirewall;
 import org.fly.android.localvpn.store.Block;
+import org.fly.android.localvpn.structs.CacheStats;
+import org.fly.android.localvpn.structs.ConcurrentClockCache;
+import org.fly.android.localvpn.structs.IoUtils;
+import org.fly.protocol.dns.response.Template;
 import org.fly.protocol.exception.RequestException;
 import org.fly.protocol.exception.ResponseException;
 import org.fly.protocol.http.request.Method;
+import org.fly.protocol.http.response.ResponseTemplate;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.LinkedList;
-import java.util.List;
-import java.util.Timer;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class Firewall {
 
     private static final String TAG = Firewall.class.getSimpleName();
-    private static Filter filter;
+
+    // 编译好的规则快照, 只整体替换, 匹配时不加锁
+    private static volatile Filter filter = Filter.empty();
 
     private static final int PROTOCOL_GRID = 0xa101;
 
-    public static void createTable(String config) {
-        filter = new Filter(config);
+    private static final CacheStats dnsStats = new CacheStats();
+    private static final CacheStats httpStats = new CacheStats();
+
+    private static final ExecutorService reloadExecutor = Executors.newSingleThreadExecutor();
+    private static FileObserver gridObserver;
+    // blocklist 等相对路径的根目录
+    private static volatile File directory;
+    // 编译后规则快照的目录
+    private static volatile File cacheDirectory;
+
+    public static void setDirectory(File directory) {
+        Firewall.directory = directory;
+    }
+
+    public static void setCacheDirectory(File cacheDirectory) {
+        Firewall.cacheDirectory = cacheDirectory;
+    }
+
+    /**
+     * 同步编译规则并替换
+     *
+     * @return 规则无效时返回 false, 保留旧规则
+     */
+    public static boolean createTable(String config) {
+        return install(config);
+    }
+
+    /**
+     * 同步读取文件, 编译规则并替换
+     *
+     * @return 文件不能读取或者规则无效时返回 false, 保留旧规则
+     */
+    public static boolean createTable(File file) {
+        try {
+            return install(IoUtils.readUtf8(file));
+        } catch (IOException e) {
+            Log.e(TAG, "Load grid failed: " + file, e);
+        }
+        return false;
+    }
+
+    /**
+     * 在后台线程编译新规则, 编译成功后原子替换, 失败则保留旧规则
+     * 正在进行中的连接下一次匹配就会使用新规则
+     */
+    public static Future<?> reload(final String config) {
+        return reloadExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                install(config);
+            }
+        });
+    }
+
+    public static Future<?> reload(final File file) {
+        return reloadExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    install(IoUtils.readUtf8(file));
+                } catch (IOException e) {
+                    Log.e(TAG, "Reload grid failed: " + file, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * hash 只在内存中: 同一个进程中重复加载 (Activity 重建, 文件监听) 时跳过,
+     * 进程启动时总要编译一次, blocklist 从快照映射, 不需要重新解析
+     *
+     * @return 已经安装或者没有变化时返回 true
+     */
+    private static synchronized boolean install(String config) {
+        long start = System.nanoTime();
+        String hash = DigestUtils.sha1Hex(config);
+
+        // 内容和引用的文件都没有变化, 不用重新编译
+        Filter current = filter;
+        if (hash.equals(current.hash) && !current.grid.isStale())
+        {
+            Log.d(TAG, "Grid unchanged, skip");
+            return true;
+        }
+
+        Filter table = compile(config, hash);
+
+        if (table == null)
+            return false;
+
+        filter = table;
+        Log.i(TAG, "Grid installed in " + (System.nanoTime() - start) / 1000000 + "ms");
+        return true;
+    }
+
+    /**
+     * 监听规则文件, 文件写入完成 (或被 mv 覆盖) 后自动重新加载
+     * 文件已存在则立即加载一次
+     */
+    public static synchronized void watch(final File file) {
+        if (gridObserver != null)
+            gridObserver.stopWatching();
+
+        File directory = file.getAbsoluteFile().getParentFile();
+
+        // FileObserver 只能监听已存在的路径, 所以监听所在目录
+        gridObserver = new FileObserver(directory.getAbsolutePath(), FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO) {
+            @Override
+            public void onEvent(int event, String path) {
+                if (file.getName().equals(path))
+                    reload(file);
+            }
+        };
+        gridObserver.startWatching();
+
+        if (file.exists())
+            reload(file);
+    }
+
+    private static Filter compile(String config, String hash) {
+        try {
+            Grid grid = Grid.fromJson(Grid.class, config);
+            grid.init(directory, cacheDirectory);
+
+            return new Filter(grid, hash);
+        } catch (IOException | RuntimeException e)
+        {
+            Log.e(TAG, "Invalid grid: " + e.toString(), e);
+        }
+
+        return null;
     }
 
     private enum Status {
@@ -115,6 +253,16 @@ public class Firewall {
         status = Status.DROP;
     }
 
+    /**
+     * 只转发 buffers, 本次写入的其它数据丢弃 (管线化的请求中有的命中了规则)
+     */
+    public void pass(LinkedList<ByteBuffer> buffers)
+    {
+        clear();
+        session.addAll(buffers);
+        status = Status.ACCEPT;
+    }
+
     private void handle(ByteBuffer readableBuffer) {
 
         // 第一个包就可以判断出是什么协议
@@ -147,6 +295,10 @@ public class Firewall {
         }
         catch (IOException | RequestException | ResponseException e)
         {
+            // 之前还没决定的数据也一起放行
+            if (protocol instanceof Http)
+                session.addAll(0, ((Http) protocol).takeHeld());
+
             protocol = other;
             accept();
 
@@ -158,6 +310,65 @@ public class Firewall {
         return filter;
     }
 
+    /**
+     * 当前规则中的上游 DNS 配置
+     */
+    public static Resolver getResolver() {
+        return filter.grid.resolver;
+    }
+
+    /**
+     * 当前规则中的上游 TCP 连接配置
+     */
+    public static Connector getConnector() {
+        return filter.grid.connector;
+    }
+
+    /**
+     * 当前规则中的流量观察配置
+     */
+    public static Inspector getInspector() {
+        return filter.grid.inspector;
+    }
+
+    /**
+     * 上游回复的数据, 只观察, 不影响转发
+     */
+    public void read(ByteBuffer byteBuffer)
+    {
+        if (protocol instanceof Http)
+            ((Http) protocol).read(byteBuffer);
+    }
+
+    /**
+     * 上游回复的数据, 插入排队的规则回复
+     *
+     * @return null 表示原样发送
+     */
+    public LinkedList<ByteBuffer> reorder(ByteBuffer byteBuffer)
+    {
+        return protocol instanceof Http ? ((Http) protocol).reorder(byteBuffer) : null;
+    }
+
+    /**
+     * 上游关闭了连接后还要发送的规则回复
+     *
+     * @return null 表示没有
+     */
+    public LinkedList<ByteBuffer> reorderEnd()
+    {
+        return protocol instanceof Http ? ((Http) protocol).reorderEnd() : null;
+    }
+
+    /**
+     * 上游关闭了连接
+     */
+    public void readEnd()
+    {
+        if (protocol instanceof Http)
+            ((Http) protocol).readEnd();
+    }
+
     public Status getStatus() {
         return status;
     }
@@ -174,74 +385,126 @@ public class Firewall {
         return block;
     }
 
+    public static CacheStats getDnsStats() {
+        return dnsStats;
+    }
+
+    public static CacheStats getHttpStats() {
+        return httpStats;
+    }
+
+    /**
+     * 不可变的规则快照, 匹配结果缓存随快照一起替换
+     */
     static class Filter {
-        private Grid grid;
-        private ReadWriteLock readWriteLock = new ReentrantReadWriteLock();
-        private Timer timer;
+        // 缓存的匹配结果数量
+        private static final int MAX_DECISIONS = 4096;
 
-        public Filter(String config) {
-            try {
-                Grid grid = Grid.fromJson(Grid.class, config);
-                setGrid(grid);
-            } catch (IOException e)
-            {
-                Log.e(TAG, e.toString(), e);
-            }
+        private final Grid grid;
+        // 源 json 的 sha1
+        private final String hash;
 
-        }
+        // 规则匹配结果的缓存, 包括没有命中的结果
+        private final ConcurrentClockCache<String, Decision<Template>> dnsDecisions = new ConcurrentClockCache<>(MAX_DECISIONS);
+        private final ConcurrentClockCache<String, Decision<ResponseTemplate>> httpDecisions = new ConcurrentClockCache<>(MAX_DECISIONS);
 
-        void setGrid(Grid grid)
-        {
-            readWriteLock.writeLock().lock();
+        /**
+         * @param grid 已经 init 过的 Grid
+         */
+        Filter(Grid grid, String hash) {
             this.grid = grid;
+            this.hash = hash;
+        }
+
+        static Filter empty() {
+            Grid grid = new Grid();
             grid.init();
-            readWriteLock.writeLock().unlock();
+            return new Filter(grid, "");
         }
 
-        public String matchHttp(String url, Method method)
+        public ResponseTemplate matchHttp(String url, Method method)
         {
-            if (grid == null)
-                return null;
-
-            readWriteLock.readLock().lock();
+            long start = System.nanoTime();
 
             try {
-                String result;
+                String key = method.name() + " " + url;
+                Decision<ResponseTemplate> decision = httpDecisions.get(key);
+
+                if (decision != null)
+                {
+                    httpStats.hit();
+                    return decision.value;
+                }
+
+                httpStats.miss();
+
+                ResponseTemplate result;
 
                 result = grid.matchHttp(url, method);
+                httpDecisions.put(key, Decision.of(result));
                 return result;
 
             } catch (Exception e) {
                 e.printStackTrace();
             } finally {
-                readWriteLock.readLock().unlock();
+                httpStats.lookup(System.nanoTime() - start);
             }
 
             return null;
         }
 
-        public List<String> matchDns(String domain, org.fly.protocol.dns.content.Dns.TYPE type)
+        /**
+         * @param type 查询的类型值
+         * @return 预先编码好的回复, 没有命中返回 null
+         */
+        public Template matchDns(String domain, int type)
         {
-            if (grid == null)
-                return null;
-
-            readWriteLock.readLock().lock();
+            long start = System.nanoTime();
 
             try {
-                List<String> list;
+                String key = type + " " + domain.toLowerCase(Locale.US);
+                Decision<Template> decision = dnsDecisions.get(key);
+
+                if (decision != null)
+                {
+                    dnsStats.hit();
+                    return decision.value;
+                }
 
-                list = grid.matchDns(domain, type);
-                return list;
+                dnsStats.miss();
+
+                Template template;
+
+                template = grid.matchDns(domain, type);
+                dnsDecisions.put(key, Decision.of(template));
+                return template;
 
             } catch (Exception e) {
                 e.printStackTrace();
             } finally
             {
-                readWriteLock.readLock().unlock();
+                dnsStats.lookup(System.nanoTime() - start);
             }
 
             return null;
         }
     }
-}
 
+    /**
+     * 匹配结果, value 为 null 表示没有命中规则
+     */
+    private static class Decision<T> {
+        private static final Decision<?> NONE = new Decision<>(null);
+
+        final T value;
+
+        private Decision(T value) {
+            this.value = value;
+        }
+
+        @SuppressWarnings("unchecked")
+        static <T> Decision<T> of(T value) {
+            return value == null ? (Decision<T>) NONE : new Decision<>(value);
+        }
+    }
+}
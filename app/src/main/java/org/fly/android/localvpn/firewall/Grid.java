@@ -1,95 +1,384 @@
 package org.fly.android.localvpn.firewall;
 
+import android.util.Log;
+
 import com.fasterxml.jackson.annotation.JsonIgnore;
 
+import org.apache.commons.codec.digest.DigestUtils;
+import org.fly.android.localvpn.structs.DomainSet;
 import org.fly.android.localvpn.structs.Jacksonable;
+import org.fly.protocol.dns.response.Template;
 import org.fly.protocol.http.request.Method;
+import org.fly.protocol.http.response.ResponseTemplate;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 class Grid extends Jacksonable {
 
-    public Map<String, Dns> dns = new HashMap<>();
-    public Map<String, Http> http = new HashMap<>();
+    private static final String TAG = Grid.class.getSimpleName();
+
+    // 规则生成的回复的 TTL
+    static final long DNS_TTL = 10;
+
+    // 规则按声明顺序匹配, 需要保持顺序
+    public Map<String, Dns> dns = new LinkedHashMap<>();
+    public Map<String, Http> http = new LinkedHashMap<>();
+    // hosts 文件/域名列表, 优先级低于 dns 规则
+    public List<Blocklist> blocklist = new ArrayList<>();
+    // 上游 DNS
+    public Resolver resolver = new Resolver();
+    // 上游 TCP 连接
+    public Connector connector = new Connector();
+    // 流量观察
+    public Inspector inspector = new Inspector();
+    // 规则回复的压缩
+    public Compression compression = new Compression();
+
+    @JsonIgnore
+    private RuleIndex<Dns> dnsIndex;
+    @JsonIgnore
+    private RuleIndex<Http> httpIndex;
 
     public void init()
     {
+        init(null, null);
+    }
+
+    /**
+     * @param directory blocklist 中相对路径的根目录
+     * @param cacheDirectory blocklist 编译后快照的存放目录, 为 null 时不缓存
+     */
+    public void init(File directory, File cacheDirectory)
+    {
+        dnsIndex = new RuleIndex<>(dns);
+
         for (Map.Entry<String, Dns> entry: dns.entrySet()
-                ) {
-            entry.getValue().pattern = Pattern.compile(entry.getKey(), Pattern.CASE_INSENSITIVE);
+             ) {
+            if (entry.getValue() != null)
+                entry.getValue().compile(entry.getKey());
         }
+        httpIndex = new RuleIndex<>(http);
+
+        // 级别只用于这份规则的预压缩, 不改全局状态
+        if (compression == null)
+            compression = new Compression();
+        compression.init();
 
         for (Map.Entry<String, Http> entry: http.entrySet()
-                ) {
-            entry.getValue().pattern = Pattern.compile(entry.getKey(), Pattern.CASE_INSENSITIVE);
+             ) {
+            if (entry.getValue() != null)
+                entry.getValue().compile(entry.getKey(), directory, compression);
+        }
+
+        if (resolver == null)
+            resolver = new Resolver();
+        resolver.init();
+
+        if (connector == null)
+            connector = new Connector();
+
+        if (inspector == null)
+            inspector = new Inspector();
+
+        for (Blocklist list: blocklist
+             ) {
+            list.load(directory, cacheDirectory);
         }
+
+        Log.d(TAG, "Grid loaded, dns: " + dnsIndex.size() + " (regex fallback " + dnsIndex.getFallbackSize() + ")"
+                + ", http: " + httpIndex.size() + " (regex fallback " + httpIndex.getFallbackSize() + ")");
     }
 
-    List<String> matchDns(String domain, org.fly.protocol.dns.content.Dns.TYPE type)
+    /**
+     * 引用的外部文件是否有变化
+     */
+    boolean isStale()
     {
-        for(Map.Entry<String, Dns> entry: dns.entrySet())
+        for (Blocklist list: blocklist
+             ) {
+            if (list.isStale())
+                return true;
+        }
+
+        for (Http rule: http.values()
+             ) {
+            if (rule != null && rule.isStale())
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return 预先编码好的回复, 没有命中返回 null
+     */
+    Template matchDns(String domain, int type)
+    {
+        Dns rule = dnsIndex.match(domain);
+
+        if (rule != null)
+            return rule.get(type);
+
+        for (Blocklist list: blocklist
+             ) {
+            if (list.contains(domain))
+                return list.answer(type);
+        }
+
+        return null;
+    }
+
+    /**
+     * @return 编译好的回复, 没有命中返回 null
+     */
+    ResponseTemplate matchHttp(String url, Method method)
+    {
+        Http rule = httpIndex.match(url);
+
+        return rule == null ? null : rule.get(method);
+    }
+
+    static class Dns {
+        public List<String> A = new ArrayList<>();
+        public List<String> AAAA = new ArrayList<>();
+        public List<String> CNAME = new ArrayList<>();
+
+        @JsonIgnore
+        private Template a;
+        @JsonIgnore
+        private Template aaaa;
+        @JsonIgnore
+        private Template cname;
+
+        /**
+         * 把每种类型的值编码成回复, 值不合法的类型不生效
+         */
+        void compile(String key)
+        {
+            a = compile(key, org.fly.protocol.dns.content.Dns.TYPE.A, A);
+            aaaa = compile(key, org.fly.protocol.dns.content.Dns.TYPE.AAAA, AAAA);
+            cname = compile(key, org.fly.protocol.dns.content.Dns.TYPE.CNAME, CNAME);
+        }
+
+        private static Template compile(String key, org.fly.protocol.dns.content.Dns.TYPE type, List<String> values)
         {
-            Matcher matcher = entry.getValue().pattern.matcher(domain);
-            if (matcher.find())
+            if (values == null || values.isEmpty())
+                return null;
+
+            try {
+                return Template.create(type, values, DNS_TTL);
+            } catch (IllegalArgumentException e)
             {
-                switch (type)
-                {
-                    case A:
-                        return entry.getValue() == null || entry.getValue().A.isEmpty() ? null : entry.getValue().A;
-                    case AAAA:
-                        return entry.getValue() == null || entry.getValue().AAAA.isEmpty() ? null : entry.getValue().AAAA;
-                    case CNAME:
-                        return entry.getValue() == null || entry.getValue().CNAME.isEmpty() ? null : entry.getValue().CNAME;
-                }
+                Log.w(TAG, "Invalid DNS rule: " + key + " " + type, e);
             }
+
+            return null;
         }
 
-        return null;
+        Template get(int type)
+        {
+            if (type == org.fly.protocol.dns.content.Dns.TYPE.A.getValue())
+                return a;
+            else if (type == org.fly.protocol.dns.content.Dns.TYPE.AAAA.getValue())
+                return aaaa;
+            else if (type == org.fly.protocol.dns.content.Dns.TYPE.CNAME.getValue())
+                return cname;
+
+            return null;
+        }
     }
 
-    String matchHttp(String url, Method method)
-    {
-        for(Map.Entry<String, Http> entry: http.entrySet())
+    static class Blocklist {
+        public static final String NXDOMAIN = "NXDOMAIN";
+
+        private static final Template NAME_ERROR = Template.create(org.fly.protocol.dns.content.Dns.RCODE.NAME_ERROR);
+        private static final Template ZERO_A = Template.create(org.fly.protocol.dns.content.Dns.TYPE.A, Collections.singletonList("0.0.0.0"), DNS_TTL);
+        private static final Template ZERO_AAAA = Template.create(org.fly.protocol.dns.content.Dns.TYPE.AAAA, Collections.singletonList("::"), DNS_TTL);
+
+        public String path = null;
+        // NXDOMAIN 或 0.0.0.0
+        public String answer = NXDOMAIN;
+        // 是否同时拦截子域名
+        public boolean subdomains = true;
+
+        @JsonIgnore
+        private DomainSet set;
+        @JsonIgnore
+        private File file;
+        @JsonIgnore
+        private long stamp;
+
+        void load(File directory, File cacheDirectory)
         {
-            Matcher matcher = entry.getValue().pattern.matcher(url);
-            if (matcher.find())
+            if (path == null || path.isEmpty())
+                return;
+
+            file = new File(path);
+            if (!file.isAbsolute() && directory != null)
+                file = new File(directory, path);
+
+            long start = System.nanoTime();
+            stamp = stamp(file);
+
+            // 源文件没有变化时直接映射上次编译好的快照
+            File snapshot = cacheDirectory == null ? null : new File(cacheDirectory, "blocklist-" + DigestUtils.sha1Hex(file.getAbsolutePath()) + ".bin");
+
+            if (snapshot != null)
+            {
+                try {
+                    set = DomainSet.map(snapshot, stamp);
+                } catch (IOException e)
+                {
+                    Log.w(TAG, "Map blocklist snapshot failed: " + snapshot, e);
+                }
+
+                if (set != null)
+                {
+                    Log.d(TAG, "Blocklist mapped: " + file + ", domains: " + set.size() + ", " + (System.nanoTime() - start) / 1000000 + "ms");
+                    return;
+                }
+            }
+
+            try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+                set = new DomainSet.Builder().read(reader).build(subdomains);
+
+                Log.d(TAG, "Blocklist loaded: " + file + ", domains: " + set.size()
+                        + ", " + set.getMemorySize() / 1024 + "KB, " + (System.nanoTime() - start) / 1000000 + "ms");
+            } catch (IOException e)
+            {
+                Log.e(TAG, "Load blocklist failed: " + file, e);
+                return;
+            }
+
+            if (snapshot != null)
             {
-                switch (method)
+                try {
+                    set.write(snapshot, stamp);
+                } catch (IOException e)
                 {
-                    case POST:
-                        return entry.getValue() == null || entry.getValue().POST.isEmpty() ? null : entry.getValue().POST;
-                    case GET:
-                        return entry.getValue() == null || entry.getValue().GET.isEmpty() ? null : entry.getValue().GET;
-                    case PUT:
-                        return entry.getValue() == null || entry.getValue().PUT.isEmpty() ? null : entry.getValue().PUT;
-                    case DELETE:
-                        return entry.getValue() == null || entry.getValue().DELETE.isEmpty() ? null : entry.getValue().DELETE;
+                    Log.w(TAG, "Write blocklist snapshot failed: " + snapshot, e);
                 }
             }
         }
-        return null;
-    }
 
-    static class Dns {
-        @JsonIgnore
-        Pattern pattern;
-        public List<String> A = new ArrayList<>();
-        public List<String> AAAA = new ArrayList<>();
-        public List<String> CNAME = new ArrayList<>();
+        /**
+         * 源文件在加载之后是否有变化
+         */
+        boolean isStale()
+        {
+            return file != null && stamp(file) != stamp;
+        }
+
+        /**
+         * 源文件路径, 大小, 修改时间以及配置的摘要
+         */
+        private long stamp(File file)
+        {
+            byte[] digest = DigestUtils.sha1(file.getAbsolutePath() + "|" + file.length() + "|" + file.lastModified() + "|" + subdomains);
+            return ByteBuffer.wrap(digest).getLong();
+        }
+
+        boolean contains(String domain)
+        {
+            return set != null && set.contains(domain);
+        }
+
+        /**
+         * 0.0.0.0 模式下只有 A / AAAA 回复空地址, 其它类型都是 NXDOMAIN
+         */
+        Template answer(int type)
+        {
+            if (!NXDOMAIN.equalsIgnoreCase(answer))
+            {
+                if (type == org.fly.protocol.dns.content.Dns.TYPE.A.getValue())
+                    return ZERO_A;
+                else if (type == org.fly.protocol.dns.content.Dns.TYPE.AAAA.getValue())
+                    return ZERO_AAAA;
+            }
+
+            return NAME_ERROR;
+        }
     }
 
     static class Http {
-        @JsonIgnore
-        Pattern pattern;
         public String POST = null;
         public String GET = null;
         public String PUT = null;
         public String DELETE = null;
+
+        @JsonIgnore
+        private ResponseTemplate post;
+        @JsonIgnore
+        private ResponseTemplate get;
+        @JsonIgnore
+        private ResponseTemplate put;
+        @JsonIgnore
+        private ResponseTemplate delete;
+
+        /**
+         * 把每个方法的回复编译成模板, 空的方法和找不到的文件不生效
+         *
+         * @param directory "file:" 中相对路径的根目录
+         * @param compression 是否预先压缩固定的回复, 以及压缩级别
+         */
+        void compile(String key, File directory, Compression compression)
+        {
+            post = compile(key, Method.POST, POST, directory, compression);
+            get = compile(key, Method.GET, GET, directory, compression);
+            put = compile(key, Method.PUT, PUT, directory, compression);
+            delete = compile(key, Method.DELETE, DELETE, directory, compression);
+        }
+
+        private static ResponseTemplate compile(String key, Method method, String content, File directory, Compression compression)
+        {
+            try {
+                return ResponseTemplate.compile(content, directory, compression.isPrecompress(), compression.getLevel());
+            } catch (IOException e)
+            {
+                Log.w(TAG, "Invalid HTTP rule: " + key + " " + method, e);
+            }
+
+            return null;
+        }
+
+        /**
+         * "file:" 回复的文件是否有变化
+         */
+        boolean isStale()
+        {
+            return isStale(post) || isStale(get) || isStale(put) || isStale(delete);
+        }
+
+        private static boolean isStale(ResponseTemplate template)
+        {
+            return template != null && template.isStale();
+        }
+
+        ResponseTemplate get(Method method)
+        {
+            switch (method)
+            {
+                case POST:
+                    return post;
+                case GET:
+                    return get;
+                case PUT:
+                    return put;
+                case DELETE:
+                    return delete;
+            }
+            return null;
+        }
     }
 
-}
\ No newline at end of file
+}
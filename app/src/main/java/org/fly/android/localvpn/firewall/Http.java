@@ -2,31 +2,79 @@ package org.fly.android.localvpn.firewall;
 
 import android.util.Log;
 
-import org.apache.commons.codec.binary.StringUtils;
 import org.fly.android.localvpn.contract.IFirewall;
+import org.fly.android.localvpn.store.Block;
+import org.fly.android.localvpn.store.TCB;
 import org.fly.protocol.exception.RequestException;
 import org.fly.protocol.exception.ResponseException;
+import org.fly.protocol.http.request.HeaderParser;
 import org.fly.protocol.http.request.Method;
 import org.fly.protocol.http.request.Request;
-import org.fly.protocol.http.response.Response;
+import org.fly.protocol.http.response.ResponseParser;
+import org.fly.protocol.http.response.ResponseTemplate;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.LinkedList;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 public class Http implements IFirewall {
 
     private static final String TAG = Http.class.getSimpleName();
 
-    private static final Pattern inputPattern = Pattern.compile("\\$\\{input\\.([a-z0-9_\\.]*)\\}", Pattern.CASE_INSENSITIVE);
-
     private Request request = null;
+    // 当前请求命中的规则, null 表示放行
+    private ResponseTemplate table = null;
+    private String url = null;
+    // 头还不完整的请求已经收到的数据, 匹配规则之后再转发或丢弃
+    private final LinkedList<ByteBuffer> held = new LinkedList<>();
 
     private Firewall firewall;
 
+    // 已经转发到上游, 还在等待回复的请求, 按发送顺序
+    private final ConcurrentLinkedQueue<Transaction> transactions = new ConcurrentLinkedQueue<>();
+    // 当前请求对应的事务, Body 结束时更新请求大小; 以及连接上是否已经有过请求
+    private Transaction pending = null;
+    private boolean reused = false;
+    // 以下只在 TCPInput 线程中使用
+    private ResponseParser responseParser = null;
+    private Transaction transaction = null;
+    // 回复和请求对不上, 或者连接已经不是 HTTP 时停止观察
+    private boolean inspecting = true;
+
+    // 转发出去还没有回复完的请求, 以及排在它们后面的规则回复, 按请求的顺序;
+    // 为空时规则的回复直接发送, 否则要等前面的回复结束. 两个线程都在 tcb 的锁中使用
+    private final LinkedList<Pipelined> pipeline = new LinkedList<>();
+    // pipeline 中规则回复的个数
+    private int replies = 0;
+    private ResponseParser framer = null;
+    // 分不出回复的边界之后不再排序, 规则的回复直接发送
+    private boolean reordering = true;
+
+    // 头完成时就决定放行或丢弃, 只有回复中用到 ${input.*} 时才需要保存 Body
+    private final Request.OnHeaderListener onHeaderListener = new Request.OnHeaderListener() {
+        @Override
+        public boolean onHeader(Request request) {
+            url = request.getUrl();
+            table = Firewall.getFilter().matchHttp(url, request.getMethod());
+
+            if (table == null && inspecting && Firewall.getInspector().isResponse())
+            {
+                // 只有连接上的第一个请求算连接耗时
+                Block block = firewall.getBlock();
+                long connectTime = !reused && block instanceof TCB ? ((TCB) block).getConnectTime() : -1;
+
+                pending = new Transaction(request.getMethod(), request.getHeader("host"), url, System.nanoTime(), connectTime, request.getHeaderSize());
+                transactions.offer(pending);
+            }
+
+            reused = true;
+
+            return table != null && table.hasInputs();
+        }
+    };
+
     public Http(Firewall firewall) {
         this.firewall = firewall;
     }
@@ -45,76 +93,341 @@ public class Http implements IFirewall {
 
     @Override
     public LinkedList<ByteBuffer> write(ByteBuffer readableBuffer) throws IOException, RequestException, ResponseException {
+        // 同一个连接上的请求复用一个 Request
         if (null == request)
+        {
             request = new Request();
+            request.setOnHeaderListener(onHeaderListener);
+        }
 
         LinkedList<ByteBuffer> results = new LinkedList<>();
+        // 本次写入中要转发的部分, 命中规则的请求不转发
+        LinkedList<ByteBuffer> forward = new LinkedList<>();
+        ByteBuffer buffer = readableBuffer.duplicate();
 
-        // 依次写入
-        request.write(readableBuffer.duplicate());
+        // keep-alive 时一个包里可能有多个管线化的请求, 每个请求结束后 buffer 停在下一个请求的开始
+        do {
+            int from = buffer.position();
+            boolean headerComplete = request.isHeaderComplete();
 
-        String table = null;
-        String url = null;
-        //等待头完成
-        if (request.isHeaderComplete())
-        {
-            url = request.getUrl();
-            table = Firewall.getFilter().matchHttp(url, request.getMethod());
+            // 头完成时 onHeaderListener 匹配规则
+            request.write(buffer);
 
-            if (table != null)
-                firewall.drop();
-            else
-                firewall.accept();
-        }
+            ByteBuffer part = slice(readableBuffer, from, buffer.position());
+
+            if (!request.isHeaderComplete())
+            {
+                held.add(part);
+                break;
+            }
+
+            // 刚完成的头决定之前收到的部分; Body 跟着头走
+            if (!headerComplete)
+            {
+                if (table == null && reordering)
+                    pipeline.add(new Pipelined(request.getMethod()));
+
+                if (table == null)
+                    forward.addAll(held);
+                held.clear();
+            }
+
+            if (table == null)
+                forward.add(part);
+
+            if (!request.isBodyComplete())
+                break;
 
-        // 包体结束, 清除httpRequest等待通道复用
-        if (request.isBodyComplete())
-        {
             Log.d(TAG, "HTTP -- " + firewall.getBlock().getIpAndPort() + " " + request.getMethod() + ": " + url);
             Log.d(TAG, request.getHeaderRaw());
 
             if (table != null)
             {
-                table = parse(request, table);
+                LinkedList<ByteBuffer> reply = new LinkedList<>();
+                table.render(request, reply);
 
-                if (table.startsWith("HTTP/1.1 ") && (table.contains("\r\n\r\n") || table.contains("\n\n")))
+                if (pipeline.isEmpty())
                 {
-                    results.add(StringUtils.getByteBufferUtf8(table));
+                    results.addAll(reply);
                 } else {
-                    Response response = Response.newFixedLengthResponse(table);
+                    pipeline.add(new Pipelined(reply));
+                    replies++;
+                }
+            }
+
+            if (pending != null)
+            {
+                pending.setRequestBytes(request.getHeaderSize() + request.getBodyReceived());
+                pending = null;
+            }
+
+            // 包体结束, 等待通道复用
+            request.reset();
+            table = null;
+            url = null;
+        } while (buffer.hasRemaining());
 
-                    ByteBuffer buffer = ByteBuffer.allocateDirect(table.length() + Request.BUFF_SIZE);
-                    response.send(buffer);
+        // 只转发没有命中规则的请求, 还没决定的头先留在 held 中
+        if (forward.isEmpty())
+            firewall.drop();
+        else
+            firewall.pass(forward);
+
+        return results;
+    }
+
+    /**
+     * 上游回复的数据, 在 TCPInput 线程中调用, 只解析不修改, Body 直接跳过
+     */
+    void read(ByteBuffer readableBuffer)
+    {
+        if (!inspecting || !Firewall.getInspector().isResponse())
+            return;
+
+        long now = System.nanoTime();
+        ByteBuffer buffer = readableBuffer.duplicate();
+
+        try {
+            // 一次读取中可能有多个回复
+            while (buffer.hasRemaining())
+            {
+                if (transaction == null)
+                {
+                    transaction = transactions.poll();
+                    if (transaction == null)
+                    {
+                        stopInspecting("Response without request");
+                        return;
+                    }
 
-                    results.add(buffer);
+                    if (responseParser == null)
+                        responseParser = new ResponseParser();
+                    responseParser.start(transaction.getMethod());
                 }
+
+                transaction.onFirstByte(now);
+
+                boolean headerComplete = responseParser.isHeaderComplete();
+                boolean complete = responseParser.write(buffer);
+
+                if (!headerComplete && responseParser.isHeaderComplete() && !responseParser.isInterim())
+                {
+                    HeaderParser header = responseParser.getHeader();
+                    transaction.onHeader(responseParser.getStatus(), header.get("content-type"), header.toMap(), header.getLength(), now);
+                }
+
+                // 101 或 CONNECT 之后不再是 HTTP
+                if (responseParser.isTunnel())
+                {
+                    finish(false, now);
+                    stopInspecting("Tunnel");
+                    return;
+                }
+
+                if (!complete)
+                    return;
+
+                // 100 Continue 之类, 同一个请求还有真正的回复
+                if (responseParser.isInterim())
+                {
+                    responseParser.start(transaction.getMethod());
+                    continue;
+                }
+
+                finish(false, now);
             }
+        } catch (ResponseException e)
+        {
+            stopInspecting(e.getMessage());
+        }
+    }
+
+    /**
+     * 上游回复的数据, 在 TCPInput 线程中调用. 按转发的请求划分回复, 回复结束时从 pipeline 中取出;
+     * 有排队的规则回复时, 按请求的顺序插到上游的回复之间
+     *
+     * @return 没有排队的规则回复时返回 null, 数据原样发送; 否则是依次发给客户端的数据, 写入模式
+     */
+    LinkedList<ByteBuffer> reorder(ByteBuffer readableBuffer)
+    {
+        if (pipeline.isEmpty())
+            return null;
 
-            request = null;
+        // 没有规则回复时只划分, 不复制数据
+        LinkedList<ByteBuffer> results = replies > 0 ? new LinkedList<ByteBuffer>() : null;
+        ByteBuffer buffer = readableBuffer.duplicate();
+        int from = buffer.position();
+
+        try {
+            Pipelined item;
+            while ((item = pipeline.peek()) != null)
+            {
+                if (item.reply != null)
+                {
+                    results.addAll(item.reply);
+                    pipeline.poll();
+                    replies--;
+                    continue;
+                }
+
+                if (!buffer.hasRemaining())
+                    break;
+
+                if (framer == null)
+                    framer = new ResponseParser();
+                if (!item.started)
+                {
+                    framer.start(item.method);
+                    item.started = true;
+                }
+
+                boolean complete = framer.write(buffer);
+                if (results != null)
+                    results.add(copy(buffer, from, buffer.position()));
+                from = buffer.position();
+
+                if (framer.isTunnel())
+                {
+                    stopReordering("Tunnel");
+                    break;
+                }
+
+                if (!complete)
+                    break;
+
+                // 100 Continue 之类, 同一个请求还有真正的回复
+                if (framer.isInterim())
+                {
+                    framer.start(item.method);
+                    continue;
+                }
+
+                pipeline.poll();
+            }
+        } catch (ResponseException e)
+        {
+            stopReordering(e.getMessage());
         }
 
+        if (results == null)
+            return null;
+
+        if (from < buffer.limit())
+            results.add(copy(buffer, from, buffer.limit()));
+
         return results;
     }
 
-    private String parse(Request request, String content) {
+    /**
+     * 上游关闭了连接, 没有长度的回复在这时结束, 紧跟在后面的规则回复依次发送
+     * 再后面转发出去的请求不会有回复了, 剩下的也不再发送
+     */
+    LinkedList<ByteBuffer> reorderEnd()
+    {
+        LinkedList<ByteBuffer> results = new LinkedList<>();
+
+        Pipelined item = pipeline.peek();
+        if (item != null && item.reply == null && item.started && framer.end())
+            pipeline.poll();
 
-        if (content.contains("${input."))
+        while ((item = pipeline.peek()) != null && item.reply != null)
         {
-            Matcher matcher = inputPattern.matcher(content);
+            results.addAll(item.reply);
+            pipeline.poll();
+        }
 
-            StringBuffer buffer = new StringBuffer();
-            while(matcher.find()){
-                String value = request.input(matcher.group(1));
-                if (value == null) continue;
+        pipeline.clear();
+        replies = 0;
+        return results;
+    }
 
-                matcher.appendReplacement(buffer, value);
-            }
+    /**
+     * 分不出回复的边界, 之后不再排序, 上游的数据原样发送; 已经排队的规则回复丢弃
+     */
+    private void stopReordering(String reason)
+    {
+        Log.w(TAG, "Stop reordering " + firewall.getBlock().getIpAndPort() + ": " + reason);
 
-            matcher.appendTail(buffer);
+        reordering = false;
+        pipeline.clear();
+        replies = 0;
+    }
+
+    /**
+     * 解析出错时交还给 Firewall 原样转发
+     */
+    LinkedList<ByteBuffer> takeHeld()
+    {
+        LinkedList<ByteBuffer> buffers = new LinkedList<>(held);
+        held.clear();
+        return buffers;
+    }
 
-            return buffer.toString();
+    private static ByteBuffer slice(ByteBuffer buffer, int from, int to)
+    {
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(to);
+        slice.position(from);
+        return slice;
+    }
+
+    /**
+     * @return 写入模式, 和 sendToClient 的参数一致
+     */
+    private static ByteBuffer copy(ByteBuffer buffer, int from, int to)
+    {
+        ByteBuffer copy = ByteBuffer.allocate(to - from);
+        copy.put(slice(buffer, from, to));
+        return copy;
+    }
+
+    /**
+     * 上游关闭了连接, 没有长度的回复在这时结束
+     */
+    void readEnd()
+    {
+        if (!inspecting || transaction == null)
+            return;
+
+        finish(!responseParser.end(), System.nanoTime());
+    }
+
+    private void finish(boolean aborted, long now)
+    {
+        transaction.onComplete(responseParser.getBodyReceived(), aborted, now);
+        HttpMetrics.record(transaction);
+
+        if (Log.isLoggable(TAG, Log.DEBUG))
+            Log.d(TAG, "HTTP <- " + firewall.getBlock().getIpAndPort() + " " + transaction);
+
+        transaction = null;
+    }
+
+    private void stopInspecting(String reason)
+    {
+        Log.d(TAG, "Stop inspecting " + firewall.getBlock().getIpAndPort() + ": " + reason);
+
+        inspecting = false;
+        transaction = null;
+        transactions.clear();
+    }
+
+    /**
+     * 管线化中的一个请求: 转发出去等待回复的, 或者命中规则已经生成好的回复
+     */
+    private static class Pipelined {
+        final Method method;
+        final LinkedList<ByteBuffer> reply;
+        boolean started = false;
+
+        Pipelined(Method method) {
+            this.method = method;
+            this.reply = null;
         }
 
-        return content;
+        Pipelined(LinkedList<ByteBuffer> reply) {
+            this.method = null;
+            this.reply = reply;
+        }
     }
 }
@@ -0,0 +1,196 @@
+package org.fly.android.localvpn.firewall;
+
+import org.fly.android.localvpn.structs.ConcurrentClockCache;
+import org.fly.android.localvpn.structs.Histogram;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * HTTP 事务的统计: 最近的事务放在固定大小的环中, 每个 host 一组耗时直方图
+ *
+ * 只有开启 inspector.response 时才有数据, 耗时的单位是毫秒
+ */
+public class HttpMetrics {
+
+    // 保留最近的事务数
+    private static final int RECENT = 256;
+    // 统计的 host 数, 超过时淘汰最近没有访问的
+    private static final int MAX_HOSTS = 256;
+
+    private static final Transaction[] recent = new Transaction[RECENT];
+    private static int next = 0;
+    private static long total = 0;
+
+    private static final ConcurrentClockCache<String, Host> hosts = new ConcurrentClockCache<>(MAX_HOSTS);
+
+    /**
+     * 回复结束 (或连接中断) 时记录
+     */
+    static void record(Transaction transaction)
+    {
+        synchronized (recent)
+        {
+            recent[next] = transaction;
+            next = (next + 1) % RECENT;
+            total++;
+        }
+
+        String name = transaction.getHost() == null ? "-" : transaction.getHost().toLowerCase(Locale.US);
+        Host host = hosts.get(name);
+        if (host == null)
+        {
+            Host created = new Host(name);
+            // 别的线程先放入时用已有的
+            host = hosts.putIfAbsent(name, created) ? created : hosts.get(name);
+            if (host == null)
+                host = created;
+        }
+
+        host.record(transaction);
+    }
+
+    /**
+     * 最近的事务, 从旧到新
+     */
+    public static List<Transaction> getRecent()
+    {
+        List<Transaction> list = new ArrayList<>(RECENT);
+        synchronized (recent)
+        {
+            for (int i = 0; i < RECENT; i++)
+            {
+                Transaction transaction = recent[(next + i) % RECENT];
+                if (transaction != null)
+                    list.add(transaction);
+            }
+        }
+        return list;
+    }
+
+    public static Host getHost(String host) {
+        return host == null ? null : hosts.get(host.toLowerCase(Locale.US));
+    }
+
+    /**
+     * 按 TTFB 的 p90 从慢到快
+     */
+    public static List<Host> getSlowestHosts(int limit)
+    {
+        List<Host> list = new ArrayList<>(hosts.values());
+
+        Collections.sort(list, new Comparator<Host>() {
+            @Override
+            public int compare(Host a, Host b) {
+                return Long.compare(b.getTimeToFirstByte().getPercentile(90), a.getTimeToFirstByte().getPercentile(90));
+            }
+        });
+
+        return list.size() > limit ? list.subList(0, limit) : list;
+    }
+
+    public static long getTotal() {
+        synchronized (recent)
+        {
+            return total;
+        }
+    }
+
+    public static void reset()
+    {
+        synchronized (recent)
+        {
+            for (int i = 0; i < RECENT; i++)
+                recent[i] = null;
+            next = 0;
+            total = 0;
+        }
+        hosts.clear();
+    }
+
+    /**
+     * 一个 host 的统计
+     */
+    public static class Host {
+        private final String name;
+        private final AtomicLong errors = new AtomicLong();
+        private final AtomicLong requestBytes = new AtomicLong();
+        private final AtomicLong responseBytes = new AtomicLong();
+
+        private final Histogram connect = new Histogram();
+        private final Histogram timeToFirstByte = new Histogram();
+        private final Histogram download = new Histogram();
+        private final Histogram duration = new Histogram();
+
+        Host(String name) {
+            this.name = name;
+        }
+
+        void record(Transaction transaction)
+        {
+            // 5xx 和中断的事务
+            if (transaction.getStatus() >= 500 || transaction.isAborted())
+                errors.incrementAndGet();
+
+            requestBytes.addAndGet(transaction.getRequestBytes());
+            responseBytes.addAndGet(transaction.getHeaderSize() + transaction.getBodySize());
+
+            // 复用的连接没有连接耗时
+            if (transaction.getConnectTime() >= 0)
+                connect.record(transaction.getConnectTime() / 1000000);
+            timeToFirstByte.record(toMillis(transaction.getTimeToFirstByte()));
+            download.record(toMillis(transaction.getDownloadTime()));
+            duration.record(toMillis(transaction.getDuration()));
+        }
+
+        private static long toMillis(long nanos) {
+            return nanos < 0 ? -1 : nanos / 1000000;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getCount() {
+            return duration.getCount();
+        }
+
+        public long getErrors() {
+            return errors.get();
+        }
+
+        public long getRequestBytes() {
+            return requestBytes.get();
+        }
+
+        public long getResponseBytes() {
+            return responseBytes.get();
+        }
+
+        public Histogram getConnect() {
+            return connect;
+        }
+
+        public Histogram getTimeToFirstByte() {
+            return timeToFirstByte;
+        }
+
+        public Histogram getDownload() {
+            return download;
+        }
+
+        public Histogram getDuration() {
+            return duration;
+        }
+
+        @Override
+        public String toString() {
+            return name + ": errors=" + getErrors() + " up=" + getRequestBytes() + " down=" + getResponseBytes()
+                    + " connect[" + connect + "] ttfb[" + timeToFirstByte + "] download[" + download + "] total[" + duration + "]";
+        }
+    }
+}
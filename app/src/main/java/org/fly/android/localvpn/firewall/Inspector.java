@@ -0,0 +1,20 @@
+package org.fly.android.localvpn.firewall;
+
+/**
+ * 流量观察的配置, grid.json 中的 inspector 节点
+ *
+ * <pre>
+ * "inspector": {
+ *     "response": true       // 解析上游 HTTP 回复, 记录状态码, 头和耗时
+ * }
+ * </pre>
+ * 关闭时下行数据不经过任何解析
+ */
+public class Inspector {
+
+    public boolean response = false;
+
+    public boolean isResponse() {
+        return response;
+    }
+}
@@ -0,0 +1,153 @@
+package org.fly.android.localvpn.firewall;
+
+import android.util.Log;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * 上游 DNS 的配置, grid.json 中的 resolver 节点
+ *
+ * <pre>
+ * "resolver": {
+ *     "mode": "parallel",  // direct: 发给客户端指定的服务器; parallel: 同时发给所有上游; staggered: 按延迟依次错开发送
+ *     "upstreams": ["223.5.5.5", "8.8.8.8:53"],
+ *     "stagger": 100,      // staggered 模式下每个上游之间间隔的毫秒数
+ *     "persist": false     // 缓存的回复写入文件, 服务重启后恢复, 默认关闭
+ * }
+ * </pre>
+ */
+public class Resolver {
+
+    private static final String TAG = Resolver.class.getSimpleName();
+
+    public static final List<String> DEFAULT_UPSTREAMS = Collections.unmodifiableList(Arrays.asList("223.5.5.5", "8.8.8.8"));
+
+    private static final int DNS_PORT = 53;
+
+    public enum Mode {
+        DIRECT,
+        PARALLEL,
+        STAGGERED,
+    }
+
+    public String mode = "direct";
+    public List<String> upstreams = new ArrayList<>(DEFAULT_UPSTREAMS);
+    public long stagger = 100;
+    public boolean persist = false;
+
+    @JsonIgnore
+    private Mode parsedMode = Mode.DIRECT;
+    @JsonIgnore
+    private List<InetSocketAddress> addresses = Collections.emptyList();
+
+    public void init()
+    {
+        parsedMode = Mode.DIRECT;
+        if (mode != null)
+        {
+            try {
+                parsedMode = Mode.valueOf(mode.trim().toUpperCase(Locale.US));
+            } catch (IllegalArgumentException e)
+            {
+                Log.w(TAG, "Unknown resolver mode: " + mode);
+            }
+        }
+
+        List<InetSocketAddress> list = new ArrayList<>();
+        if (upstreams != null)
+        {
+            for (String upstream: upstreams
+                 ) {
+                InetSocketAddress address = parse(upstream);
+                if (address != null)
+                    list.add(address);
+            }
+        }
+
+        addresses = Collections.unmodifiableList(list);
+    }
+
+    /**
+     * 支持 1.2.3.4, 1.2.3.4:53, [::1]:53, ::1, 只接受 IP
+     */
+    static InetSocketAddress parse(String upstream)
+    {
+        if (upstream == null || upstream.trim().isEmpty())
+            return null;
+
+        String host = upstream.trim();
+        int port = DNS_PORT;
+
+        try {
+            if (host.startsWith("["))
+            {
+                int end = host.indexOf(']');
+                if (end < 0)
+                    throw new IllegalArgumentException(upstream);
+
+                if (end + 1 < host.length() && host.charAt(end + 1) == ':')
+                    port = Integer.parseInt(host.substring(end + 2));
+
+                host = host.substring(1, end);
+            } else if (host.indexOf(':') == host.lastIndexOf(':') && host.indexOf(':') > 0) {
+                port = Integer.parseInt(host.substring(host.indexOf(':') + 1));
+                host = host.substring(0, host.indexOf(':'));
+            }
+
+            if (!isLiteral(host))
+                throw new IllegalArgumentException("Upstream must be an IP: " + upstream);
+
+            return new InetSocketAddress(InetAddress.getByName(host), port);
+        } catch (IllegalArgumentException | UnknownHostException e)
+        {
+            Log.w(TAG, "Invalid upstream: " + upstream, e);
+        }
+
+        return null;
+    }
+
+    /**
+     * 不能用域名, 否则解析上游地址本身就要走 DNS
+     */
+    private static boolean isLiteral(String host)
+    {
+        for (int i = 0; i < host.length(); i++) {
+            char c = host.charAt(i);
+            if (!(c == '.' || c == ':' || (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F')))
+                return false;
+        }
+        return !host.isEmpty();
+    }
+
+    public Mode getMode() {
+        return parsedMode;
+    }
+
+    /**
+     * 同时 (或错开) 发给多个上游
+     */
+    public boolean isRacing() {
+        return parsedMode != Mode.DIRECT && !addresses.isEmpty();
+    }
+
+    public List<InetSocketAddress> getAddresses() {
+        return addresses;
+    }
+
+    public long getStagger() {
+        return Math.max(0, stagger);
+    }
+
+    public boolean isPersist() {
+        return persist;
+    }
+}
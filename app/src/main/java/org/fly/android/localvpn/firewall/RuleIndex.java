@@ -0,0 +1,83 @@
+package org.fly.android.localvpn.firewall;
+
+import org.fly.android.localvpn.structs.Automaton;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * 一组规则的匹配索引
+ * 能被 Automaton 表达的正则合并成一个自动机, 其余的保留 Pattern 逐条匹配
+ * 多条规则同时命中时, 按 grid.json 中的先后顺序取第一条
+ */
+class RuleIndex<T> {
+
+    private final List<String> keys = new ArrayList<>();
+    private final List<T> rules = new ArrayList<>();
+    private final Automaton automaton;
+
+    private final List<Integer> fallbackIds = new ArrayList<>();
+    private final List<Pattern> fallbackPatterns = new ArrayList<>();
+
+    RuleIndex(Map<String, T> map) {
+        Automaton.Builder builder = new Automaton.Builder(true);
+
+        for (Map.Entry<String, T> entry: map.entrySet()
+                ) {
+            int id = rules.size();
+            keys.add(entry.getKey());
+            rules.add(entry.getValue());
+
+            if (!builder.add(entry.getKey(), id))
+            {
+                fallbackIds.add(id);
+                fallbackPatterns.add(Pattern.compile(entry.getKey(), Pattern.CASE_INSENSITIVE));
+            }
+        }
+
+        automaton = builder.build();
+    }
+
+    /**
+     * 返回第一条命中的规则序号, 没有命中返回 -1
+     */
+    int find(String input)
+    {
+        int best = automaton == null ? Automaton.NO_MATCH : automaton.match(input);
+
+        for (int i = 0; i < fallbackIds.size(); i++) {
+            int id = fallbackIds.get(i);
+            if (best != Automaton.NO_MATCH && id > best)
+                break;
+
+            if (fallbackPatterns.get(i).matcher(input).find())
+                return id;
+        }
+
+        return best;
+    }
+
+    T match(String input)
+    {
+        int id = find(input);
+        return id == Automaton.NO_MATCH ? null : rules.get(id);
+    }
+
+    String getKey(int id) {
+        return keys.get(id);
+    }
+
+    T get(int id) {
+        return rules.get(id);
+    }
+
+    int size() {
+        return rules.size();
+    }
+
+    int getFallbackSize() {
+        return fallbackIds.size();
+    }
+}
@@ -0,0 +1,156 @@
+package org.fly.android.localvpn.firewall;
+
+import org.fly.protocol.http.request.Method;
+
+import java.util.Map;
+
+/**
+ * 一次 HTTP 请求和回复
+ *
+ * 请求头完成时 (TCPOutput 线程) 创建, 之后只由 TCPInput 线程填写回复的部分.
+ * 时间都是 System.nanoTime
+ */
+public class Transaction {
+
+    private final Method method;
+    private final String host;
+    private final String url;
+    private final long requestAt;
+    // 新连接的连接耗时, 复用的连接为 -1
+    private final long connectTime;
+    // 请求头和 Body, Body 结束时在 TCPOutput 线程中更新
+    private volatile long requestBytes;
+
+    private long firstByteAt = 0;
+    private long headerAt = 0;
+    private long completeAt = 0;
+
+    private int status = 0;
+    private String contentType = null;
+    private Map<String, String> headers = null;
+    private int headerSize = 0;
+    private long bodySize = 0;
+    // 连接在回复结束前关闭
+    private boolean aborted = false;
+
+    Transaction(Method method, String host, String url, long requestAt, long connectTime, long requestBytes) {
+        this.method = method;
+        this.host = host;
+        this.url = url;
+        this.requestAt = requestAt;
+        this.connectTime = connectTime;
+        this.requestBytes = requestBytes;
+    }
+
+    void setRequestBytes(long requestBytes) {
+        this.requestBytes = requestBytes;
+    }
+
+    void onFirstByte(long now)
+    {
+        if (firstByteAt == 0)
+            firstByteAt = now;
+    }
+
+    void onHeader(int status, String contentType, Map<String, String> headers, int headerSize, long now)
+    {
+        this.status = status;
+        this.contentType = contentType;
+        this.headers = headers;
+        this.headerSize = headerSize;
+        this.headerAt = now;
+    }
+
+    void onComplete(long bodySize, boolean aborted, long now)
+    {
+        this.bodySize = bodySize;
+        this.aborted = aborted;
+        this.completeAt = now;
+    }
+
+    public Method getMethod() {
+        return method;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * 连接上游的耗时, 纳秒; 复用的连接为 -1
+     */
+    public long getConnectTime() {
+        return connectTime;
+    }
+
+    public long getRequestBytes() {
+        return requestBytes;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * 回复头, 小写名称
+     */
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    public int getHeaderSize() {
+        return headerSize;
+    }
+
+    public long getBodySize() {
+        return bodySize;
+    }
+
+    public boolean isAborted() {
+        return aborted;
+    }
+
+    /**
+     * 请求头发出到收到第一个字节, 纳秒
+     */
+    public long getTimeToFirstByte() {
+        return firstByteAt == 0 ? -1 : firstByteAt - requestAt;
+    }
+
+    /**
+     * 请求头发出到回复头完成, 纳秒
+     */
+    public long getTimeToHeader() {
+        return headerAt == 0 ? -1 : headerAt - requestAt;
+    }
+
+    /**
+     * 第一个字节到回复结束, 纳秒
+     */
+    public long getDownloadTime() {
+        return completeAt == 0 || firstByteAt == 0 ? -1 : completeAt - firstByteAt;
+    }
+
+    /**
+     * 请求头发出到回复结束, 纳秒
+     */
+    public long getDuration() {
+        return completeAt == 0 ? -1 : completeAt - requestAt;
+    }
+
+    @Override
+    public String toString() {
+        return method + " " + url + " -> " + status + " " + (contentType == null ? "-" : contentType)
+                + ", up " + requestBytes + " down " + headerSize + "+" + bodySize + " bytes"
+                + (connectTime >= 0 ? ", connect " + connectTime / 1000000 + "ms" : "") + ", ttfb " + getTimeToFirstByte() / 1000000 + "ms, total " + getDuration() / 1000000 + "ms"
+                + (aborted ? ", aborted" : "");
+    }
+}
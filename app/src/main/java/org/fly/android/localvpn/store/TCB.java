@@ -23,9 +23,11 @@ import org.fly.android.localvpn.firewall.Firewall;
 import org.fly.android.localvpn.structs.LRUCache;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.Map;
 import java.util.Random;
 
@@ -53,6 +55,8 @@ public class TCB extends Block
 
     public long mySequenceNum, theirSequenceNum;
     public long myAcknowledgementNum, theirAcknowledgementNum;
+    // 客户端通告的接收窗口, 回复的 SYN 中没有窗口缩放的选项, 所以就是包中的原值
+    public int theirWindow = 0xffff;
 
     public TCBStatus status;
 
@@ -60,6 +64,14 @@ public class TCB extends Block
     public boolean waitingForNetworkData;
     public SelectionKey selectionKey;
 
+    // 开始连接上游和连接成功的时间, System.nanoTime
+    public long connectAt, connectedAt;
+
+    // 还没发给客户端的回复, 按客户端的窗口分段发送
+    private final LinkedList<ByteBuffer> sending = new LinkedList<>();
+    // sending 还没发完时推迟的 FIN 的 flags, 0 表示没有
+    public byte pendingFin = 0;
+
     private static LRUCache<String, TCB> tcbCache =
             new LRUCache<>(MAX_CACHE_SIZE, new LRUCache.CleanupCallback<String, TCB>()
             {
@@ -99,6 +111,8 @@ public class TCB extends Block
                 tcpHeader.acknowledgementNumber,
                 channel,
                 referencePacket);
+
+        theirWindow = tcpHeader.window;
     }
 
     public TCB(String ipAndPort,
@@ -133,6 +147,31 @@ public class TCB extends Block
         incrementReplyAck(tcpHeader, 1);
     }
 
+    /**
+     * 客户端的确认号和窗口, 每个 ACK 都要更新
+     */
+    public void acknowledge(Packet.TCPHeader tcpHeader)
+    {
+        // 乱序的旧 ACK 不让确认号回退
+        if (((tcpHeader.acknowledgementNumber - theirAcknowledgementNum) & 0xffffffffL) < 0x80000000L)
+            theirAcknowledgementNum = tcpHeader.acknowledgementNumber;
+
+        theirWindow = tcpHeader.window;
+    }
+
+    /**
+     * 窗口中还能发送的字节数, 即窗口减去已发送未确认的部分
+     */
+    public int getSendWindow()
+    {
+        long inFlight = (mySequenceNum - theirAcknowledgementNum) & 0xffffffffL;
+        return (int) Math.max(0, theirWindow - inFlight);
+    }
+
+    public LinkedList<ByteBuffer> getSending() {
+        return sending;
+    }
+
     public void incrementSeq(int size)
     {
         mySequenceNum += size;
@@ -153,6 +192,14 @@ public class TCB extends Block
         incrementSeq(1);
     }
 
+    /**
+     * 连接上游的耗时, 纳秒; 还没连上时为 -1
+     */
+    public long getConnectTime()
+    {
+        return connectedAt == 0 ? -1 : connectedAt - connectAt;
+    }
+
     public static void closeTCB(TCB tcb)
     {
         Log.d(TAG, "Close Connection:" + tcb.getIpAndPort());
@@ -181,6 +228,7 @@ public class TCB extends Block
     {
         try
         {
+            sending.clear();
             firewall.clear();
             channel.close();
         }
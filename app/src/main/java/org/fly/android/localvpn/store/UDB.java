@@ -80,6 +80,10 @@ public class UDB extends Block
 
     protected void closeChannel()
     {
+        // 通过 DnsForwarder 转发的 DNS 没有自己的 channel
+        if (channel == null)
+            return;
+
         try
         {
             channel.close();
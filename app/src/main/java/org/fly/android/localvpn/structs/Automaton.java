@@ -0,0 +1,784 @@
+package org.fly.android.localvpn.structs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 多条正则合并成一个自动机, 按 Thompson NFA 构造, 匹配时惰性生成 DFA 状态 (类似 RE2),
+ * 所以匹配时间只和输入长度成线性关系, 不会回溯.
+ *
+ * 语义等同于 {@link java.util.regex.Matcher#find()}: 任意位置出现即算命中, 多条同时命中时返回最小的 id.
+ * $ 和 Pattern 一样, 在输入结尾或者结尾的一个换行符 (\n, \r\n, \r, \u0085, \u2028, \u2029) 之前成立.
+ *
+ * 支持: 字面量, . [] [^] \d \D \w \W \s \S, 分组 (...) (?:...), |, * + ? {n,m} (以及懒惰形式), ^ $
+ * 其它特性 (反向引用, 环视, \b, 内联 flag 等) 在 {@link Builder#add(String, int)} 时返回 false,
+ * 由调用方继续使用 {@link java.util.regex.Pattern}.
+ *
+ * 线程安全: 已生成的 DFA 状态只读共享, 新状态在锁内生成.
+ */
+public class Automaton {
+
+    public static final int NO_MATCH = -1;
+
+    // 单条正则最多展开的 NFA 状态数 ({n,m} 会复制子表达式)
+    private static final int MAX_PATTERN_STATES = 4096;
+    // 缓存的 DFA 状态数, 超过之后清空重建, 保证内存有上限
+    private static final int MAX_DFA_STATES = 2048;
+    private static final int ASCII = 128;
+
+    private static final int OP_CHAR = 0;
+    private static final int OP_SPLIT = 1;
+    private static final int OP_EMPTY = 2;
+    private static final int OP_BOL = 3;
+    private static final int OP_EOL = 4;
+    private static final int OP_MATCH = 5;
+
+    private static final int[] DOT = {0x0, 0x9, 0xb, 0xc, 0xe, 0x84, 0x86, 0x2027, 0x202a, 0xffff};
+    private static final int[] DIGIT = {'0', '9'};
+    private static final int[] WORD = {'0', '9', 'A', 'Z', '_', '_', 'a', 'z'};
+    private static final int[] SPACE = {0x9, 0xd, ' ', ' '};
+
+    private final int[] op;
+    private final int[] out;
+    private final int[] out1;
+    private final int[][] ranges;
+    private final int[] rule;
+    private final int start;
+    private final boolean ignoreCase;
+
+    private final Map<Key, DState> cache = new HashMap<>();
+    private final DState initial;
+    // 空输入时 ^ 和 $ 同时成立
+    private final int emptyMatch;
+
+    // closure 的工作区, 只在锁内使用
+    private final int[] marks;
+    private int generation = 0;
+    private final int[] stack;
+
+    private Automaton(Builder builder) {
+        this.ignoreCase = builder.ignoreCase;
+
+        int size = builder.size;
+        op = Arrays.copyOf(builder.op, size);
+        out = Arrays.copyOf(builder.out, size);
+        out1 = Arrays.copyOf(builder.out1, size);
+        ranges = Arrays.copyOf(builder.ranges, size);
+        rule = Arrays.copyOf(builder.rule, size);
+        start = builder.start;
+
+        marks = new int[size];
+        // 每个状态第一次访问时最多压入两个后继
+        stack = new int[2 * size + 1];
+
+        synchronized (this) {
+            initial = state(closure(new IntList(), start, true));
+            emptyMatch = endMatch(initial.states, true);
+        }
+    }
+
+    /**
+     * 返回命中的最小 id, 没有命中返回 {@link #NO_MATCH}
+     */
+    public int match(CharSequence input) {
+        DState d = initial;
+        int best = d.match;
+
+        int length = input.length();
+        if (length == 0)
+            return emptyMatch == Integer.MAX_VALUE ? NO_MATCH : emptyMatch;
+
+        int i = 0;
+        for (; i < length; i++) {
+            // 剩下的线程都不可能得到更小的 id
+            if (best <= d.minLive)
+                break;
+
+            // 只剩最后一个换行符时 $ 也成立
+            if (i >= length - 2 && isFinalTerminator(input, i)) {
+                int end = i == 0 ? emptyMatch : d.endMatch;
+                if (end < best)
+                    best = end;
+            }
+
+            d = step(d, fold(input.charAt(i)));
+            if (d.match < best)
+                best = d.match;
+        }
+
+        if (i == length && d.endMatch < best)
+            best = d.endMatch;
+
+        return best == Integer.MAX_VALUE ? NO_MATCH : best;
+    }
+
+    public int size() {
+        return op.length;
+    }
+
+    /**
+     * input 从 i 开始只剩一个换行符, 和 Pattern 的 $ 相同: \r\n 中间不算
+     */
+    private static boolean isFinalTerminator(CharSequence input, int i) {
+        int length = input.length();
+        char c = input.charAt(i);
+
+        if (i == length - 2)
+            return c == '\r' && input.charAt(i + 1) == '\n';
+
+        if (c == '\n')
+            return i == 0 || input.charAt(i - 1) != '\r';
+
+        return c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
+    private char fold(char c) {
+        return ignoreCase && c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    private DState step(DState d, char c) {
+        if (c < ASCII) {
+            DState next = d.next[c];
+            if (next != null)
+                return next;
+        }
+
+        synchronized (this) {
+            IntList list = new IntList();
+            int mark = ++generation;
+
+            for (int s : d.states) {
+                if (op[s] == OP_CHAR && inRanges(ranges[s], c))
+                    closure(list, out[s], false, mark);
+            }
+            // 非锚定搜索: 每个位置都可以重新开始
+            closure(list, start, false, mark);
+
+            DState next = state(list);
+            if (c < ASCII)
+                d.next[c] = next;
+            return next;
+        }
+    }
+
+    private IntList closure(IntList list, int s, boolean atBegin) {
+        return closure(list, s, atBegin, ++generation);
+    }
+
+    private IntList closure(IntList list, int s, boolean atBegin, int mark) {
+        int top = 0;
+        stack[top++] = s;
+
+        while (top > 0) {
+            int n = stack[--top];
+            if (marks[n] == mark)
+                continue;
+            marks[n] = mark;
+
+            switch (op[n]) {
+                case OP_SPLIT:
+                    stack[top++] = out1[n];
+                    stack[top++] = out[n];
+                    break;
+                case OP_EMPTY:
+                    stack[top++] = out[n];
+                    break;
+                case OP_BOL:
+                    if (atBegin)
+                        stack[top++] = out[n];
+                    break;
+                default:
+                    // CHAR, EOL, MATCH
+                    list.add(n);
+                    break;
+            }
+        }
+        return list;
+    }
+
+    private DState state(IntList list) {
+        int[] states = list.toSortedArray();
+        Key key = new Key(states);
+
+        DState d = cache.get(key);
+        if (d != null)
+            return d;
+
+        if (cache.size() >= MAX_DFA_STATES) {
+            // 断开旧状态之间的引用, 让它们可以被回收
+            for (DState old : cache.values())
+                Arrays.fill(old.next, null);
+            cache.clear();
+        }
+
+        int match = Integer.MAX_VALUE;
+        int minLive = Integer.MAX_VALUE;
+
+        for (int s : states) {
+            if (op[s] == OP_MATCH)
+                match = Math.min(match, rule[s]);
+            else
+                minLive = Math.min(minLive, rule[s]);
+        }
+
+        int endMatch = endMatch(states, false);
+
+        d = new DState(states, match, endMatch, minLive);
+        cache.put(key, d);
+        return d;
+    }
+
+    /**
+     * 输入结束时 $ 成立, 可以继续往下走, 返回此时命中的最小 id
+     */
+    private int endMatch(int[] states, boolean atBegin) {
+        int best = Integer.MAX_VALUE;
+        IntList list = new IntList();
+        int mark = ++generation;
+
+        for (int s : states) {
+            if (op[s] == OP_MATCH)
+                best = Math.min(best, rule[s]);
+            else if (op[s] == OP_EOL)
+                closureAtEnd(list, out[s], atBegin, mark);
+        }
+
+        for (int i = 0; i < list.size; i++) {
+            int s = list.data[i];
+            if (op[s] == OP_MATCH)
+                best = Math.min(best, rule[s]);
+        }
+        return best;
+    }
+
+    private void closureAtEnd(IntList list, int s, boolean atBegin, int mark) {
+        IntList found = new IntList();
+        closure(found, s, atBegin, mark);
+        for (int i = 0; i < found.size; i++) {
+            int n = found.data[i];
+            if (op[n] == OP_EOL)
+                closureAtEnd(list, out[n], atBegin, mark);
+            else
+                list.add(n);
+        }
+    }
+
+    private static boolean inRanges(int[] r, char c) {
+        for (int i = 0; i < r.length; i += 2) {
+            if (c < r[i])
+                return false;
+            if (c <= r[i + 1])
+                return true;
+        }
+        return false;
+    }
+
+    private static class DState {
+        final int[] states;
+        final int match;
+        final int endMatch;
+        final int minLive;
+        final DState[] next = new DState[ASCII];
+
+        DState(int[] states, int match, int endMatch, int minLive) {
+            this.states = states;
+            this.match = match;
+            this.endMatch = endMatch;
+            this.minLive = minLive;
+        }
+    }
+
+    private static class Key {
+        final int[] states;
+        final int hash;
+
+        Key(int[] states) {
+            this.states = states;
+            this.hash = Arrays.hashCode(states);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && Arrays.equals(states, ((Key) o).states);
+        }
+    }
+
+    private static class IntList {
+        int[] data = new int[16];
+        int size = 0;
+
+        void add(int v) {
+            if (size == data.length)
+                data = Arrays.copyOf(data, size * 2);
+            data[size++] = v;
+        }
+
+        int[] toSortedArray() {
+            int[] a = Arrays.copyOf(data, size);
+            Arrays.sort(a);
+            return a;
+        }
+    }
+
+    public static class Builder {
+
+        private final boolean ignoreCase;
+
+        private int[] op = new int[64];
+        private int[] out = new int[64];
+        private int[] out1 = new int[64];
+        private int[][] ranges = new int[64][];
+        private int[] rule = new int[64];
+        private int size = 0;
+        private int start = -1;
+        private int patterns = 0;
+
+        public Builder(boolean ignoreCase) {
+            this.ignoreCase = ignoreCase;
+        }
+
+        /**
+         * 加入一条正则, 返回 false 表示自动机无法表达 (或者语法有误), 调用方需自行使用 Pattern
+         */
+        public boolean add(String regex, int id) {
+            Node node;
+            try {
+                node = new Parser(regex, ignoreCase).parse();
+            } catch (UnsupportedOperationException e) {
+                return false;
+            }
+
+            int mark = size;
+            try {
+                int match = emit(OP_MATCH, -1, -1, null, id);
+                int s = compile(node, match, id, mark);
+
+                start = start == -1 ? s : emit(OP_SPLIT, start, s, null, id);
+            } catch (UnsupportedOperationException e) {
+                size = mark;
+                return false;
+            }
+
+            patterns++;
+            return true;
+        }
+
+        public boolean isEmpty() {
+            return patterns == 0;
+        }
+
+        public Automaton build() {
+            return isEmpty() ? null : new Automaton(this);
+        }
+
+        private int compile(Node node, int next, int id, int mark) {
+            if (size - mark > MAX_PATTERN_STATES)
+                throw new UnsupportedOperationException("Pattern too large");
+
+            switch (node.type) {
+                case Node.CHARS:
+                    return emit(OP_CHAR, next, -1, node.ranges, id);
+                case Node.BOL:
+                    return emit(OP_BOL, next, -1, null, id);
+                case Node.EOL:
+                    return emit(OP_EOL, next, -1, null, id);
+                case Node.CONCAT:
+                    for (int i = node.children.size() - 1; i >= 0; i--)
+                        next = compile(node.children.get(i), next, id, mark);
+                    return next;
+                case Node.ALT: {
+                    int s = compile(node.children.get(node.children.size() - 1), next, id, mark);
+                    for (int i = node.children.size() - 2; i >= 0; i--)
+                        s = emit(OP_SPLIT, compile(node.children.get(i), next, id, mark), s, null, id);
+                    return s;
+                }
+                case Node.REPEAT:
+                    return compileRepeat(node, next, id, mark);
+                default:
+                    return next;
+            }
+        }
+
+        private int compileRepeat(Node node, int next, int id, int mark) {
+            Node child = node.children.get(0);
+            int s = next;
+
+            if (node.max == -1) {
+                // x* : loop -> (x -> loop) | next
+                int loop = emit(OP_SPLIT, -1, next, null, id);
+                // compile 可能扩容数组, 先算出结果再赋值
+                int body = compile(child, loop, id, mark);
+                out[loop] = body;
+                s = loop;
+            } else {
+                // x{0,k}: (x(x)?)? 嵌套的可选项
+                for (int i = node.min; i < node.max; i++)
+                    s = emit(OP_SPLIT, compile(child, s, id, mark), next, null, id);
+            }
+
+            for (int i = 0; i < node.min; i++)
+                s = compile(child, s, id, mark);
+
+            return s;
+        }
+
+        private int emit(int code, int o, int o1, int[] r, int id) {
+            if (size == op.length) {
+                int n = size * 2;
+                op = Arrays.copyOf(op, n);
+                out = Arrays.copyOf(out, n);
+                out1 = Arrays.copyOf(out1, n);
+                ranges = Arrays.copyOf(ranges, n);
+                rule = Arrays.copyOf(rule, n);
+            }
+            op[size] = code;
+            out[size] = o;
+            out1[size] = o1;
+            ranges[size] = r;
+            rule[size] = id;
+            return size++;
+        }
+    }
+
+    private static class Node {
+        static final int EMPTY = 0;
+        static final int CHARS = 1;
+        static final int CONCAT = 2;
+        static final int ALT = 3;
+        static final int REPEAT = 4;
+        static final int BOL = 5;
+        static final int EOL = 6;
+
+        final int type;
+        int[] ranges;
+        List<Node> children = new ArrayList<>();
+        int min;
+        int max;
+
+        Node(int type) {
+            this.type = type;
+        }
+
+        static Node chars(int[] ranges) {
+            Node node = new Node(CHARS);
+            node.ranges = ranges;
+            return node;
+        }
+    }
+
+    /**
+     * 只解析 Automaton 支持的子集, 其它一律抛出 UnsupportedOperationException
+     */
+    private static class Parser {
+        private static final int MAX_REPEAT = 64;
+
+        private final String regex;
+        private final boolean ignoreCase;
+        private int pos = 0;
+
+        Parser(String regex, boolean ignoreCase) {
+            this.regex = regex;
+            this.ignoreCase = ignoreCase;
+        }
+
+        Node parse() {
+            Node node = parseAlt();
+            if (pos != regex.length())
+                throw unsupported();
+            return node;
+        }
+
+        private Node parseAlt() {
+            Node first = parseConcat();
+            if (!peek('|'))
+                return first;
+
+            Node alt = new Node(Node.ALT);
+            alt.children.add(first);
+            while (peek('|')) {
+                pos++;
+                alt.children.add(parseConcat());
+            }
+            return alt;
+        }
+
+        private Node parseConcat() {
+            Node concat = new Node(Node.CONCAT);
+            while (pos < regex.length() && !peek('|') && !peek(')'))
+                concat.children.add(parseRepeat());
+
+            if (concat.children.isEmpty())
+                return new Node(Node.EMPTY);
+            return concat.children.size() == 1 ? concat.children.get(0) : concat;
+        }
+
+        private Node parseRepeat() {
+            Node atom = parseAtom();
+
+            while (pos < regex.length()) {
+                int min, max;
+                char c = regex.charAt(pos);
+                if (c == '*') {
+                    min = 0; max = -1; pos++;
+                } else if (c == '+') {
+                    min = 1; max = -1; pos++;
+                } else if (c == '?') {
+                    min = 0; max = 1; pos++;
+                } else if (c == '{') {
+                    pos++;
+                    min = parseInt();
+                    max = min;
+                    if (peek(',')) {
+                        pos++;
+                        max = peek('}') ? -1 : parseInt();
+                    }
+                    expect('}');
+                    if (min > MAX_REPEAT || max > MAX_REPEAT || (max != -1 && max < min))
+                        throw unsupported();
+                } else {
+                    break;
+                }
+
+                // 懒惰量词对"是否命中"没有影响, 占有量词不支持
+                if (peek('?'))
+                    pos++;
+                else if (peek('+'))
+                    throw unsupported();
+
+                if (atom.type == Node.BOL || atom.type == Node.EOL)
+                    throw unsupported();
+
+                Node repeat = new Node(Node.REPEAT);
+                repeat.children.add(atom);
+                repeat.min = min;
+                repeat.max = max;
+                atom = repeat;
+            }
+            return atom;
+        }
+
+        private Node parseAtom() {
+            char c = regex.charAt(pos++);
+            switch (c) {
+                case '(': {
+                    if (peek('?')) {
+                        if (pos + 1 < regex.length() && regex.charAt(pos + 1) == ':')
+                            pos += 2;
+                        else
+                            throw unsupported();
+                    }
+                    Node node = parseAlt();
+                    expect(')');
+                    return node;
+                }
+                case '[':
+                    return Node.chars(parseClass());
+                case '.':
+                    return Node.chars(DOT);
+                case '^':
+                    return new Node(Node.BOL);
+                case '$':
+                    return new Node(Node.EOL);
+                case '\\':
+                    return Node.chars(fold(parseEscape()));
+                case '*':
+                case '+':
+                case '?':
+                case '{':
+                case ')':
+                    throw unsupported();
+                default:
+                    return Node.chars(fold(new int[]{c, c}));
+            }
+        }
+
+        private int[] parseClass() {
+            boolean negate = false;
+            if (peek('^')) {
+                negate = true;
+                pos++;
+            }
+
+            // []] 之类的写法交给 Pattern
+            if (peek(']'))
+                throw unsupported();
+
+            List<int[]> parts = new ArrayList<>();
+            while (!peek(']')) {
+                if (pos >= regex.length())
+                    throw unsupported();
+
+                char c = regex.charAt(pos++);
+                if (c == '[' || (c == '&' && peek('&')))
+                    throw unsupported();
+
+                int[] lo;
+                if (c == '\\') {
+                    lo = parseEscape();
+                } else {
+                    lo = new int[]{c, c};
+                }
+
+                // a-z
+                if (lo.length == 2 && lo[0] == lo[1] && peek('-')
+                        && pos + 1 < regex.length() && regex.charAt(pos + 1) != ']') {
+                    pos++;
+                    char h = regex.charAt(pos++);
+                    int[] hi = h == '\\' ? parseEscape() : new int[]{h, h};
+                    if (hi.length != 2 || hi[0] != hi[1] || hi[0] < lo[0])
+                        throw unsupported();
+                    parts.add(new int[]{lo[0], hi[0]});
+                } else {
+                    parts.add(lo);
+                }
+            }
+            pos++;
+
+            int[] r = fold(union(parts));
+            return negate ? negate(r) : r;
+        }
+
+        /**
+         * 不折叠大小写, 由调用方统一折叠, 否则 [\x41-\x5A] 的端点会变成两个区间
+         */
+        private int[] parseEscape() {
+            if (pos >= regex.length())
+                throw unsupported();
+
+            char c = regex.charAt(pos++);
+            switch (c) {
+                case 'd': return DIGIT;
+                case 'D': return negate(DIGIT);
+                case 'w': return WORD;
+                case 'W': return negate(WORD);
+                case 's': return SPACE;
+                case 'S': return negate(SPACE);
+                case 't': return new int[]{'\t', '\t'};
+                case 'n': return new int[]{'\n', '\n'};
+                case 'r': return new int[]{'\r', '\r'};
+                case 'f': return new int[]{'\f', '\f'};
+                case 'a': return new int[]{0x7, 0x7};
+                case 'e': return new int[]{0x1b, 0x1b};
+                case 'x': {
+                    int v = parseHex(2);
+                    return new int[]{v, v};
+                }
+                case 'u': {
+                    int v = parseHex(4);
+                    return new int[]{v, v};
+                }
+                default:
+                    // \b \B \A \z \1 \p{..} \Q..\E 等
+                    if (Character.isLetterOrDigit(c))
+                        throw unsupported();
+                    return new int[]{c, c};
+            }
+        }
+
+        private int parseHex(int digits) {
+            if (pos + digits > regex.length())
+                throw unsupported();
+            try {
+                int v = Integer.parseInt(regex.substring(pos, pos + digits), 16);
+                pos += digits;
+                return v;
+            } catch (NumberFormatException e) {
+                throw unsupported();
+            }
+        }
+
+        private int parseInt() {
+            int begin = pos;
+            while (pos < regex.length() && Character.isDigit(regex.charAt(pos)))
+                pos++;
+            if (begin == pos || pos - begin > 4)
+                throw unsupported();
+            return Integer.parseInt(regex.substring(begin, pos));
+        }
+
+        /**
+         * 和 Pattern.CASE_INSENSITIVE 一样只折叠 US-ASCII, 输入统一转小写, 所以只需补上小写区间
+         */
+        private int[] fold(int[] r) {
+            if (!ignoreCase)
+                return r;
+
+            List<int[]> parts = new ArrayList<>();
+            parts.add(r);
+            for (int i = 0; i < r.length; i += 2) {
+                int lo = Math.max(r[i], 'A');
+                int hi = Math.min(r[i + 1], 'Z');
+                if (lo <= hi)
+                    parts.add(new int[]{lo + ('a' - 'A'), hi + ('a' - 'A')});
+            }
+            return parts.size() == 1 ? r : union(parts);
+        }
+
+        private boolean peek(char c) {
+            return pos < regex.length() && regex.charAt(pos) == c;
+        }
+
+        private void expect(char c) {
+            if (!peek(c))
+                throw unsupported();
+            pos++;
+        }
+
+        private UnsupportedOperationException unsupported() {
+            return new UnsupportedOperationException(regex);
+        }
+    }
+
+    /**
+     * 合并成有序且不重叠的区间
+     */
+    private static int[] union(List<int[]> parts) {
+        List<int[]> pairs = new ArrayList<>();
+        for (int[] p : parts)
+            for (int i = 0; i < p.length; i += 2)
+                pairs.add(new int[]{p[i], p[i + 1]});
+
+        java.util.Collections.sort(pairs, new java.util.Comparator<int[]>() {
+            @Override
+            public int compare(int[] a, int[] b) {
+                return a[0] - b[0];
+            }
+        });
+
+        IntList merged = new IntList();
+        for (int[] p : pairs) {
+            if (merged.size > 0 && p[0] <= merged.data[merged.size - 1] + 1) {
+                merged.data[merged.size - 1] = Math.max(merged.data[merged.size - 1], p[1]);
+            } else {
+                merged.add(p[0]);
+                merged.add(p[1]);
+            }
+        }
+        return Arrays.copyOf(merged.data, merged.size);
+    }
+
+    private static int[] negate(int[] r) {
+        IntList list = new IntList();
+        int next = 0;
+        for (int i = 0; i < r.length; i += 2) {
+            if (r[i] > next) {
+                list.add(next);
+                list.add(r[i] - 1);
+            }
+            next = r[i + 1] + 1;
+        }
+        if (next <= 0xffff) {
+            list.add(next);
+            list.add(0xffff);
+        }
+        return Arrays.copyOf(list.data, list.size);
+    }
+}
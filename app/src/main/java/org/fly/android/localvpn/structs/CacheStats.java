@@ -0,0 +1,62 @@
+package org.fly.android.localvpn.structs;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 缓存命中率和查询耗时的统计
+ */
+public class CacheStats {
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong lookups = new AtomicLong();
+    private final AtomicLong lookupNanos = new AtomicLong();
+
+    public void hit() {
+        hits.incrementAndGet();
+    }
+
+    public void miss() {
+        misses.incrementAndGet();
+    }
+
+    public void lookup(long nanos) {
+        lookups.incrementAndGet();
+        lookupNanos.addAndGet(nanos);
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public double getHitRate() {
+        long total = hits.get() + misses.get();
+        return total == 0 ? 0 : (double) hits.get() / total;
+    }
+
+    /**
+     * 平均每次查询耗时 (纳秒)
+     */
+    public long getAverageNanos() {
+        long count = lookups.get();
+        return count == 0 ? 0 : lookupNanos.get() / count;
+    }
+
+    public void reset() {
+        hits.set(0);
+        misses.set(0);
+        lookups.set(0);
+        lookupNanos.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "hits=%d misses=%d hitRate=%.2f%% avg=%dns",
+                getHits(), getMisses(), getHitRate() * 100, getAverageNanos());
+    }
+}
@@ -0,0 +1,144 @@
+package org.fly.android.localvpn.structs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 有容量上限的并发缓存, 用 CLOCK (second-chance) 算法淘汰, 不是严格的 LRU
+ *
+ * 读取不加锁, 只设置访问标记. 所有项按插入顺序排成一个环, 指针在队首:
+ * 超出容量时由一个写线程从指针处继续扫描, 有标记的清掉标记放到队尾, 没有标记的淘汰.
+ * 新的项在队尾, 指针转一圈之后才会经过, 所以刚放入的项不会马上被淘汰
+ */
+public class ConcurrentClockCache<K, V> {
+
+    private final int maxSize;
+    private final ConcurrentHashMap<K, Node<K, V>> map;
+    // 队首就是 CLOCK 的指针; 删除或者被淘汰的项留在环中, 指针经过时丢弃
+    private final ConcurrentLinkedQueue<Node<K, V>> ring = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger ringSize = new AtomicInteger();
+    private final AtomicBoolean evicting = new AtomicBoolean(false);
+
+    public ConcurrentClockCache(int maxSize) {
+        this.maxSize = maxSize;
+        this.map = new ConcurrentHashMap<>(maxSize + maxSize / 4);
+    }
+
+    public V get(K key) {
+        Node<K, V> node = map.get(key);
+        if (node == null)
+            return null;
+
+        node.referenced = true;
+        return node.value;
+    }
+
+    public void put(K key, V value) {
+        Node<K, V> node = new Node<>(key, value);
+
+        while (true) {
+            Node<K, V> old = map.putIfAbsent(key, node);
+            if (old == null) {
+                added(node);
+                return;
+            }
+
+            // 已经存在时原地更新, 在环中的位置不变; 同时被淘汰时重试
+            old.value = value;
+            if (map.get(key) == old)
+                return;
+        }
+    }
+
+    /**
+     * @return 已经存在时返回 false, 不覆盖
+     */
+    public boolean putIfAbsent(K key, V value) {
+        Node<K, V> node = new Node<>(key, value);
+        if (map.putIfAbsent(key, node) != null)
+            return false;
+
+        added(node);
+        return true;
+    }
+
+    public void remove(K key) {
+        map.remove(key);
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    /**
+     * 当前所有值的快照, 不影响淘汰顺序
+     */
+    public List<V> values() {
+        List<V> values = new ArrayList<>(map.size());
+        for (Node<K, V> node : map.values())
+            values.add(node.value);
+        return values;
+    }
+
+    public void clear() {
+        map.clear();
+        // 剩下的项都不在 map 中了, 指针经过时丢弃
+        evict();
+    }
+
+    private void added(Node<K, V> node) {
+        ring.offer(node);
+        ringSize.incrementAndGet();
+
+        // 删除的项太多时也扫一遍, 不让环无限增长
+        if (map.size() > maxSize || ringSize.get() > 2 * maxSize)
+            evict();
+    }
+
+    private void evict() {
+        if (!evicting.compareAndSet(false, true))
+            return;
+
+        try {
+            int target = maxSize - maxSize / 8;
+            // 每个项最多经过两次: 第一次清掉访问标记, 第二次一定能淘汰
+            int budget = 2 * ringSize.get();
+
+            while (budget-- > 0 && (map.size() > target || ringSize.get() > map.size())) {
+                Node<K, V> node = ring.poll();
+                if (node == null)
+                    break;
+                ringSize.decrementAndGet();
+
+                // 已经删除
+                if (map.get(node.key) != node)
+                    continue;
+
+                if (node.referenced || map.size() <= target) {
+                    node.referenced = false;
+                    ring.offer(node);
+                    ringSize.incrementAndGet();
+                } else {
+                    map.remove(node.key, node);
+                }
+            }
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    private static class Node<K, V> {
+        final K key;
+        volatile V value;
+        volatile boolean referenced = false;
+
+        Node(K key, V value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+}
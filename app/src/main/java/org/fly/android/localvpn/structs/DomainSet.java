@@ -0,0 +1,499 @@
+package org.fly.android.localvpn.structs;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * 大量域名 (几十万条的广告/跟踪列表) 的紧凑存储
+ *
+ * 域名按字符反转 (ads.example.com -> moc.elpmaxe.sda) 后排序, 每 {@link #BLOCK_SIZE} 条一组做前缀压缩,
+ * 查询时二分定位分组再顺序解码. 反转之后父域名正好是查询串的前缀, 所以可以同时判断子域名.
+ * 前面有一个布隆过滤器, 绝大多数没有命中的查询不需要访问排序数据.
+ *
+ * 所有数据都放在 Buffer 里, 可以通过 {@link #write(File, long)} / {@link #map(File, long)} 直接映射文件
+ */
+public class DomainSet {
+
+    public static final int BLOCK_SIZE = 16;
+
+    // 每个域名占用的布隆过滤器位数, 约 1% 误判率
+    private static final int BITS_PER_ENTRY = 10;
+    private static final int HASHES = 7;
+
+    private static final int MAX_DOMAIN_LENGTH = 253;
+
+    // 快照文件格式
+    private static final int MAGIC = 0x444f4d53; // DOMS
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 48;
+
+    private final int count;
+    private final boolean subdomains;
+    // 前缀压缩后的域名
+    private final ByteBuffer data;
+    // 每组第一条在 data 中的偏移
+    private final IntBuffer index;
+    private final LongBuffer bloom;
+    private final long bloomBits;
+
+    public DomainSet(int count, boolean subdomains, ByteBuffer data, IntBuffer index, LongBuffer bloom) {
+        this.count = count;
+        this.subdomains = subdomains;
+        this.data = data;
+        this.index = index;
+        this.bloom = bloom;
+        this.bloomBits = (long) bloom.capacity() * Long.SIZE;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public boolean isSubdomains() {
+        return subdomains;
+    }
+
+    public ByteBuffer getData() {
+        return data.duplicate();
+    }
+
+    public IntBuffer getIndex() {
+        return index.duplicate();
+    }
+
+    public LongBuffer getBloom() {
+        return bloom.duplicate();
+    }
+
+    /**
+     * 占用的字节数
+     */
+    public long getMemorySize() {
+        return data.capacity() + (long) index.capacity() * 4 + (long) bloom.capacity() * 8;
+    }
+
+    /**
+     * 写入快照文件, 可以用 {@link #map(File, long)} 直接映射回来
+     * 先写临时文件再改名, 正在映射旧文件的读者不受影响
+     *
+     * @param stamp 调用者自定义的版本号, 比如源文件的修改时间
+     */
+    public void write(File file, long stamp) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC)
+                .putInt(VERSION)
+                .putLong(stamp)
+                .putInt(count)
+                .putInt(subdomains ? 1 : 0)
+                .putInt(data.capacity())
+                .putInt(index.capacity())
+                .putInt(bloom.capacity());
+        header.clear();
+
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            FileChannel channel = out.getChannel();
+
+            writeFully(channel, header);
+            writeFully(channel, data.duplicate());
+            writeFully(channel, ByteBuffer.allocate(padding(data.capacity())));
+
+            ByteBuffer buffer = ByteBuffer.allocate(index.capacity() * 4);
+            buffer.asIntBuffer().put(index.duplicate());
+            writeFully(channel, buffer);
+            writeFully(channel, ByteBuffer.allocate(padding(buffer.capacity())));
+
+            buffer = ByteBuffer.allocate(bloom.capacity() * 8);
+            buffer.asLongBuffer().put(bloom.duplicate());
+            writeFully(channel, buffer);
+
+            channel.force(false);
+        }
+
+        if (!tmp.renameTo(file))
+        {
+            tmp.delete();
+            throw new IOException("Rename failed: " + tmp + " -> " + file);
+        }
+    }
+
+    /**
+     * 只读映射快照文件, 数据不进 Java 堆, 由系统按需换页
+     *
+     * @return 文件不存在, 格式不对或者 stamp 不一致时返回 null
+     */
+    public static DomainSet map(File file, long stamp) throws IOException {
+        if (!file.isFile() || file.length() < HEADER_SIZE)
+            return null;
+
+        try (FileInputStream in = new FileInputStream(file)) {
+            FileChannel channel = in.getChannel();
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION || buffer.getLong() != stamp)
+                return null;
+
+            int count = buffer.getInt();
+            boolean subdomains = buffer.getInt() != 0;
+            int dataSize = buffer.getInt();
+            int indexSize = buffer.getInt();
+            int bloomSize = buffer.getInt();
+
+            long total = HEADER_SIZE + dataSize + padding(dataSize) + indexSize * 4L + padding(indexSize * 4) + bloomSize * 8L;
+            if (count < 0 || dataSize < 0 || indexSize < 0 || bloomSize <= 0 || total != buffer.capacity())
+                return null;
+
+            buffer.position(HEADER_SIZE);
+            ByteBuffer data = slice(buffer, dataSize);
+            buffer.position(buffer.position() + padding(dataSize));
+            IntBuffer index = slice(buffer, indexSize * 4).asIntBuffer();
+            buffer.position(buffer.position() + padding(indexSize * 4));
+            LongBuffer bloom = slice(buffer, bloomSize * 8).asLongBuffer();
+
+            return new DomainSet(count, subdomains, data, index, bloom);
+        }
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int size) {
+        ByteBuffer slice = buffer.slice();
+        slice.limit(size);
+        buffer.position(buffer.position() + size);
+        return slice.slice();
+    }
+
+    // 8 字节对齐
+    private static int padding(int size) {
+        return (8 - (size & 7)) & 7;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
+    /**
+     * domain 本身或 (subdomains 为 true 时) 它的任意一级父域名在列表中
+     */
+    public boolean contains(String domain) {
+        if (count == 0)
+            return false;
+
+        int end = domain.length();
+        // 忽略末尾的 .
+        if (end > 0 && domain.charAt(end - 1) == '.')
+            end--;
+
+        if (end == 0 || end > MAX_DOMAIN_LENGTH)
+            return false;
+
+        byte[] scratch = null;
+        int h1 = FNV_OFFSET, h2 = SEED;
+
+        // 从后往前就是反转后的顺序
+        for (int i = end - 1; i >= 0; i--) {
+            int c = lower(domain.charAt(i));
+            h1 = (h1 ^ c) * FNV_PRIME;
+            h2 = (h2 ^ c) * MIX_PRIME;
+
+            boolean boundary = i == 0 || (subdomains && domain.charAt(i - 1) == '.');
+            if (!boundary)
+                continue;
+
+            if (!mightContain(h1, h2))
+                continue;
+
+            if (scratch == null)
+                scratch = new byte[MAX_DOMAIN_LENGTH + 1];
+
+            if (search(domain, end, i, scratch))
+                return true;
+        }
+
+        return false;
+    }
+
+    private boolean mightContain(int h1, int h2) {
+        int a = mix(h1), b = mix(h2) | 1;
+        for (int k = 0; k < HASHES; k++) {
+            long bit = ((a + (long) k * b) & 0x7fffffffffffffffL) % bloomBits;
+            if ((bloom.get((int) (bit >>> 6)) & (1L << (bit & 63))) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * 在排序数据中查找 domain[from, end) 反转后的字符串
+     */
+    private boolean search(String domain, int end, int from, byte[] scratch) {
+        int blocks = index.capacity();
+        int lo = 0, hi = blocks - 1;
+
+        // 找到最后一个首条 <= key 的分组
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            int offset = index.get(mid);
+            int length = data.get(offset) & 0xff;
+
+            int cmp = compare(data, offset + 1, length, domain, end, from);
+            if (cmp == 0)
+                return true;
+            if (cmp < 0)
+                lo = mid;
+            else
+                hi = mid - 1;
+        }
+
+        int offset = index.get(lo);
+        int entries = Math.min(BLOCK_SIZE, count - lo * BLOCK_SIZE);
+
+        int length = data.get(offset++) & 0xff;
+        for (int i = 0; i < length; i++)
+            scratch[i] = data.get(offset++);
+
+        for (int n = 0; ; ) {
+            int cmp = compare(scratch, length, domain, end, from);
+            if (cmp == 0)
+                return true;
+            if (cmp > 0 || ++n >= entries)
+                return false;
+
+            int shared = data.get(offset++) & 0xff;
+            int suffix = data.get(offset++) & 0xff;
+            for (int i = 0; i < suffix; i++)
+                scratch[shared + i] = data.get(offset++);
+            length = shared + suffix;
+        }
+    }
+
+    private static int compare(ByteBuffer buffer, int offset, int length, String domain, int end, int from) {
+        int keyLength = end - from;
+        int n = Math.min(length, keyLength);
+        for (int i = 0; i < n; i++) {
+            int a = buffer.get(offset + i) & 0xff;
+            int b = lower(domain.charAt(end - 1 - i));
+            if (a != b)
+                return a - b;
+        }
+        return length - keyLength;
+    }
+
+    private static int compare(byte[] bytes, int length, String domain, int end, int from) {
+        int keyLength = end - from;
+        int n = Math.min(length, keyLength);
+        for (int i = 0; i < n; i++) {
+            int a = bytes[i] & 0xff;
+            int b = lower(domain.charAt(end - 1 - i));
+            if (a != b)
+                return a - b;
+        }
+        return length - keyLength;
+    }
+
+    private static int lower(char c) {
+        return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : (c & 0xff);
+    }
+
+    private static final int FNV_OFFSET = 0x811c9dc5;
+    private static final int FNV_PRIME = 0x01000193;
+    private static final int SEED = 0x9747b28c;
+    private static final int MIX_PRIME = 0x5bd1e995;
+
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     * 从 hosts 文件或者域名列表构建, 每行支持:
+     * <pre>
+     * 0.0.0.0 ads.example.com tracker.example.com
+     * ads.example.com
+     * ||ads.example.com^
+     * # 注释
+     * </pre>
+     */
+    public static class Builder {
+
+        private final List<byte[]> domains = new ArrayList<>();
+
+        public Builder add(String domain) {
+            byte[] reversed = normalize(domain);
+            if (reversed != null)
+                domains.add(reversed);
+            return this;
+        }
+
+        public Builder read(Reader reader) throws IOException {
+            BufferedReader in = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader);
+
+            String line;
+            while ((line = in.readLine()) != null) {
+                int comment = line.indexOf('#');
+                if (comment >= 0)
+                    line = line.substring(0, comment);
+
+                line = line.trim();
+                if (line.isEmpty() || line.charAt(0) == '!')
+                    continue;
+
+                String[] tokens = line.split("\\s+");
+                if (tokens.length > 1 && isAddress(tokens[0])) {
+                    for (int i = 1; i < tokens.length; i++)
+                        add(tokens[i]);
+                } else {
+                    add(tokens[0]);
+                }
+            }
+            return this;
+        }
+
+        public int size() {
+            return domains.size();
+        }
+
+        public DomainSet build(boolean subdomains) {
+            byte[][] sorted = domains.toArray(new byte[domains.size()][]);
+            domains.clear();
+
+            Arrays.sort(sorted, new Comparator<byte[]>() {
+                @Override
+                public int compare(byte[] a, byte[] b) {
+                    return compareBytes(a, b);
+                }
+            });
+
+            // 去重
+            int count = 0;
+            for (int i = 0; i < sorted.length; i++) {
+                if (count == 0 || compareBytes(sorted[count - 1], sorted[i]) != 0)
+                    sorted[count++] = sorted[i];
+            }
+
+            int blocks = (count + BLOCK_SIZE - 1) / BLOCK_SIZE;
+            IntBuffer index = IntBuffer.allocate(blocks);
+
+            int size = 0;
+            for (int i = 0; i < count; i++)
+                size += 2 + sorted[i].length;
+
+            ByteBuffer data = ByteBuffer.allocate(size);
+            for (int i = 0; i < count; i++) {
+                byte[] domain = sorted[i];
+                if (i % BLOCK_SIZE == 0) {
+                    index.put(data.position());
+                    data.put((byte) domain.length);
+                    data.put(domain);
+                } else {
+                    byte[] previous = sorted[i - 1];
+                    int shared = 0;
+                    int n = Math.min(previous.length, domain.length);
+                    while (shared < n && previous[shared] == domain[shared])
+                        shared++;
+
+                    data.put((byte) shared);
+                    data.put((byte) (domain.length - shared));
+                    data.put(domain, shared, domain.length - shared);
+                }
+            }
+
+            data.flip();
+            ByteBuffer compact = ByteBuffer.allocate(data.remaining());
+            compact.put(data);
+            compact.flip();
+            index.flip();
+
+            long bits = Math.max(Long.SIZE, (long) count * BITS_PER_ENTRY);
+            LongBuffer bloom = LongBuffer.allocate((int) ((bits + Long.SIZE - 1) / Long.SIZE));
+
+            DomainSet set = new DomainSet(count, subdomains, compact, index, bloom);
+            for (int i = 0; i < count; i++)
+                set.addToBloom(sorted[i]);
+
+            return set;
+        }
+
+        private static boolean isAddress(String token) {
+            for (int i = 0; i < token.length(); i++) {
+                char c = token.charAt(i);
+                if (!(c == '.' || c == ':' || (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F')))
+                    return false;
+            }
+            return token.indexOf('.') >= 0 || token.indexOf(':') >= 0;
+        }
+
+        /**
+         * 转小写并反转, 不合法的返回 null
+         */
+        private static byte[] normalize(String domain) {
+            if (domain.startsWith("||"))
+                domain = domain.substring(2);
+            if (domain.endsWith("^"))
+                domain = domain.substring(0, domain.length() - 1);
+            if (domain.startsWith("*."))
+                domain = domain.substring(2);
+            if (domain.endsWith("."))
+                domain = domain.substring(0, domain.length() - 1);
+
+            int length = domain.length();
+            if (length == 0 || length > MAX_DOMAIN_LENGTH || domain.indexOf('.') < 0)
+                return null;
+
+            if (domain.equalsIgnoreCase("localhost.localdomain"))
+                return null;
+
+            byte[] bytes = new byte[length];
+            for (int i = 0; i < length; i++) {
+                char c = domain.charAt(i);
+                if (!(c == '.' || c == '-' || c == '_' || (c >= '0' && c <= '9') || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')))
+                    return null;
+
+                bytes[length - 1 - i] = (byte) lower(c);
+            }
+            return bytes;
+        }
+    }
+
+    private void addToBloom(byte[] reversed) {
+        int h1 = FNV_OFFSET, h2 = SEED;
+        for (byte b : reversed) {
+            int c = b & 0xff;
+            h1 = (h1 ^ c) * FNV_PRIME;
+            h2 = (h2 ^ c) * MIX_PRIME;
+        }
+
+        int a = mix(h1), b = mix(h2) | 1;
+        for (int k = 0; k < HASHES; k++) {
+            long bit = ((a + (long) k * b) & 0x7fffffffffffffffL) % bloomBits;
+            int word = (int) (bit >>> 6);
+            bloom.put(word, bloom.get(word) | (1L << (bit & 63)));
+        }
+    }
+
+    private static int compareBytes(byte[] a, byte[] b) {
+        int n = Math.min(a.length, b.length);
+        for (int i = 0; i < n; i++) {
+            int d = (a[i] & 0xff) - (b[i] & 0xff);
+            if (d != 0)
+                return d;
+        }
+        return a.length - b.length;
+    }
+}
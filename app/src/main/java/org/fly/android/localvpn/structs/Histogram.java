@@ -0,0 +1,105 @@
+package org.fly.android.localvpn.structs;
+
+import java.util.Locale;
+
+/**
+ * 固定内存的对数直方图, 用于统计耗时的百分位
+ *
+ * 每翻一倍分 4 个桶, 相对误差不超过 25%. 0 ~ 3 各占一个桶, 最大记录到 2^21 - 1,
+ * 更大的值记在最后一个桶中
+ */
+public class Histogram {
+
+    private static final int SUB_BUCKETS = 4;
+    private static final int MAX_EXPONENT = 20;
+    private static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+    private static final int BUCKETS = MAX_EXPONENT * SUB_BUCKETS;
+
+    private final int[] counts = new int[BUCKETS];
+    private long count = 0;
+    private long sum = 0;
+    private long max = 0;
+
+    private static int index(long value)
+    {
+        if (value < SUB_BUCKETS)
+            return (int) Math.max(0, value);
+
+        value = Math.min(value, MAX_VALUE);
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >> (exponent - 2)) & (SUB_BUCKETS - 1);
+        return (exponent - 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * 桶中最大的值
+     */
+    private static long upper(int index)
+    {
+        if (index < SUB_BUCKETS)
+            return index;
+
+        int exponent = index / SUB_BUCKETS + 1;
+        int sub = index % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + sub + 1) << (exponent - 2)) - 1;
+    }
+
+    public synchronized void record(long value)
+    {
+        if (value < 0)
+            return;
+
+        counts[index(value)]++;
+        count++;
+        sum += value;
+        max = Math.max(max, value);
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized long getMax() {
+        return max;
+    }
+
+    public synchronized long getMean() {
+        return count == 0 ? 0 : sum / count;
+    }
+
+    /**
+     * @param percentile 0 ~ 100
+     * @return 所在桶的上限, 不超过记录过的最大值; 没有记录时为 0
+     */
+    public synchronized long getPercentile(double percentile)
+    {
+        if (count == 0)
+            return 0;
+
+        long rank = (long) Math.ceil(count * Math.min(100, Math.max(0, percentile)) / 100);
+        rank = Math.max(1, rank);
+
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            seen += counts[i];
+            if (seen >= rank)
+                return Math.min(upper(i), max);
+        }
+
+        return max;
+    }
+
+    public synchronized void reset()
+    {
+        for (int i = 0; i < BUCKETS; i++)
+            counts[i] = 0;
+        count = sum = max = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "n=%d p50=%d p90=%d p99=%d max=%d",
+                count, getPercentile(50), getPercentile(90), getPercentile(99), max);
+    }
+}
@@ -17,6 +17,15 @@ import java.util.Map;
 public class Jacksonable {
 
     public static class Builder{
+
+        // 配置完成后的 ObjectMapper 是线程安全的, 默认共用一个
+        private static final ObjectMapper adapter = makeAdapter();
+
+        public static ObjectMapper getAdapter()
+        {
+            return adapter;
+        }
+
         public static ObjectMapper makeAdapter()
         {
             ObjectMapper objectMapper = new ObjectMapper();
@@ -31,7 +40,7 @@ public class Jacksonable {
 
         public static String toJson(Object o)
         {
-            return toJson(makeAdapter(), o);
+            return toJson(getAdapter(), o);
         }
 
         public static String toJson(ObjectMapper objectMapper, Object o)
@@ -48,7 +57,7 @@ public class Jacksonable {
 
         public static void toJson(File file, Object o) throws IOException
         {
-            toJson(makeAdapter(), file, o);
+            toJson(getAdapter(), file, o);
         }
 
         public static void toJson(ObjectMapper objectMapper, File file, Object o) throws IOException
@@ -74,12 +83,12 @@ public class Jacksonable {
 
         public static <T> Map<String, T> jsonToMap(String json)
         {
-            return jsonToMap(makeAdapter(), json);
+            return jsonToMap(getAdapter(), json);
         }
 
         public static <T> List<Map<String, T>> jsonToRecords(String json)
         {
-            return jsonToRecords(makeAdapter(), json);
+            return jsonToRecords(getAdapter(), json);
         }
 
         public static <T> List<Map<String, T>> jsonToRecords(ObjectMapper objectMapper, String json)
@@ -99,7 +108,7 @@ public class Jacksonable {
         }
 
         public static <T> List<T> jsonToList(String json){
-            return jsonToList(makeAdapter(), json);
+            return jsonToList(getAdapter(), json);
         }
 
         public static <T> List<T> jsonToList(ObjectMapper objectMapper, String json)
@@ -126,7 +135,7 @@ public class Jacksonable {
 
     public static <T> T fromJson(final Class<T> clazz, String json) throws IOException
     {
-        return fromJson(Builder.makeAdapter(), clazz, json);
+        return fromJson(Builder.getAdapter(), clazz, json);
     }
 
     public static <T> T fromJson(ObjectMapper objectMapper, final Class<T> clazz, byte[] json) throws IOException
@@ -146,7 +155,7 @@ public class Jacksonable {
 
     public static <T> T fromJson(final Class<T> clazz, File file) throws IOException
     {
-        return fromJson(Builder.makeAdapter(), clazz, file);
+        return fromJson(Builder.getAdapter(), clazz, file);
     }
 
     public String toJson(ObjectMapper objectMapper)
@@ -157,7 +166,7 @@ public class Jacksonable {
 
     public String toJson()
     {
-        return toJson(Builder.makeAdapter());
+        return toJson(Builder.getAdapter());
     }
 
     public void toJson(ObjectMapper objectMapper, File file) throws Exception
@@ -167,6 +176,6 @@ public class Jacksonable {
 
     public void toJson(File file) throws Exception
     {
-        toJson(Builder.makeAdapter(), file);
+        toJson(Builder.getAdapter(), file);
     }
 }
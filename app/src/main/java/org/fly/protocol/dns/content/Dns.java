@@ -18,7 +18,7 @@ public class Dns {
      * See: https://en.wikipedia.org/wiki/List_of_DNS_record_types
      * 中文: https://zh.wikipedia.org/wiki/%E5%9F%9F%E5%90%8D%E4%BC%BA%E6%9C%8D%E5%99%A8%E8%A8%98%E9%8C%84%E9%A1%9E%E5%9E%8B%E5%88%97%E8%A1%A8
      */
-    public enum TYPE {
+    public enum TYPE implements Coded {
         NONE(0),
         A(1),
         AAAA(28),
@@ -46,6 +46,7 @@ public class Dns {
         NSEC3(50),
         NSEC3PARAM(51),
         OPENPGPKEY(61),
+        OPT(41),
         PTR(12),
         RRSIG(46),
         RP(17),
@@ -53,6 +54,8 @@ public class Dns {
         SOA(6),
         SRV(33),
         SSHFP(44),
+        SVCB(64),
+        HTTPS(65),
         TA(32768),
         TKEY(249),
         TLSA(52),
@@ -70,19 +73,15 @@ public class Dns {
             return value;
         }
 
+        private static final TYPE[] VALUES = TYPE.values();
+
         public static TYPE from(int value)
         {
-            TYPE[] values = TYPE.values();
-            for (int i = 0; i < values.length; i++) {
-                if (values[i].getValue() == value)
-                    return values[i];
-            }
-
-            return null;
+            return find(VALUES, value);
         }
     }
 
-    public enum OPCODE {
+    public enum OPCODE implements Coded {
         QUERY(0),
         // inverse query
         STATUS(2),
@@ -98,19 +97,15 @@ public class Dns {
             return value;
         }
 
+        private static final OPCODE[] VALUES = OPCODE.values();
+
         public static OPCODE from(int value)
         {
-            OPCODE[] values = OPCODE.values();
-            for (int i = 0; i < values.length; i++) {
-                if (values[i].getValue() == value)
-                    return values[i];
-            }
-
-            return null;
+            return find(VALUES, value);
         }
     }
 
-    public enum RCODE {
+    public enum RCODE implements Coded {
         OK(0),
         FORMAT_ERROR(1),
         SERVER_FAILURE(2),
@@ -128,16 +123,29 @@ public class Dns {
             return value;
         }
 
+        private static final RCODE[] VALUES = RCODE.values();
+
         public static RCODE from(int value)
         {
-            RCODE[] values = RCODE.values();
-            for (int i = 0; i < values.length; i++) {
-                if (values[i].getValue() == value)
-                    return values[i];
-            }
+            return find(VALUES, value);
+        }
+    }
 
-            return null;
+    interface Coded {
+        int getValue();
+    }
+
+    /**
+     * 按数值查找枚举, values 需要是缓存的数组, values() 每次都复制
+     */
+    private static <E extends Coded> E find(E[] values, int value)
+    {
+        for (int i = 0; i < values.length; i++) {
+            if (values[i].getValue() == value)
+                return values[i];
         }
+
+        return null;
     }
 
 	public final static int CLASS_INTERNET = 1;
@@ -624,6 +632,8 @@ public class Dns {
         protected int clazz = CLASS_INTERNET;
         protected long ttl = 600;
         protected String data = "";
+        // 原始的 RDATA, 只有读取的记录才有
+        protected byte[] rdata = null;
 
         public Record(String name, TYPE type, int clazz, int ttl, String data) {
             this.name = name;
@@ -656,20 +666,38 @@ public class Dns {
 
             int rdLength = BufferUtils.getUnsignedShort(byteBuffer);
 
+            if (byteBuffer.remaining() < rdLength)
+                throw new BufferUnderflowException();
+
+            int rdStart = byteBuffer.position();
+            rdata = new byte[rdLength];
+            byteBuffer.get(rdata, 0, rdLength);
+
             if (type == TYPE.A || type == TYPE.AAAA)
             {
-                byte[] bytes = new byte[rdLength];
-                byteBuffer.get(bytes, 0, rdLength);
                 try {
-                    data = InetAddress.getByAddress(bytes).getHostAddress();
+                    data = InetAddress.getByAddress(rdata).getHostAddress();
                 } catch (UnknownHostException e)
                 {
                     data = "";
                 }
-            } else {
+            } else if (isNameType(type)) {
+                byteBuffer.position(rdStart);
                 data = Label.join(label.readLabels());
+            } else {
+                data = "";
             }
 
+            // 不管 RDATA 怎么解析, 下一条记录都从 rdLength 之后开始
+            byteBuffer.position(rdStart + rdLength);
+        }
+
+        /**
+         * RDATA 只是一个域名的类型
+         */
+        protected static boolean isNameType(TYPE type)
+        {
+            return type == TYPE.CNAME || type == TYPE.NS || type == TYPE.PTR || type == TYPE.DNAME;
         }
 
         public void write(ByteBuffer outBuffer, Label label) throws BufferUnderflowException, PtrException
@@ -696,6 +724,8 @@ public class Dns {
                 {
 
                 }
+            } else if (!isNameType(type) && rdata != null && data.isEmpty()) {
+                outBuffer.put(rdata);
             } else {
                 label.writeLabels(data);
             }
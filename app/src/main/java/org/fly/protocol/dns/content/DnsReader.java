@@ -0,0 +1,538 @@
+package org.fly.protocol.dns.content;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 游标式的 DNS 报文读取, 直接在 ByteBuffer 上按偏移读取, 不创建对象
+ *
+ * 所有 offset 都是 buffer 中的绝对位置, 压缩指针相对于 reset 时 buffer 的 position.
+ * 同一个实例可以反复 reset 使用, 非线程安全
+ */
+public class DnsReader {
+
+    public static final int HEADER_SIZE = 12;
+
+    public static final int SECTION_QUESTION = 0;
+    public static final int SECTION_ANSWER = 1;
+    public static final int SECTION_AUTHORITY = 2;
+    public static final int SECTION_ADDITIONAL = 3;
+
+    // 一个域名中最多跟随的指针数
+    private static final int MAX_POINTERS = 32;
+    // RFC 1035 2.3.4: 展开后的域名最多 255 字节
+    private static final int MAX_NAME_LENGTH = 255;
+
+    private ByteBuffer buffer;
+    private int base;
+    private int limit;
+    private int position;
+    private boolean malformed;
+
+    private final int[] remaining = new int[4];
+
+    // 当前的问题或记录
+    private int section;
+    private int nameOffset;
+    private int type;
+    private int clazz;
+    private int ttlOffset;
+    private int rdataOffset;
+    private int rdLength;
+
+    /**
+     * @return 长度不够一个头部返回 false
+     */
+    public boolean reset(ByteBuffer buffer)
+    {
+        return reset(buffer, buffer.position(), buffer.limit());
+    }
+
+    /**
+     * 读取 buffer 中 [base, limit) 的报文, 不改变 buffer 的 position 和 limit
+     */
+    public boolean reset(ByteBuffer buffer, int base, int limit)
+    {
+        this.buffer = buffer;
+        this.base = base;
+        this.limit = limit;
+        malformed = false;
+        section = SECTION_QUESTION;
+
+        if (limit - base < HEADER_SIZE)
+        {
+            malformed = true;
+            remaining[0] = remaining[1] = remaining[2] = remaining[3] = 0;
+            return false;
+        }
+
+        position = base + HEADER_SIZE;
+        for (int i = 0; i < 4; i++)
+            remaining[i] = u16(base + 4 + i * 2);
+
+        return true;
+    }
+
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    public int getBase() {
+        return base;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    // --------------------------Header---------------------------------
+
+    public int getId() {
+        return u16(base);
+    }
+
+    public int getFlags() {
+        return u16(base + 2);
+    }
+
+    public boolean isResponse() {
+        return (getFlags() >> 15 & 1) == 1;
+    }
+
+    public int getOpcode() {
+        return getFlags() >> 11 & 0xf;
+    }
+
+    public boolean isTruncated() {
+        return (getFlags() >> 9 & 1) == 1;
+    }
+
+    public boolean isRecursionDesired() {
+        return (getFlags() >> 8 & 1) == 1;
+    }
+
+    public int getRcode() {
+        return getFlags() & 0xf;
+    }
+
+    public int getQdCount() {
+        return u16(base + 4);
+    }
+
+    public int getAnCount() {
+        return u16(base + 6);
+    }
+
+    public int getNsCount() {
+        return u16(base + 8);
+    }
+
+    public int getArCount() {
+        return u16(base + 10);
+    }
+
+    // --------------------------Cursor---------------------------------
+
+    /**
+     * 移动到下一个问题
+     */
+    public boolean nextQuestion()
+    {
+        if (remaining[SECTION_QUESTION] <= 0)
+            return false;
+
+        int end = skipName(position);
+        if (end < 0 || end + 4 > limit || nameLength(position) < 0)
+            return fail();
+
+        remaining[SECTION_QUESTION]--;
+        section = SECTION_QUESTION;
+        nameOffset = position;
+        type = u16(end);
+        clazz = u16(end + 2);
+        ttlOffset = rdataOffset = -1;
+        rdLength = 0;
+        position = end + 4;
+
+        return true;
+    }
+
+    /**
+     * 移动到下一条记录, 依次是 answer, authority, additional, 没读完的问题会被跳过
+     */
+    public boolean nextRecord()
+    {
+        while (remaining[SECTION_QUESTION] > 0)
+        {
+            if (!nextQuestion())
+                return false;
+        }
+
+        int next = SECTION_ANSWER;
+        while (next <= SECTION_ADDITIONAL && remaining[next] <= 0)
+            next++;
+
+        if (next > SECTION_ADDITIONAL)
+            return false;
+
+        int end = skipName(position);
+        if (end < 0 || end + 10 > limit || nameLength(position) < 0)
+            return fail();
+
+        int length = u16(end + 8);
+        if (end + 10 + length > limit)
+            return fail();
+
+        remaining[next]--;
+        section = next;
+        nameOffset = position;
+        type = u16(end);
+        clazz = u16(end + 2);
+        ttlOffset = end + 4;
+        rdLength = length;
+        rdataOffset = end + 10;
+        position = rdataOffset + rdLength;
+
+        return true;
+    }
+
+    /**
+     * 读完所有记录, 返回是否完整
+     */
+    public boolean skipAll()
+    {
+        while (nextRecord()) {
+            // skip
+        }
+        return !malformed;
+    }
+
+    private boolean fail()
+    {
+        malformed = true;
+        remaining[0] = remaining[1] = remaining[2] = remaining[3] = 0;
+        return false;
+    }
+
+    public boolean isMalformed() {
+        return malformed;
+    }
+
+    /**
+     * 当前游标的位置, 即当前问题或记录之后
+     */
+    public int getPosition() {
+        return position;
+    }
+
+    public int getSection() {
+        return section;
+    }
+
+    public int getNameOffset() {
+        return nameOffset;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public int getClazz() {
+        return clazz;
+    }
+
+    public long getTtl() {
+        return ttlOffset < 0 ? 0 : u32(ttlOffset);
+    }
+
+    public int getTtlOffset() {
+        return ttlOffset;
+    }
+
+    public int getRdataOffset() {
+        return rdataOffset;
+    }
+
+    public int getRdLength() {
+        return rdLength;
+    }
+
+    // --------------------------Name---------------------------------
+
+    /**
+     * 跳过 offset 处的域名 (不跟随指针)
+     *
+     * @return 域名之后的位置, 格式错误返回 -1
+     */
+    public int skipName(int offset)
+    {
+        while (offset < limit)
+        {
+            int length = buffer.get(offset) & 0xff;
+
+            if (length == 0)
+                return offset + 1;
+            if ((length & 0xc0) == 0xc0)
+                return offset + 2 <= limit ? offset + 2 : -1;
+            if ((length & 0xc0) != 0)
+                return -1;
+
+            offset += length + 1;
+        }
+        return -1;
+    }
+
+    /**
+     * 检查 offset 处的整个域名 (跟随指针): 指针只能指向前面, 整个域名最多跟随 MAX_POINTERS 个指针,
+     * 展开后不超过 MAX_NAME_LENGTH 字节. 通过检查的域名一定能在有限步内读完
+     *
+     * @return 展开后的长度, 包括结尾的 0, 格式错误返回 -1
+     */
+    public int nameLength(int offset)
+    {
+        int length = 0;
+        int jumps = 0;
+
+        while (offset >= base && offset < limit)
+        {
+            int label = buffer.get(offset) & 0xff;
+
+            if ((label & 0xc0) == 0xc0)
+            {
+                if (++jumps > MAX_POINTERS || offset + 1 >= limit)
+                    return -1;
+
+                int target = pointer(offset);
+                if (target >= offset)
+                    return -1;
+
+                offset = target;
+                continue;
+            }
+
+            if ((label & 0xc0) != 0)
+                return -1;
+
+            length += label + 1;
+            if (length > MAX_NAME_LENGTH)
+                return -1;
+            if (label == 0)
+                return length;
+
+            offset += label + 1;
+        }
+        return -1;
+    }
+
+    private int pointer(int offset)
+    {
+        return base + ((buffer.get(offset) & 0x3f) << 8 | (buffer.get(offset + 1) & 0xff));
+    }
+
+    /**
+     * 跟随压缩指针, 返回真正的 label 所在位置, 格式错误返回 -1
+     * 只能用在 {@link #nameLength(int)} 检查过的域名上, 每个 label 只按指针向前跳
+     */
+    private int resolve(int offset)
+    {
+        while (offset >= base && offset < limit)
+        {
+            int length = buffer.get(offset) & 0xff;
+            if ((length & 0xc0) != 0xc0)
+                return offset;
+
+            if (offset + 1 >= limit || pointer(offset) >= offset)
+                return -1;
+
+            offset = pointer(offset);
+        }
+        return -1;
+    }
+
+    /**
+     * offset 处的域名与点分格式的 name[from, to) 比较, 忽略大小写, name 末尾的 . 可有可无
+     */
+    public boolean nameEquals(int offset, CharSequence name)
+    {
+        int to = name.length();
+        if (to > 0 && name.charAt(to - 1) == '.')
+            to--;
+
+        return nameEquals(offset, name, 0, to);
+    }
+
+    public boolean nameEquals(int offset, CharSequence name, int from, int to)
+    {
+        if (nameLength(offset) < 0)
+            return false;
+
+        int i = from;
+
+        while (true)
+        {
+            offset = resolve(offset);
+            if (offset < 0)
+                return false;
+
+            int length = buffer.get(offset) & 0xff;
+            if ((length & 0xc0) != 0)
+                return false;
+            if (length == 0)
+                return i == to;
+
+            if (i > from)
+            {
+                if (i >= to || name.charAt(i) != '.')
+                    return false;
+                i++;
+            }
+
+            if (offset + 1 + length > limit || i + length > to)
+                return false;
+
+            for (int k = 0; k < length; k++) {
+                if (lower(buffer.get(offset + 1 + k) & 0xff) != lower(name.charAt(i + k)))
+                    return false;
+            }
+
+            i += length;
+            offset += length + 1;
+        }
+    }
+
+    /**
+     * 两个位置的域名是否相同 (忽略大小写), other 可以是另一个报文
+     */
+    public boolean nameEquals(int offset, DnsReader other, int otherOffset)
+    {
+        if (nameLength(offset) < 0 || other.nameLength(otherOffset) < 0)
+            return false;
+
+        while (true)
+        {
+            offset = resolve(offset);
+            otherOffset = other.resolve(otherOffset);
+            if (offset < 0 || otherOffset < 0)
+                return false;
+
+            int length = buffer.get(offset) & 0xff;
+            if ((length & 0xc0) != 0 || length != (other.buffer.get(otherOffset) & 0xff))
+                return false;
+            if (length == 0)
+                return true;
+            if (offset + 1 + length > limit || otherOffset + 1 + length > other.limit)
+                return false;
+
+            for (int k = 1; k <= length; k++) {
+                if (lower(buffer.get(offset + k) & 0xff) != lower(other.buffer.get(otherOffset + k) & 0xff))
+                    return false;
+            }
+
+            offset += length + 1;
+            otherOffset += length + 1;
+        }
+    }
+
+    /**
+     * 域名的哈希, 忽略大小写, 与 {@link #hashName(CharSequence, int, int)} 一致, 格式错误返回 0
+     */
+    public int hashName(int offset)
+    {
+        int hash = 0;
+        boolean first = true;
+
+        if (nameLength(offset) < 0)
+            return hash;
+
+        while (true)
+        {
+            offset = resolve(offset);
+            if (offset < 0)
+                return hash;
+
+            int length = buffer.get(offset) & 0xff;
+            if (length == 0 || (length & 0xc0) != 0 || offset + 1 + length > limit)
+                return hash;
+
+            if (!first)
+                hash = 31 * hash + '.';
+            first = false;
+
+            for (int k = 1; k <= length; k++)
+                hash = 31 * hash + lower(buffer.get(offset + k) & 0xff);
+
+            offset += length + 1;
+        }
+    }
+
+    public static int hashName(CharSequence name, int from, int to)
+    {
+        int hash = 0;
+        for (int i = from; i < to; i++)
+            hash = 31 * hash + lower(name.charAt(i));
+        return hash;
+    }
+
+    /**
+     * 读成点分格式的字符串, 会分配内存, 只在确实需要 String 的地方用
+     */
+    public String readName(int offset)
+    {
+        return appendName(new StringBuilder(), offset, false).toString();
+    }
+
+    /**
+     * 把点分格式的域名追加到 builder, 格式错误时不追加
+     *
+     * @param lowercase 是否转成小写
+     */
+    public StringBuilder appendName(StringBuilder builder, int offset, boolean lowercase)
+    {
+        boolean first = true;
+
+        if (nameLength(offset) < 0)
+            return builder;
+
+        while (true)
+        {
+            offset = resolve(offset);
+            if (offset < 0)
+                break;
+
+            int length = buffer.get(offset) & 0xff;
+            if (length == 0 || (length & 0xc0) != 0 || offset + 1 + length > limit)
+                break;
+
+            if (!first)
+                builder.append('.');
+            first = false;
+
+            for (int k = 1; k <= length; k++)
+            {
+                int c = buffer.get(offset + k) & 0xff;
+                builder.append((char) (lowercase ? lower(c) : c));
+            }
+
+            offset += length + 1;
+        }
+
+        return builder;
+    }
+
+    // --------------------------Number---------------------------------
+
+    public int u8(int offset) {
+        return buffer.get(offset) & 0xff;
+    }
+
+    public int u16(int offset) {
+        return buffer.getShort(offset) & 0xffff;
+    }
+
+    public long u32(int offset) {
+        return buffer.getInt(offset) & 0xffffffffL;
+    }
+
+    static int lower(int c) {
+        return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+    }
+}
@@ -0,0 +1,259 @@
+package org.fly.protocol.dns.content;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * 游标式的 DNS 报文写入, 直接写到 ByteBuffer 上, 不创建对象
+ *
+ * 域名压缩表是 int 数组做的开放寻址哈希表: 后缀的哈希 -> 报文中的偏移,
+ * 哈希相同时再和报文中已写的 label 逐字节比较.
+ * 同一个实例可以反复 reset 使用, 非线程安全
+ */
+public class DnsWriter {
+
+    // 必须是 2 的幂
+    private static final int TABLE_SIZE = 64;
+    // 压缩指针只有 14 位
+    private static final int MAX_POINTER = 0x3fff;
+
+    private final int[] hashes = new int[TABLE_SIZE];
+    private final int[] offsets = new int[TABLE_SIZE];
+    private int entries;
+
+    // 用来比较已经写入的域名
+    private final DnsReader reader = new DnsReader();
+
+    private ByteBuffer buffer;
+    private int base;
+
+    /**
+     * 从 buffer 当前的 position 开始写
+     */
+    public DnsWriter reset(ByteBuffer buffer)
+    {
+        this.buffer = buffer;
+        base = buffer.position();
+        entries = 0;
+        Arrays.fill(offsets, -1);
+        return this;
+    }
+
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * 已写入的字节数
+     */
+    public int length() {
+        return buffer.position() - base;
+    }
+
+    // --------------------------Header---------------------------------
+
+    public DnsWriter header(int id, int flags, int qdCount, int anCount, int nsCount, int arCount)
+    {
+        return u16(id).u16(flags).u16(qdCount).u16(anCount).u16(nsCount).u16(arCount);
+    }
+
+    public DnsWriter setId(int id)
+    {
+        buffer.putShort(base, (short) id);
+        return this;
+    }
+
+    public DnsWriter setFlags(int flags)
+    {
+        buffer.putShort(base + 2, (short) flags);
+        return this;
+    }
+
+    /**
+     * @param section {@link DnsReader#SECTION_QUESTION} ~ {@link DnsReader#SECTION_ADDITIONAL}
+     */
+    public DnsWriter setCount(int section, int count)
+    {
+        buffer.putShort(base + 4 + section * 2, (short) count);
+        return this;
+    }
+
+    // --------------------------Body---------------------------------
+
+    public DnsWriter question(CharSequence name, int type, int clazz)
+    {
+        return name(name).u16(type).u16(clazz);
+    }
+
+    /**
+     * 写记录的头部, 之后写 rdata, 最后调用 {@link #endRecord(int)} 回填长度
+     *
+     * @return rdLength 字段的位置
+     */
+    public int beginRecord(CharSequence name, int type, int clazz, long ttl)
+    {
+        name(name).u16(type).u16(clazz).u32(ttl);
+        int mark = buffer.position();
+        u16(0);
+        return mark;
+    }
+
+    public DnsWriter endRecord(int mark)
+    {
+        buffer.putShort(mark, (short) (buffer.position() - mark - 2));
+        return this;
+    }
+
+    /**
+     * 写点分格式的域名, 已经写过的后缀用压缩指针代替
+     */
+    public DnsWriter name(CharSequence name)
+    {
+        return name(name, true);
+    }
+
+    /**
+     * @param compress 为 false 时不使用也不记录压缩指针, 用于写会被复制到其它报文中的片段
+     */
+    public DnsWriter name(CharSequence name, boolean compress)
+    {
+        int to = name.length();
+        if (to > 0 && name.charAt(to - 1) == '.')
+            to--;
+
+        // 只比较已经写入的部分
+        if (compress)
+            reader.reset(buffer, base, buffer.position());
+
+        int from = 0;
+        while (from < to)
+        {
+            if (compress)
+            {
+                int hash = DnsReader.hashName(name, from, to);
+                int pointer = find(hash, name, from, to);
+
+                if (pointer >= 0)
+                    return u16(0xc000 | pointer);
+
+                int position = buffer.position() - base;
+                if (position <= MAX_POINTER)
+                    remember(hash, position);
+            }
+
+            int end = from;
+            while (end < to && name.charAt(end) != '.')
+                end++;
+
+            int length = end - from;
+            if (length == 0 || length > 63)
+                throw new IllegalArgumentException("Invalid label in " + name);
+
+            buffer.put((byte) length);
+            for (int i = from; i < end; i++)
+                buffer.put((byte) name.charAt(i));
+
+            from = end + 1;
+        }
+
+        buffer.put((byte) 0);
+        return this;
+    }
+
+    /**
+     * 原样复制另一个报文中的域名 (展开其中的压缩指针), 不参与压缩
+     *
+     * @throws IllegalArgumentException 域名格式错误, 比如指针循环
+     */
+    public DnsWriter name(DnsReader source, int offset)
+    {
+        if (source.nameLength(offset) < 0)
+            throw new IllegalArgumentException("Malformed name at " + offset);
+
+        ByteBuffer src = source.getBuffer();
+
+        while (true)
+        {
+            int length = src.get(offset) & 0xff;
+
+            if ((length & 0xc0) == 0xc0)
+            {
+                offset = source.getBase() + ((length & 0x3f) << 8 | (src.get(offset + 1) & 0xff));
+                continue;
+            }
+
+            buffer.put((byte) length);
+            if (length == 0)
+                return this;
+
+            for (int k = 1; k <= length; k++)
+                buffer.put(src.get(offset + k));
+
+            offset += length + 1;
+        }
+    }
+
+    public DnsWriter u8(int value)
+    {
+        buffer.put((byte) value);
+        return this;
+    }
+
+    public DnsWriter u16(int value)
+    {
+        buffer.putShort((short) value);
+        return this;
+    }
+
+    public DnsWriter u32(long value)
+    {
+        buffer.putInt((int) value);
+        return this;
+    }
+
+    public DnsWriter bytes(byte[] bytes)
+    {
+        buffer.put(bytes);
+        return this;
+    }
+
+    public DnsWriter bytes(ByteBuffer src, int offset, int length)
+    {
+        for (int i = 0; i < length; i++)
+            buffer.put(src.get(offset + i));
+        return this;
+    }
+
+    // --------------------------Compression---------------------------------
+
+    private int find(int hash, CharSequence name, int from, int to)
+    {
+        if (entries == 0)
+            return -1;
+
+        for (int i = hash & (TABLE_SIZE - 1), n = 0; n < TABLE_SIZE; i = (i + 1) & (TABLE_SIZE - 1), n++)
+        {
+            if (offsets[i] < 0)
+                return -1;
+
+            if (hashes[i] == hash && reader.nameEquals(base + offsets[i], name, from, to))
+                return offsets[i];
+        }
+        return -1;
+    }
+
+    private void remember(int hash, int offset)
+    {
+        // 表满了就不再压缩新的后缀
+        if (entries >= TABLE_SIZE * 3 / 4)
+            return;
+
+        int i = hash & (TABLE_SIZE - 1);
+        while (offsets[i] >= 0)
+            i = (i + 1) & (TABLE_SIZE - 1);
+
+        hashes[i] = hash;
+        offsets[i] = offset;
+        entries++;
+    }
+}
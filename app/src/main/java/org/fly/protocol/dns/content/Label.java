@@ -47,15 +47,22 @@ public class Label {
             }
             else if (isPtr(ch))
             {
-                byteBuffer.position(byteBuffer.position() - 1);
+                int start = byteBuffer.position() - 1;
+                byteBuffer.position(start);
                 int ptr = BufferUtils.getUnsignedShort(byteBuffer);
                 ptr = getPtrOffset(ptr);
 
-                byteBuffer.mark();
+                // 指针只能往前指, 防止死循环
+                if (ptr >= start)
+                    throw new PtrException("Invalid label ptr: " + ptr);
 
-                labels = readLabels(ptr);
+                // 不能用 mark/reset, 往前跳时 mark 会被丢弃
+                int position = byteBuffer.position();
 
-                byteBuffer.reset();
+                // 指针前面可能已经有几段 label
+                labels.addAll(readLabels(ptr));
+
+                byteBuffer.position(position);
                 break;
             } else {
                 int len = ch & 0xff;
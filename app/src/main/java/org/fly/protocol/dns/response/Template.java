@@ -0,0 +1,160 @@
+package org.fly.protocol.dns.response;
+
+import org.fly.protocol.dns.content.Dns;
+import org.fly.protocol.dns.content.DnsReader;
+import org.fly.protocol.dns.content.DnsWriter;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * 预先编码好的回复
+ *
+ * 应答记录的名字都是指向问题的压缩指针 (0xc00c), 所以和查询的域名无关.
+ * 回复时只需要写头部, 复制查询中的问题, 再复制这段应答
+ */
+public class Template {
+
+    // 应答记录的名字: 指向报文头部之后的第一个问题
+    private static final int QUESTION_POINTER = 0xc000 | DnsReader.HEADER_SIZE;
+
+    private static final int FLAG_QR = 0x8000;
+    private static final int FLAG_RD = 0x0100;
+    private static final int FLAG_RA = 0x0080;
+
+    private final int rcode;
+    private final int count;
+    private final byte[] answers;
+
+    private Template(int rcode, int count, byte[] answers) {
+        this.rcode = rcode;
+        this.count = count;
+        this.answers = answers;
+    }
+
+    /**
+     * 没有应答记录的回复, 比如 NXDOMAIN
+     */
+    public static Template create(Dns.RCODE rcode)
+    {
+        return new Template(rcode.getValue(), 0, new byte[0]);
+    }
+
+    /**
+     * A / AAAA 的值必须是 IP, CNAME 的值是域名
+     *
+     * @throws IllegalArgumentException 值和类型不符
+     */
+    public static Template create(Dns.TYPE type, List<String> values, long ttl)
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(values.size() * (2 + 10 + 256));
+        DnsWriter writer = new DnsWriter().reset(buffer);
+
+        for (String value: values
+             ) {
+            writer.u16(QUESTION_POINTER).u16(type.getValue()).u16(Dns.CLASS_INTERNET).u32(ttl);
+
+            int mark = buffer.position();
+            writer.u16(0);
+
+            switch (type)
+            {
+                case A:
+                case AAAA:
+                    writer.bytes(address(type, value));
+                    break;
+                case CNAME:
+                case NS:
+                case PTR:
+                    writer.name(value, false);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unsupported type: " + type);
+            }
+
+            writer.endRecord(mark);
+        }
+
+        byte[] answers = new byte[buffer.position()];
+        buffer.flip();
+        buffer.get(answers);
+
+        return new Template(Dns.RCODE.OK.getValue(), values.size(), answers);
+    }
+
+    /**
+     * 只接受 IP, 不能在这里做 DNS 解析
+     */
+    private static byte[] address(Dns.TYPE type, String value)
+    {
+        String host = value == null ? "" : value.trim();
+
+        for (int i = 0; i < host.length(); i++) {
+            char c = host.charAt(i);
+            if (!(c == '.' || c == ':' || (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F')))
+                throw new IllegalArgumentException("Not an IP: " + value);
+        }
+
+        byte[] address;
+        try {
+            address = InetAddress.getByName(host).getAddress();
+        } catch (UnknownHostException e)
+        {
+            throw new IllegalArgumentException("Not an IP: " + value, e);
+        }
+
+        if (address.length != (type == Dns.TYPE.A ? 4 : 16))
+            throw new IllegalArgumentException("Address does not match " + type + ": " + value);
+
+        return address;
+    }
+
+    /**
+     * 回复 request 中的第一个问题
+     *
+     * @param request 已经 reset 到查询报文, 并且刚读完第一个问题
+     * @return 写好的回复, position 在末尾
+     */
+    public ByteBuffer reply(DnsReader request)
+    {
+        ByteBuffer source = request.getBuffer();
+        int questionStart = request.getBase() + DnsReader.HEADER_SIZE;
+        int questionLength = request.getPosition() - questionStart;
+
+        ByteBuffer out = ByteBuffer.allocate(DnsReader.HEADER_SIZE + questionLength + answers.length);
+
+        int flags = request.getFlags();
+        int rd = flags & FLAG_RD;
+
+        out.putShort((short) request.getId());
+        // 保留 opcode 和 RD, 递归查询时带上 RA
+        out.putShort((short) (FLAG_QR | (flags & 0x7800) | rd | (rd != 0 ? FLAG_RA : 0) | rcode));
+        out.putShort((short) 1);
+        out.putShort((short) count);
+        out.putShort((short) 0);
+        out.putShort((short) 0);
+
+        // 原样带回问题, 包括 0x20 随机大小写
+        if (source.hasArray())
+        {
+            out.put(source.array(), source.arrayOffset() + questionStart, questionLength);
+        } else {
+            for (int i = 0; i < questionLength; i++)
+                out.put(source.get(questionStart + i));
+        }
+
+        out.put(answers);
+
+        return out;
+    }
+
+    public int getRcode() {
+        return rcode;
+    }
+
+    public int getCount() {
+        return count;
+    }
+}
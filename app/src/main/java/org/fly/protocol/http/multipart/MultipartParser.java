@@ -0,0 +1,290 @@
+package org.fly.protocol.http.multipart;
+
+import org.fly.protocol.http.Constant;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+
+/**
+ * multipart/form-data 的流式解析, 数据到达时就切分, 内存占用固定
+ *
+ * 用 Boyer-Moore-Horspool 在窗口中查找 "\r\n--boundary", 查找前按预先算好的跳转表跳过不可能匹配的字节.
+ * 分隔符之前的数据直接交给当前 part 的 {@link PartSink}, 窗口末尾可能是分隔符开头的几个字节留到下次
+ *
+ * <pre>
+ * MultipartParser parser = new MultipartParser(boundary, "UTF-8", handler);
+ * parser.write(buffer); // 多次
+ * parser.isComplete();  // 收到结束的分隔符
+ * </pre>
+ */
+public class MultipartParser {
+
+    public interface Handler {
+        /**
+         * part 的头解析完成时回调
+         *
+         * @return 接收这个 part 的 Body, 为 null 时丢弃
+         */
+        PartSink onPart(Part part) throws IOException;
+    }
+
+    // 第一个分隔符之前
+    private static final int PREAMBLE = 0;
+    // 分隔符之后, 判断是 "--" 还是换行
+    private static final int DELIMITER = 1;
+    // 分隔符之后到换行之间的空白
+    private static final int PADDING = 2;
+    private static final int HEADERS = 3;
+    private static final int BODY = 4;
+    // 结束的分隔符之后
+    private static final int EPILOGUE = 5;
+
+    private static final int WINDOW_SIZE = 4 * 1024;
+    private static final int MAX_HEADER_SIZE = 1024;
+
+    private final String encoding;
+    private final Handler handler;
+
+    // "\r\n--" + boundary
+    private final byte[] delimiter;
+    private final int[] skip = new int[256];
+
+    private final byte[] window;
+    private int length;
+
+    private final byte[] header = new byte[MAX_HEADER_SIZE];
+    private int headerLength = 0;
+    private int lineStart = 0;
+
+    private int state = PREAMBLE;
+    private PartSink sink = null;
+    private int count = 0;
+
+    /**
+     * @param encoding part 头的编码, 一般是请求 Content-Type 中的 charset
+     */
+    public MultipartParser(String boundary, String encoding, Handler handler)
+    {
+        this.encoding = encoding;
+        this.handler = handler;
+
+        delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.US_ASCII);
+
+        int last = delimiter.length - 1;
+        for (int i = 0; i < skip.length; i++)
+            skip[i] = delimiter.length;
+        for (int i = 0; i < last; i++)
+            skip[delimiter[i] & 0xff] = last - i;
+
+        window = new byte[WINDOW_SIZE + delimiter.length];
+
+        // 第一个分隔符可能在 Body 的开头, 前面没有换行
+        window[0] = '\r';
+        window[1] = '\n';
+        length = 2;
+    }
+
+    public void write(ByteBuffer source) throws IOException
+    {
+        while (source.hasRemaining())
+        {
+            int n = Math.min(source.remaining(), window.length - length);
+            source.get(window, length, n);
+            length += n;
+
+            process();
+        }
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+        write(ByteBuffer.wrap(b, off, len));
+    }
+
+    private void process() throws IOException
+    {
+        int pos = 0;
+
+        loop:
+        while (pos < length)
+        {
+            switch (state)
+            {
+                case PREAMBLE:
+                case BODY:
+                    int match = indexOf(pos, length);
+                    if (match < 0)
+                    {
+                        // 末尾可能是分隔符的开头, 留到下次
+                        int keep = Math.max(pos, length - (delimiter.length - 1));
+                        emit(pos, keep);
+                        pos = keep;
+                        break loop;
+                    }
+
+                    emit(pos, match);
+                    if (state == BODY)
+                        endPart();
+
+                    pos = match + delimiter.length;
+                    state = DELIMITER;
+                    break;
+                case DELIMITER:
+                    if (length - pos < 2)
+                        break loop;
+
+                    if (window[pos] == '-' && window[pos + 1] == '-')
+                    {
+                        state = EPILOGUE;
+                        break;
+                    }
+
+                    state = PADDING;
+                    break;
+                case PADDING:
+                    byte b = window[pos++];
+                    if (b == '\n')
+                    {
+                        state = HEADERS;
+                        headerLength = lineStart = 0;
+                    }
+                    else if (b != ' ' && b != '\t' && b != '\r')
+                        throw new IOException("Invalid multipart boundary line");
+                    break;
+                case HEADERS:
+                    if (headerLength == MAX_HEADER_SIZE)
+                        throw new IOException("Multipart header size exceeds " + MAX_HEADER_SIZE);
+
+                    header[headerLength++] = window[pos++];
+                    if (header[headerLength - 1] == '\n' && headerLine())
+                        startPart();
+                    break;
+                case EPILOGUE:
+                    // 结束之后的内容忽略
+                    pos = length;
+                    break;
+            }
+        }
+
+        System.arraycopy(window, pos, window, 0, length - pos);
+        length -= pos;
+    }
+
+    /**
+     * Boyer-Moore-Horspool, 在 window[from, to) 中查找分隔符
+     *
+     * @return 没有返回 -1
+     */
+    private int indexOf(int from, int to)
+    {
+        int last = delimiter.length - 1;
+        int i = from;
+
+        while (i + last < to)
+        {
+            int j = last;
+            while (window[i + j] == delimiter[j])
+            {
+                if (j == 0)
+                    return i;
+                j--;
+            }
+
+            i += skip[window[i + last] & 0xff];
+        }
+
+        return -1;
+    }
+
+    private void emit(int from, int to) throws IOException
+    {
+        if (state == BODY && sink != null && to > from)
+            sink.write(window, from, to - from);
+    }
+
+    /**
+     * 一行结束
+     *
+     * @return 是否是头结束的空行
+     */
+    private boolean headerLine()
+    {
+        int end = headerLength - 1;
+        if (end > lineStart && header[end - 1] == '\r')
+            end--;
+
+        boolean empty = end == lineStart;
+        lineStart = headerLength;
+        return empty;
+    }
+
+    private void startPart() throws IOException
+    {
+        String name = null, fileName = null, contentType = null;
+
+        int from = 0;
+        for (int i = 0; i < headerLength; i++)
+        {
+            if (header[i] != '\n')
+                continue;
+
+            String line = decode(from, i);
+            from = i + 1;
+
+            Matcher matcher = Constant.CONTENT_DISPOSITION_PATTERN.matcher(line);
+            if (matcher.matches())
+            {
+                matcher = Constant.CONTENT_DISPOSITION_ATTRIBUTE_PATTERN.matcher(matcher.group(2));
+                while (matcher.find())
+                {
+                    String key = matcher.group(1);
+                    if ("name".equalsIgnoreCase(key))
+                        name = matcher.group(2);
+                    else if ("filename".equalsIgnoreCase(key))
+                        fileName = matcher.group(2);
+                }
+            }
+
+            matcher = Constant.CONTENT_TYPE_PATTERN.matcher(line);
+            if (matcher.matches())
+                contentType = matcher.group(2).trim();
+        }
+
+        sink = handler.onPart(new Part(count++, name, fileName, contentType));
+        state = BODY;
+    }
+
+    private String decode(int from, int to) throws UnsupportedEncodingException
+    {
+        if (to > from && header[to - 1] == '\r')
+            to--;
+
+        return new String(header, from, to - from, encoding);
+    }
+
+    private void endPart() throws IOException
+    {
+        if (sink != null)
+            sink.end();
+        sink = null;
+    }
+
+    /**
+     * 是否收到了结束的分隔符
+     */
+    public boolean isComplete()
+    {
+        return state == EPILOGUE;
+    }
+
+    /**
+     * 已经开始的 part 数
+     */
+    public int getPartCount()
+    {
+        return count;
+    }
+}
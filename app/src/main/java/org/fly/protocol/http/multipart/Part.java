@@ -0,0 +1,52 @@
+package org.fly.protocol.http.multipart;
+
+/**
+ * 一个 part 的头中解析出的信息
+ */
+public class Part {
+
+    private final int index;
+    private final String name;
+    private final String fileName;
+    private final String contentType;
+
+    Part(int index, String name, String fileName, String contentType) {
+        this.index = index;
+        this.name = name;
+        this.fileName = fileName;
+        this.contentType = contentType;
+    }
+
+    /**
+     * 从 0 开始的序号
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * Content-Disposition 中的 name, 没有时为 null
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Content-Disposition 中的 filename, 没有时为 null
+     */
+    public String getFileName() {
+        return fileName;
+    }
+
+    /**
+     * 没有 Content-Type 头时为 null
+     */
+    public String getContentType() {
+        return contentType;
+    }
+
+    @Override
+    public String toString() {
+        return "Part{" + index + ", name=" + name + ", fileName=" + fileName + ", contentType=" + contentType + "}";
+    }
+}
@@ -0,0 +1,15 @@
+package org.fly.protocol.http.multipart;
+
+import java.io.IOException;
+
+/**
+ * 接收一个 part 的 Body, 数据到达时分多次写入, part 结束时调用 end
+ *
+ * 写入的数组是解析器的缓冲区, 返回后就会被覆盖, 需要的话自己拷贝
+ */
+public interface PartSink {
+
+    void write(byte[] b, int off, int len) throws IOException;
+
+    void end() throws IOException;
+}
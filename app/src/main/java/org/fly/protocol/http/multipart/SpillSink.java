@@ -0,0 +1,108 @@
+package org.fly.protocol.http.multipart;
+
+import org.fly.protocol.http.tempfiles.ITempFile;
+import org.fly.protocol.http.tempfiles.ITempFileManager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * 保存 Body, 不超过 memoryLimit 时放在内存中, 超过后转到临时文件
+ */
+public class SpillSink implements PartSink {
+
+    private final ITempFileManager tempFileManager;
+    private final int memoryLimit;
+    private final String filenameHint;
+
+    private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+    private OutputStream file = null;
+    private String path = null;
+    private long count = 0;
+
+    /**
+     * @param memoryLimit 为 0 时总是写到文件
+     * @param filenameHint 临时文件名的提示, 可以为 null
+     */
+    public SpillSink(ITempFileManager tempFileManager, int memoryLimit, String filenameHint) {
+        this.tempFileManager = tempFileManager;
+        this.memoryLimit = memoryLimit;
+        this.filenameHint = filenameHint;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        count += len;
+
+        // 写成减法, memoryLimit 很大时不会溢出
+        if (memory != null && len > memoryLimit - memory.size())
+            spill();
+
+        if (memory != null)
+            memory.write(b, off, len);
+        else
+            file.write(b, off, len);
+    }
+
+    private void spill() throws IOException {
+        try {
+            ITempFile tempFile = tempFileManager.createTempFile(filenameHint);
+            file = tempFile.open();
+            path = tempFile.getName();
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+
+        memory.writeTo(file);
+        memory = null;
+    }
+
+    @Override
+    public void end() throws IOException {
+        if (file != null)
+            file.close();
+    }
+
+    public boolean isSpilled() {
+        return memory == null;
+    }
+
+    /**
+     * 临时文件的路径, 还在内存中时为 null
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * 内存中的数据, 已经转到文件时为 null
+     */
+    public byte[] getBytes() {
+        return memory == null ? null : memory.toByteArray();
+    }
+
+    /**
+     * 全部数据按 encoding 解码, 已经转到文件时从文件读回, 需要在 end 之后调用
+     */
+    public String getString(String encoding) throws IOException {
+        if (memory != null)
+            return memory.toString(encoding);
+
+        if (count > Integer.MAX_VALUE)
+            throw new IOException("Part too large: " + count);
+
+        byte[] bytes = new byte[(int) count];
+        try (RandomAccessFile in = new RandomAccessFile(path, "r")) {
+            in.readFully(bytes);
+        }
+        return new String(bytes, encoding);
+    }
+
+    public long getCount() {
+        return count;
+    }
+}
@@ -0,0 +1,31 @@
+package org.fly.protocol.http.multipart;
+
+import java.io.IOException;
+
+/**
+ * 同一份数据写给多个 sink, 比如同时计算摘要和保存
+ */
+public class TeeSink implements PartSink {
+
+    private final PartSink[] sinks;
+
+    public TeeSink(PartSink... sinks) {
+        this.sinks = sinks;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        for (PartSink sink: sinks
+             ) {
+            sink.write(b, off, len);
+        }
+    }
+
+    @Override
+    public void end() throws IOException {
+        for (PartSink sink: sinks
+             ) {
+            sink.end();
+        }
+    }
+}
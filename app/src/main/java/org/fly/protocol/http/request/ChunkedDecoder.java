@@ -0,0 +1,137 @@
+package org.fly.protocol.http.request;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Transfer-Encoding: chunked 的解码状态机, 可以分多次写入
+ *
+ * <pre>
+ * chunk = chunk-size [ chunk-ext ] CRLF chunk-data CRLF
+ * last-chunk = 1*("0") [ chunk-ext ] CRLF
+ * trailer-part CRLF
+ * </pre>
+ * 只处理格式部分, 数据由调用者读取或跳过:
+ * <pre>
+ * int n;
+ * while ((n = decoder.next(source)) > 0)
+ *     // 读取或跳过 source 中的 n 个字节
+ * </pre>
+ */
+public class ChunkedDecoder {
+
+    private static final int SIZE = 0;
+    private static final int EXTENSION = 1;
+    private static final int DATA = 2;
+    private static final int DATA_END = 3;
+    private static final int TRAILER = 4;
+    private static final int DONE = 5;
+
+    // 16 位十六进制已经超过 long
+    private static final int MAX_SIZE_DIGITS = 15;
+
+    private int state = SIZE;
+    private long chunkSize = 0;
+    private int digits = 0;
+    // chunk 中还没读取的数据
+    private long remaining = 0;
+    // trailer 当前行的长度, 不包括 \r
+    private int lineLength = 0;
+
+    public void reset()
+    {
+        state = SIZE;
+        chunkSize = remaining = 0;
+        digits = lineLength = 0;
+    }
+
+    /**
+     * 跳过格式部分, 直到遇到数据
+     *
+     * @return source 当前位置开始的数据长度, 调用者必须读取或跳过这么多字节; 0 表示需要更多数据或者已经结束
+     * @throws IOException 格式错误
+     */
+    public int next(ByteBuffer source) throws IOException
+    {
+        while (state != DONE)
+        {
+            if (state == DATA)
+            {
+                int n = (int) Math.min(remaining, source.remaining());
+                remaining -= n;
+                if (remaining == 0)
+                    state = DATA_END;
+                return n;
+            }
+
+            if (!source.hasRemaining())
+                return 0;
+
+            byte b = source.get();
+
+            switch (state)
+            {
+                case SIZE:
+                    int digit = Character.digit(b, 16);
+                    if (digit >= 0)
+                    {
+                        if (++digits > MAX_SIZE_DIGITS)
+                            throw new IOException("Chunk size too large");
+
+                        chunkSize = chunkSize << 4 | digit;
+                    }
+                    else if (digits == 0)
+                        throw new IOException("Invalid chunk size");
+                    else if (b == '\n')
+                        endSize();
+                    else
+                        state = EXTENSION;
+                    break;
+                case EXTENSION:
+                    // 忽略 chunk-ext
+                    if (b == '\n')
+                        endSize();
+                    break;
+                case DATA_END:
+                    if (b == '\n')
+                        state = SIZE;
+                    else if (b != '\r')
+                        throw new IOException("Missing CRLF after chunk data");
+                    break;
+                case TRAILER:
+                    // 忽略 trailer, 直到空行
+                    if (b == '\n')
+                    {
+                        if (lineLength == 0)
+                            state = DONE;
+                        lineLength = 0;
+                    }
+                    else if (b != '\r')
+                        lineLength++;
+                    break;
+            }
+        }
+
+        return 0;
+    }
+
+    private void endSize()
+    {
+        if (chunkSize == 0)
+        {
+            state = TRAILER;
+            lineLength = 0;
+        } else {
+            state = DATA;
+            remaining = chunkSize;
+        }
+
+        chunkSize = 0;
+        digits = 0;
+    }
+
+    public boolean isComplete()
+    {
+        return state == DONE;
+    }
+}
@@ -0,0 +1,366 @@
+package org.fly.protocol.http.request;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * 可以分多次写入的 HTTP 头解析器
+ *
+ * 数据只拷贝一次到固定大小的缓冲区, 每次写入只扫描新到的字节, 遇到换行就切出一行,
+ * 起始行和每个头只记录在缓冲区中的起止位置, 用到时才生成 String.
+ * 起始行按空白切成三段: 请求是 method, uri, version; 回复是 version, status, reason
+ *
+ * 头结束后 (空行) 不再读取, 多读的部分退回给来源, 即 Body 的开始
+ */
+public class HeaderParser {
+
+    private static final int START_TOKENS = 3;
+
+    private final byte[] buffer;
+    // 已写入的长度
+    private int length = 0;
+    // 已扫描到的位置
+    private int scanned = 0;
+    // 当前行的开始
+    private int lineStart = 0;
+    // 头的结束位置, 包括空行, 0 表示还没结束
+    private int end = 0;
+
+    private boolean startLine = false;
+    // 起始行三段的 [start, end)
+    private final int[] start = new int[START_TOKENS * 2];
+
+    // 每个头 4 个值: name [start, end), value [start, end)
+    private int[] fields = new int[16 * 4];
+    private int count = 0;
+
+    public HeaderParser(int capacity) {
+        buffer = new byte[capacity];
+    }
+
+    /**
+     * 清空状态, 用于同一个连接上的下一个报文
+     */
+    public void reset()
+    {
+        length = scanned = lineStart = end = count = 0;
+        startLine = false;
+    }
+
+    /**
+     * 从 source 读取数据, 头结束时 source 停在 Body 的第一个字节
+     *
+     * @return 头是否已经完整
+     */
+    public boolean update(ByteBuffer source)
+    {
+        if (isComplete())
+            return true;
+
+        int n = Math.min(buffer.length - length, source.remaining());
+        source.get(buffer, length, n);
+        length += n;
+
+        if (scan())
+            source.position(source.position() - rewind());
+
+        return isComplete();
+    }
+
+    /**
+     * 退回头之后多读的字节
+     */
+    private int rewind()
+    {
+        int extra = length - end;
+        length = end;
+        return extra;
+    }
+
+    private boolean scan()
+    {
+        while (scanned < length)
+        {
+            if (buffer[scanned++] != '\n')
+                continue;
+
+            int lineEnd = scanned - 1;
+            if (lineEnd > lineStart && buffer[lineEnd - 1] == '\r')
+                lineEnd--;
+
+            int from = lineStart;
+            lineStart = scanned;
+
+            if (line(from, lineEnd))
+            {
+                end = scanned;
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @return 是否是头结束的空行
+     */
+    private boolean line(int from, int to)
+    {
+        if (!startLine)
+        {
+            // RFC 7230 3.5: 起始行之前的空行忽略
+            if (from == to)
+                return false;
+
+            startLine = true;
+
+            int p = skipSpace(from, to);
+            for (int i = 0; i < START_TOKENS; i++)
+            {
+                int tokenEnd = i == START_TOKENS - 1 ? trimEnd(p, to) : nextSpace(p, to);
+                start[i * 2] = p;
+                start[i * 2 + 1] = tokenEnd;
+                p = skipSpace(tokenEnd, to);
+            }
+            return false;
+        }
+
+        if (from == to)
+            return true;
+
+        int colon = from;
+        while (colon < to && buffer[colon] != ':')
+            colon++;
+
+        // 没有冒号的行忽略
+        if (colon == to)
+            return false;
+
+        if (count * 4 == fields.length)
+        {
+            int[] grown = new int[fields.length * 2];
+            System.arraycopy(fields, 0, grown, 0, fields.length);
+            fields = grown;
+        }
+
+        int i = count * 4;
+        fields[i] = skipSpace(from, colon);
+        fields[i + 1] = trimEnd(fields[i], colon);
+        fields[i + 2] = skipSpace(colon + 1, to);
+        fields[i + 3] = trimEnd(fields[i + 2], to);
+        count++;
+
+        return false;
+    }
+
+    private static boolean isSpace(byte b)
+    {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\f';
+    }
+
+    private int skipSpace(int from, int to)
+    {
+        while (from < to && isSpace(buffer[from]))
+            from++;
+        return from;
+    }
+
+    private int nextSpace(int from, int to)
+    {
+        while (from < to && !isSpace(buffer[from]))
+            from++;
+        return from;
+    }
+
+    private int trimEnd(int from, int to)
+    {
+        while (to > from && isSpace(buffer[to - 1]))
+            to--;
+        return to;
+    }
+
+    public boolean isComplete()
+    {
+        return end > 0;
+    }
+
+    /**
+     * 缓冲区已满, 但头还没有结束
+     */
+    public boolean isFull()
+    {
+        return !isComplete() && length == buffer.length;
+    }
+
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * 头的长度, 包括结尾的空行
+     */
+    public int getLength() {
+        return end;
+    }
+
+    public int getStartOffset(int index) {
+        return start[index * 2];
+    }
+
+    public int getStartLength(int index) {
+        return start[index * 2 + 1] - start[index * 2];
+    }
+
+    /**
+     * 起始行的第 index 段, 不存在时为空字符串
+     */
+    public String getStart(int index)
+    {
+        return new String(buffer, getStartOffset(index), getStartLength(index), StandardCharsets.UTF_8);
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * 小写的头名称
+     */
+    public String getName(int index)
+    {
+        int i = index * 4;
+        return new String(buffer, fields[i], fields[i + 1] - fields[i], StandardCharsets.UTF_8).toLowerCase(Locale.US);
+    }
+
+    public String getValue(int index)
+    {
+        int i = index * 4;
+        return new String(buffer, fields[i + 2], fields[i + 3] - fields[i + 2], StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 头的位置, 重复的头以最后一个为准
+     *
+     * @param name 小写的头名称
+     * @return 没有返回 -1
+     */
+    public int indexOf(String name)
+    {
+        for (int index = count - 1; index >= 0; index--)
+        {
+            int i = index * 4;
+            int from = fields[i];
+            if (fields[i + 1] - from != name.length())
+                continue;
+
+            int k = 0;
+            while (k < name.length())
+            {
+                int b = buffer[from + k];
+                if (b >= 'A' && b <= 'Z')
+                    b += 'a' - 'A';
+                if (b != name.charAt(k))
+                    break;
+                k++;
+            }
+
+            if (k == name.length())
+                return index;
+        }
+
+        return -1;
+    }
+
+    /**
+     * @param name 小写的头名称
+     */
+    public String get(String name)
+    {
+        int index = indexOf(name);
+        return index < 0 ? null : getValue(index);
+    }
+
+    /**
+     * 数字类型的头, 比如 content-length
+     *
+     * @param name 小写的头名称
+     * @return 没有返回 defaultValue
+     * @throws NumberFormatException 不是非负整数
+     */
+    public long getLong(String name, long defaultValue)
+    {
+        int index = indexOf(name);
+        if (index < 0)
+            return defaultValue;
+
+        int i = index * 4;
+        int from = fields[i + 2];
+        int to = fields[i + 3];
+
+        if (from == to || to - from > 18)
+            throw new NumberFormatException("For input string: \"" + getValue(index) + "\"");
+
+        long value = 0;
+        for (int k = from; k < to; k++)
+        {
+            int digit = buffer[k] - '0';
+            if (digit < 0 || digit > 9)
+                throw new NumberFormatException("For input string: \"" + getValue(index) + "\"");
+
+            value = value * 10 + digit;
+        }
+
+        return value;
+    }
+
+    /**
+     * Transfer-Encoding 的最后一个编码是否是 chunked
+     */
+    public boolean isChunked()
+    {
+        int index = indexOf("transfer-encoding");
+        if (index < 0)
+            return false;
+
+        int i = index * 4;
+        int from = fields[i + 2];
+        int to = fields[i + 3];
+
+        int p = to;
+        while (p > from && buffer[p - 1] != ',')
+            p--;
+        p = skipSpace(p, to);
+
+        String chunked = "chunked";
+        if (to - p != chunked.length())
+            return false;
+
+        for (int k = 0; k < chunked.length(); k++)
+        {
+            if ((buffer[p + k] | 0x20) != chunked.charAt(k))
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * 小写名称 -> 值, 重复的头以最后一个为准
+     */
+    public Map<String, String> toMap()
+    {
+        Map<String, String> map = new HashMap<>();
+        for (int i = 0; i < count; i++)
+            map.put(getName(i), getValue(i));
+        return map;
+    }
+
+    @Override
+    public String toString()
+    {
+        return new String(buffer, 0, isComplete() ? end : length, StandardCharsets.UTF_8);
+    }
+}
@@ -24,6 +24,8 @@ public enum Method {
     NOTIFY,
     SUBSCRIBE;
 
+    private static final Method[] VALUES = values();
+
     public static Method lookup(String method) {
         if (method == null)
             return null;
@@ -35,4 +37,23 @@ public enum Method {
             return null;
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * 直接比较报文中的字节, 不生成 String
+     */
+    public static Method lookup(byte[] buffer, int offset, int length) {
+        for (Method method : VALUES) {
+            String name = method.name();
+            if (name.length() != length)
+                continue;
+
+            int i = 0;
+            while (i < length && buffer[offset + i] == name.charAt(i))
+                i++;
+
+            if (i == length)
+                return method;
+        }
+        return null;
+    }
+}
@@ -5,35 +5,34 @@ import android.util.Log;
 import org.apache.commons.codec.binary.StringUtils;
 
 
-import org.fly.android.localvpn.LocalVPN;
 import org.fly.android.localvpn.structs.HttpUtils;
-import org.fly.android.localvpn.structs.IoBuffer;
 import org.fly.android.localvpn.structs.IoUtils;
 import org.fly.protocol.exception.RequestException;
 import org.fly.protocol.http.Constant;
 import org.fly.protocol.http.content.ContentType;
 import org.fly.protocol.http.content.CookieHandler;
+import org.fly.protocol.http.multipart.MultipartParser;
+import org.fly.protocol.http.multipart.Part;
+import org.fly.protocol.http.multipart.PartSink;
+import org.fly.protocol.http.multipart.SpillSink;
+import org.fly.protocol.http.multipart.TeeSink;
 import org.fly.protocol.http.response.Response;
 import org.fly.protocol.http.response.Status;
 import org.fly.protocol.http.tempfiles.DefaultTempFileManagerFactory;
 import org.fly.protocol.http.tempfiles.ITempFile;
 import org.fly.protocol.http.tempfiles.ITempFileManager;
 
-import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutput;
 import java.io.DataOutputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
 import java.net.SocketException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -41,7 +40,6 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.StringTokenizer;
-import java.util.regex.Matcher;
 
 public class Request {
 
@@ -77,24 +75,67 @@ public class Request {
 
     private String queryParameterString;
 
-    private String protocolVersion;
-
-    private IoBuffer session = IoBuffer.allocateDirect(LocalVPN.BUFFER_SIZE);
-
-    private HeaderParser headerParser;
+    // 头只记录位置, uri, 参数, headers 等在第一次用到时才生成
+    private HeaderParser headerParser = new HeaderParser(BUFF_SIZE);
     private BodyParser bodyParser = null;
+    private OnHeaderListener onHeaderListener = null;
+    private MultipartParser.Handler multipartHandler = null;
 
     public Request() {
-        headerParser = new HeaderParser();
+    }
+
+    /**
+     * 头解析完成, 还没有读取 Body 时回调
+     */
+    public interface OnHeaderListener {
+        /**
+         * @return true 保存整个 Body 并解析其中的参数; false 只计数, Body 不做任何拷贝
+         */
+        boolean onHeader(Request request) throws RequestException;
+    }
+
+    /**
+     * 没有设置时总是保存 Body
+     */
+    public void setOnHeaderListener(OnHeaderListener onHeaderListener) {
+        this.onHeaderListener = onHeaderListener;
+    }
+
+    /**
+     * multipart/form-data 的 POST 请求, 每个 part 的 Body 交给 handler 返回的 sink,
+     * 数据到达时就处理, 不保存 Body 时也会解析
+     */
+    public void setMultipartHandler(MultipartParser.Handler multipartHandler) {
+        this.multipartHandler = multipartHandler;
     }
 
     public final Map<String, String> getHeaders() {
+        if (headers == null && headerParser.isComplete())
+            headers = headerParser.toMap();
+
         return headers;
     }
 
+    /**
+     * 单个头, 不需要生成整个 headers
+     *
+     * @param name 小写的头名称
+     */
+    public final String getHeader(String name) {
+        return headers != null ? headers.get(name) : headerParser.get(name);
+    }
+
     public final String getHeaderRaw()
     {
-        return new String(headerParser.headerBuffer, 0, headerParser.headerEndpoint);
+        return headerParser.toString();
+    }
+
+    /**
+     * 请求头的字节数, 包括结尾的空行
+     */
+    public int getHeaderSize()
+    {
+        return headerParser.getLength();
     }
 
     public final Method getMethod() {
@@ -102,11 +143,24 @@ public class Request {
     }
 
     public final Map<String, List<String>> getParameters() {
+        if (params == null && headerParser.isComplete())
+        {
+            params = new HashMap<>();
+            parseUri();
+
+            try {
+                if (queryParameterString != null)
+                    decodeParams(queryParameterString, params);
+            } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+                Log.w(TAG, "Invalid query: " + queryParameterString);
+            }
+        }
+
         return params;
     }
 
     public final List<String> getParameter(String key) {
-        return params.get(key);
+        return getParameters().get(key);
     }
 
     public final List<String> inputs(String key)
@@ -121,18 +175,36 @@ public class Request {
     }
 
     public final String getUri() {
+        parseUri();
         return uri;
     }
 
     public String getUrl()
     {
-        return "http://" + headers.get("host") + uri + (queryParameterString != null && !queryParameterString.isEmpty() ? "?" + queryParameterString : "");
+        String queryParameterString = getQueryParameterString();
+        return "http://" + getHeader("host") + getUri() + (queryParameterString != null && !queryParameterString.isEmpty() ? "?" + queryParameterString : "");
     }
 
     public String getQueryParameterString() {
+        parseUri();
         return queryParameterString;
     }
 
+    public String getProtocolVersion() {
+        if (!headerParser.isComplete())
+            return null;
+
+        // 没有版本时按 HTTP/1.1
+        return headerParser.getStartLength(2) == 0 ? "HTTP/1.1" : headerParser.getStart(2);
+    }
+
+    public CookieHandler getCookies() {
+        if (cookies == null && headerParser.isComplete())
+            cookies = new CookieHandler(getHeaders());
+
+        return cookies;
+    }
+
     public boolean isHeaderComplete()
     {
         return headerParser.isComplete();
@@ -142,276 +214,371 @@ public class Request {
         return bodyParser != null && bodyParser.isComplete();
     }
 
+    /**
+     * Content-Length, chunked 或者还没收到头时为 -1
+     */
     public long getBodySize()
     {
-        return headerParser.isComplete() ? headerParser.getBodySize() : -1;
+        return bodyParser != null ? bodyParser.total : -1;
     }
 
-    public void write(ByteBuffer readableBuffer) throws RequestException, IOException
+    /**
+     * 已经收到的 Body 字节数, chunked 时是解码后的长度
+     */
+    public long getBodyReceived()
     {
-        //turn read to write
-        //第一次是0，需要判断
-        if (session.position() != 0)
-            session.compact();
-
-        if (readableBuffer.remaining() > session.remaining()) {
-            int delta = (int) Math.ceil((double)readableBuffer.remaining() / (double)session.capacity());
-
-            if (delta > 0)
-                session.extend(delta * LocalVPN.BUFFER_SIZE);
-        }
-
-        session.put(readableBuffer.duplicate());
+        return bodyParser != null ? bodyParser.received : 0;
+    }
 
-        session.flip();
+    public boolean isChunked()
+    {
+        return bodyParser != null && bodyParser.decoder != null;
+    }
 
-        execute();
+    /**
+     * Body 是否被保存, 只有保存的 Body 才会解析出参数
+     */
+    public boolean isBodySpooled()
+    {
+        return bodyParser != null && bodyParser.spool;
     }
 
-    private void execute() throws RequestException, IOException
+    /**
+     * 写入数据, 只读取到当前请求结束为止
+     * 请求结束后多余的数据 (keep-alive 上管线化的下一个请求) 留在 readableBuffer 中, reset 之后继续写入
+     */
+    public void write(ByteBuffer readableBuffer) throws RequestException, IOException
     {
         if (!isHeaderComplete())
         {
-            headerParser.update();
+            headerParser.update(readableBuffer);
+
+            // Apache's default header limit is 8KB.
+            if (headerParser.isFull())
+                throw new RequestException("Header size limit " + IoUtils.getFileSize(BUFF_SIZE));
 
-            if (headerParser.isComplete())
-                bodyParser = new BodyParser(headerParser.getBodySize());
+            if (!headerParser.isComplete())
+                return;
+
+            parseHeader();
+
+            boolean chunked = isChunkedHeader();
+            bodyParser = new BodyParser(chunked ? -1 : getContentLength(), chunked, onHeaderListener == null || onHeaderListener.onHeader(this));
         }
 
-        if (isHeaderComplete() && !isBodyComplete())
+        if (!isBodyComplete())
         {
-            if (bodyParser == null)
-                throw new RequestException("Body parser lost");
-
-            bodyParser.update();
+            bodyParser.update(readableBuffer);
 
             if (bodyParser.isComplete())
                 tempFileManager.clear();
         }
+    }
 
+    /**
+     * 同一个连接上的下一个请求复用这个对象, 保留 OnHeaderListener 和 MultipartHandler
+     */
+    public void reset()
+    {
+        headerParser.reset();
+        bodyParser = null;
+        uri = null;
+        method = null;
+        params = null;
+        headers = null;
+        cookies = null;
+        queryParameterString = null;
     }
 
-    private class HeaderParser {
+    /**
+     * 头完整后检查起始行, 只比较字节, 不生成 String
+     */
+    private void parseHeader() throws RequestException
+    {
+        if (headerParser.getStartLength(0) == 0)
+            throw new RequestException("BAD REQUEST: Syntax error. \"" + headerParser.getStart(0) + "\" Usage: GET /example/file.html");
 
-        byte[] headerBuffer = new byte[BUFF_SIZE];
-        int headerEndpoint;
-        private int rlen = 0;
+        method = Method.lookup(headerParser.getBuffer(), headerParser.getStartOffset(0), headerParser.getStartLength(0));
+        if (method == null) {
+            throw new RequestException("BAD REQUEST: Syntax error. HTTP verb " + headerParser.getStart(0) + " unhandled.");
+        }
 
-        void update() throws RequestException
-        {
-            while(session.hasRemaining() && BUFF_SIZE - rlen > 0)
-            {
-                int s = Math.min(BUFF_SIZE - rlen, session.remaining());
+        if (headerParser.getStartLength(1) == 0)
+            throw new RequestException("BAD REQUEST: Missing URI. \"" + headerParser.getStart(0) + "\" Usage: GET /example/file.html");
+    }
 
-                session.get(headerBuffer, rlen, s);
-                rlen += s;
-            }
+    /**
+     * 拆分并解码 uri 和 query string
+     */
+    private void parseUri()
+    {
+        if (uri != null || !headerParser.isComplete())
+            return;
 
-            headerEndpoint = findHeaderEndpoint(headerBuffer, rlen);
+        String raw = headerParser.getStart(1);
+        int qmi = raw.indexOf('?');
+        String path = qmi >= 0 ? raw.substring(0, qmi) : raw;
 
-            // Read the first 8192 bytes.
-            // The full header should fit in here.
-            // Apache's default header limit is 8KB.
-            // Do NOT assume that a single read will get the entire header
-            // at once!
+        queryParameterString = qmi >= 0 ? raw.substring(qmi + 1) : null;
 
-            if (rlen >= BUFF_SIZE && headerEndpoint == 0)
-                throw new RequestException("Header size limit " + IoUtils.getFileSize(BUFF_SIZE));
+        try {
+            uri = HttpUtils.decodePercent(path);
+        } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+            // 错误的 % 编码, 保留原样
+            uri = path;
+        }
+    }
 
-            // Header Complete
-            if (isComplete()) {
+    /**
+     * Deduce body length in bytes from "content-length" header.
+     */
+    private long getContentLength() throws RequestException
+    {
+        // 没有 Content-Length 也不是 chunked 的请求没有 Body, RFC 7230 3.3.3
+        try {
+            return headerParser.getLong("content-length", 0);
+        } catch (NumberFormatException e) {
+            throw new RequestException("BAD REQUEST: Invalid Content-Length", e);
+        }
+    }
 
-                // 多余部分是Body，重新设置流position
-                if (headerEndpoint < rlen) {
+    /**
+     * Transfer-Encoding 优先于 Content-Length, 最后一个编码不是 chunked 时无法确定请求的长度
+     */
+    private boolean isChunkedHeader() throws RequestException
+    {
+        if (headerParser.isChunked())
+            return true;
 
-                    session.position(session.position() - rlen + headerEndpoint);
+        if (headerParser.indexOf("transfer-encoding") >= 0)
+            throw new RequestException("BAD REQUEST: Unsupported Transfer-Encoding " + headerParser.get("transfer-encoding"));
 
-                    rlen = headerEndpoint;
-                }
+        return false;
+    }
 
-                parseHeader();
-            }
-        }
+    private class BodyParser {
 
-        boolean isComplete()
-        {
-            return headerEndpoint > 0;
-        }
+        private ByteArrayOutputStream baos = null;
+        private DataOutput requestDataOutput;
+        // 还没收到的长度, chunked 时不用
+        private long size;
+        private final long total;
+        private long received = 0;
+        private final boolean spool;
+        private final ChunkedDecoder decoder;
+        private RandomAccessFile randomAccessFile = null;
+        private final Map<String, String> files = new HashMap<>();
+        private byte[] buf;
+        // multipart 的 Body 边收边解析, 不需要先保存
+        private final MultipartParser multipart;
 
         /**
-         * Find byte index separating header from body. It must be the last byte of
-         * the first two sequential new lines.
+         * @param size Content-Length, chunked 时为 -1
          */
-        private int findHeaderEndpoint(final byte[] buf, int rlen) {
-
-            int splitbyte = 0;
-            while (splitbyte + 1 < rlen) {
+        BodyParser(long size, boolean chunked, boolean spool) throws RequestException {
 
-                // RFC2616
-                if (buf[splitbyte] == '\r' && buf[splitbyte + 1] == '\n' && splitbyte + 3 < rlen && buf[splitbyte + 2] == '\r' && buf[splitbyte + 3] == '\n') {
-                    return splitbyte + 4;
-                }
+            this.size = size;
+            this.total = size;
+            this.spool = spool;
+            this.decoder = chunked ? new ChunkedDecoder() : null;
+            this.multipart = createMultipart();
 
-                // tolerance
-                if (buf[splitbyte] == '\n' && buf[splitbyte + 1] == '\n') {
-                    return splitbyte + 2;
-                }
-                splitbyte++;
+            // Store the request in memory or a file, depending on size
+            // chunked 时先放在内存中, 超过 MEMORY_STORE_LIMIT 再转到文件
+            if (!spool || multipart != null) {
+                // 不需要保存
+            } else if (size < MEMORY_STORE_LIMIT) {
+                baos = new ByteArrayOutputStream();
+                requestDataOutput = new DataOutputStream(baos);
+            } else {
+                randomAccessFile = getTmpBucket();
+                requestDataOutput = randomAccessFile;
             }
-
-            return 0;
         }
 
-        private void parseHeader() throws RequestException
+        void update(ByteBuffer source) throws IOException, RequestException
         {
-            params = new HashMap<>();
-            if (null == headers) {
-                headers = new HashMap<>();
+            if (decoder != null)
+            {
+                int n;
+                while ((n = decoder.next(source)) > 0)
+                    read(source, n);
             } else {
-                headers.clear();
+                int n = (int) Math.min(size, source.remaining());
+                read(source, n);
+                size -= n;
             }
 
-            // Create a BufferedReader for parsing the header.
-            BufferedReader hin = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(headerBuffer, 0, rlen)));
-            // Decode the header into params and header java properties
-            Map<String, String> pre = new HashMap<>();
-
-            decodeHeader(hin, pre, params, headers);
-
-            method = Method.lookup(pre.get("method"));
-            if (method == null) {
-                throw new RequestException("BAD REQUEST: Syntax error. HTTP verb " + pre.get("method") + " unhandled.");
-            }
+            if (!isComplete())
+                return;
 
-            uri = pre.get("uri");
+            if (multipart != null && !multipart.isComplete())
+                throw new RequestException("BAD REQUEST: Content type is multipart/form-data but the closing boundary is missing.");
 
-            cookies = new CookieHandler(headers);
+            if (spool && multipart == null)
+                parseBody(files);
         }
 
         /**
-         * Deduce body length in bytes. Either from "content-length" header or read
-         * bytes.
+         * POST 的 multipart/form-data, 保存 Body 或者设置了 multipartHandler 时才解析
          */
-        long getBodySize() {
-            if (headers.containsKey("content-length")) {
-                return Long.parseLong(headers.get("content-length"));
-            } else if (headerEndpoint < rlen) {
-                return rlen - headerEndpoint;
-            }
-
-            return 0;
+        private MultipartParser createMultipart() throws RequestException
+        {
+            if (!Method.POST.equals(method) || (!spool && multipartHandler == null))
+                return null;
+
+            ContentType contentType = new ContentType(getHeader("content-type"));
+            if (!contentType.isMultipart())
+                return null;
+
+            String boundary = contentType.getBoundary();
+            if (boundary == null)
+                throw new RequestException("BAD REQUEST: Content type is multipart/form-data but boundary missing. Usage: GET /example/file.html");
+
+            MultipartParser.Handler handler;
+            if (!spool)
+                handler = multipartHandler;
+            else if (multipartHandler == null)
+                handler = formHandler(contentType.getEncoding());
+            else
+                handler = tee(formHandler(contentType.getEncoding()), multipartHandler);
+
+            return new MultipartParser(boundary, contentType.getEncoding(), handler);
         }
 
         /**
-         * Decodes the sent headers and loads the data into Key/value pairs
+         * 没有 Content-Type 的 part 作为参数, 其它的保存到临时文件, 参数中是文件名
          */
-        private void decodeHeader(BufferedReader in,
-                                  Map<String, String> pre,
-                                  Map<String, List<String>> params,
-                                  Map<String, String> headers) throws RequestException {
-            try {
-                // Read the request line
-                String inLine = in.readLine();
-                if (inLine == null) {
-                    return;
-                }
-
-                StringTokenizer st = new StringTokenizer(inLine);
-                if (!st.hasMoreTokens()) {
-                    throw new RequestException("BAD REQUEST: Syntax error. \""+inLine+"\" Usage: GET /example/file.html");
-                }
-
-                pre.put("method", st.nextToken());
-
-                if (!st.hasMoreTokens()) {
-                    throw new RequestException("BAD REQUEST: Missing URI. \""+inLine+"\" Usage: GET /example/file.html");
-                }
-
-                String uri = st.nextToken();
+        private MultipartParser.Handler formHandler(final String encoding)
+        {
+            return new MultipartParser.Handler() {
+                private int pcount = 0;
+
+                @Override
+                public PartSink onPart(Part part) {
+                    String partName = part.getName();
+                    final String fileName = part.getFileName();
+
+                    // add these two line to support multiple
+                    // files uploaded using the same field Id
+                    if (fileName != null && !fileName.isEmpty()) {
+                        if (pcount > 0)
+                            partName = partName + String.valueOf(pcount++);
+                        else
+                            pcount++;
+                    }
 
-                // Decode parameters from the URI
-                int qmi = uri.indexOf('?');
-                if (qmi >= 0) {
-                    decodeParams(uri.substring(qmi + 1), params);
-                    uri = HttpUtils.decodePercent(uri.substring(0, qmi));
-                } else {
-                    uri = HttpUtils.decodePercent(uri);
-                }
+                    final String name = partName;
+                    List<String> list = getParameters().get(name);
+                    if (list == null) {
+                        list = new ArrayList<>();
+                        getParameters().put(name, list);
+                    }
+                    final List<String> values = list;
+
+                    if (part.getContentType() == null) {
+                        // 超过 MEMORY_STORE_LIMIT 的参数先写到文件, 结束时再读回
+                        return new SpillSink(tempFileManager, MEMORY_STORE_LIMIT, null) {
+                            @Override
+                            public void end() throws IOException {
+                                super.end();
+                                values.add(getString(encoding));
+                            }
+                        };
+                    }
 
-                // If there's another token, its protocol version,
-                // followed by HTTP headers.
-                // NOTE: this now forces header names lower case since they are
-                // case insensitive and vary by client.
-                if (st.hasMoreTokens()) {
-                    protocolVersion = st.nextToken();
-                } else {
-                    protocolVersion = "HTTP/1.1";
+                    return new SpillSink(tempFileManager, 0, fileName) {
+                        @Override
+                        public void end() throws IOException {
+                            super.end();
+
+                            String path = getPath() == null ? "" : getPath();
+                            if (!files.containsKey(name)) {
+                                files.put(name, path);
+                            } else {
+                                int count = 2;
+                                while (files.containsKey(name + count)) {
+                                    count++;
+                                }
+                                files.put(name + count, path);
+                            }
+                            values.add(fileName);
+                        }
+                    };
                 }
+            };
+        }
 
-                String line = in.readLine();
-                while (line != null && !line.trim().isEmpty()) {
-                    int p = line.indexOf(':');
-                    if (p >= 0) {
-                        headers.put(line.substring(0, p).trim().toLowerCase(Locale.US), line.substring(p + 1).trim());
-                    }
-                    line = in.readLine();
+        private MultipartParser.Handler tee(final MultipartParser.Handler first, final MultipartParser.Handler second)
+        {
+            return new MultipartParser.Handler() {
+                @Override
+                public PartSink onPart(Part part) throws IOException {
+                    PartSink a = first.onPart(part);
+                    PartSink b = second.onPart(part);
+                    return a == null ? b : b == null ? a : new TeeSink(a, b);
                 }
-
-                pre.put("uri", uri);
-            } catch (IOException ioe) {
-                throw new RequestException("SERVER INTERNAL ERROR: IOException: " + ioe.getMessage(), ioe);
-            }
+            };
         }
-    }
-
-    private class BodyParser {
-
-        private ByteArrayOutputStream baos = null;
-        private DataOutput requestDataOutput;
-        private long size;
-        private RandomAccessFile randomAccessFile = null;
-        private Map<String, String> files;
 
-        BodyParser(long size) {
-
-            this.size = size;
+        /**
+         * 读取 source 中的 n 个字节的 Body, 不保存时直接跳过
+         */
+        private void read(ByteBuffer source, int n) throws IOException
+        {
+            received += n;
 
-            // Store the request in memory or a file, depending on size
-            if (size < MEMORY_STORE_LIMIT) {
-                baos = new ByteArrayOutputStream();
-                requestDataOutput = new DataOutputStream(baos);
-            } else {
-                randomAccessFile = getTmpBucket();
-                requestDataOutput = randomAccessFile;
+            if (multipart != null)
+            {
+                ByteBuffer part = source.duplicate();
+                part.limit(part.position() + n);
+                multipart.write(part);
+                source.position(source.position() + n);
+                return;
             }
-        }
 
-        void update() throws IOException, RequestException
-        {
-            // Read all the body and write it to request_data_output
-            while(session.hasRemaining() && size > 0)
+            if (!spool)
             {
-                byte[] buf = new byte[REQUEST_BUFFER_LEN];
+                source.position(source.position() + n);
+                return;
+            }
 
-                int rlen = (int) Math.min(Math.min(size, REQUEST_BUFFER_LEN), session.remaining());
-                session.get(buf, 0, rlen);
-                size -= rlen;
-                if (rlen > 0) {
-                    requestDataOutput.write(buf, 0, rlen);
-                }
+            if (baos != null && baos.size() + n >= MEMORY_STORE_LIMIT)
+                spill();
+
+            if (source.hasArray())
+            {
+                requestDataOutput.write(source.array(), source.arrayOffset() + source.position(), n);
+                source.position(source.position() + n);
+                return;
             }
 
-            if (isComplete())
+            if (buf == null)
+                buf = new byte[REQUEST_BUFFER_LEN];
+
+            while (n > 0)
             {
-                files = new HashMap<>();
-                parseBody(files);
+                int rlen = Math.min(n, REQUEST_BUFFER_LEN);
+                source.get(buf, 0, rlen);
+                requestDataOutput.write(buf, 0, rlen);
+                n -= rlen;
             }
+        }
 
+        /**
+         * 内存中的 Body 转到临时文件
+         */
+        private void spill() throws IOException
+        {
+            randomAccessFile = getTmpBucket();
+            randomAccessFile.write(baos.toByteArray(), 0, baos.size());
+            requestDataOutput = randomAccessFile;
+            baos = null;
         }
 
         boolean isComplete()
         {
-            return size == 0;
+            return decoder != null ? decoder.isComplete() : size == 0;
         }
 
         private void parseBody(Map<String, String> files) throws IOException, RequestException {
@@ -432,20 +599,14 @@ public class Request {
                 // If the method is POST, there may be parameters
                 // in data section, too, read it:
                 if (Method.POST.equals(method)) {
-                    ContentType contentType = new ContentType(headers.get("content-type"));
-                    if (contentType.isMultipart()) {
-                        String boundary = contentType.getBoundary();
-                        if (boundary == null) {
-                            throw new RequestException("BAD REQUEST: Content type is multipart/form-data but boundary missing. Usage: GET /example/file.html");
-                        }
-                        decodeMultipartFormData(contentType, fbuf, params, files);
-                    } else {
+                    ContentType contentType = new ContentType(getHeader("content-type"));
+                    {
                         byte[] postBytes = new byte[fbuf.remaining()];
                         fbuf.get(postBytes);
                         String postLine = new String(postBytes, contentType.getEncoding()).trim();
                         // Handle application/x-www-form-urlencoded
                         if ("application/x-www-form-urlencoded".equalsIgnoreCase(contentType.getContentType())) {
-                            decodeParams(postLine, params);
+                            decodeParams(postLine, getParameters());
                         } else if (postLine.length() != 0) {
                             // Special case for raw POST data => create a
                             // special files entry "postData" with raw content
@@ -461,123 +622,6 @@ public class Request {
             }
         }
 
-        /**
-         * Decodes the Multipart Body data and put it into Key/Value pairs.
-         */
-        private void decodeMultipartFormData(ContentType contentType,
-                                             ByteBuffer fbuf,
-                                             Map<String, List<String>> params,
-                                             Map<String, String> files) throws RequestException {
-            int pcount = 0;
-            try {
-                int[] boundaryIdxs = getBoundaryPositions(fbuf, contentType.getBoundary().getBytes());
-                if (boundaryIdxs.length < 2) {
-                    throw new RequestException("BAD REQUEST: Content type is multipart/form-data but contains less than two boundary strings.");
-                }
-
-                byte[] partHeaderBuff = new byte[MAX_HEADER_SIZE];
-                for (int boundaryIdx = 0; boundaryIdx < boundaryIdxs.length - 1; boundaryIdx++) {
-                    fbuf.position(boundaryIdxs[boundaryIdx]);
-                    int len = (fbuf.remaining() < MAX_HEADER_SIZE) ? fbuf.remaining() : MAX_HEADER_SIZE;
-                    fbuf.get(partHeaderBuff, 0, len);
-                    BufferedReader in =
-                            new BufferedReader(new InputStreamReader(new ByteArrayInputStream(partHeaderBuff, 0, len), Charset.forName(contentType.getEncoding())), len);
-
-                    int headerLines = 0;
-                    // First line is boundary string
-                    String mpline = in.readLine();
-                    headerLines++;
-                    if (mpline == null || !mpline.contains(contentType.getBoundary())) {
-                        throw new RequestException("BAD REQUEST: Content type is multipart/form-data but chunk does not start with boundary.");
-                    }
-
-                    String partName = null, fileName = null, partContentType = null;
-                    // Parse the reset of the header lines
-                    mpline = in.readLine();
-                    headerLines++;
-                    while (mpline != null && mpline.trim().length() > 0) {
-                        Matcher matcher = Constant.CONTENT_DISPOSITION_PATTERN.matcher(mpline);
-                        if (matcher.matches()) {
-                            String attributeString = matcher.group(2);
-                            matcher = Constant.CONTENT_DISPOSITION_ATTRIBUTE_PATTERN.matcher(attributeString);
-                            while (matcher.find()) {
-                                String key = matcher.group(1);
-                                if ("name".equalsIgnoreCase(key)) {
-                                    partName = matcher.group(2);
-                                } else if ("filename".equalsIgnoreCase(key)) {
-                                    fileName = matcher.group(2);
-                                    // add these two line to support multiple
-                                    // files uploaded using the same field Id
-                                    if (!fileName.isEmpty()) {
-                                        if (pcount > 0)
-                                            partName = partName + String.valueOf(pcount++);
-                                        else
-                                            pcount++;
-                                    }
-                                }
-                            }
-                        }
-                        matcher = Constant.CONTENT_TYPE_PATTERN.matcher(mpline);
-                        if (matcher.matches()) {
-                            partContentType = matcher.group(2).trim();
-                        }
-                        mpline = in.readLine();
-                        headerLines++;
-                    }
-                    int partHeaderLength = 0;
-                    while (headerLines-- > 0) {
-                        partHeaderLength = scipOverNewLine(partHeaderBuff, partHeaderLength);
-                    }
-                    // Read the part data
-                    if (partHeaderLength >= len - 4) {
-                        throw new RequestException("Multipart header size exceeds MAX_HEADER_SIZE.");
-                    }
-                    int partDataStart = boundaryIdxs[boundaryIdx] + partHeaderLength;
-                    int partDataEnd = boundaryIdxs[boundaryIdx + 1] - 4;
-
-                    fbuf.position(partDataStart);
-
-                    List<String> values = params.get(partName);
-                    if (values == null) {
-                        values = new ArrayList<String>();
-                        params.put(partName, values);
-                    }
-
-                    if (partContentType == null) {
-                        // Read the part into a string
-                        byte[] data_bytes = new byte[partDataEnd - partDataStart];
-                        fbuf.get(data_bytes);
-
-                        values.add(new String(data_bytes, contentType.getEncoding()));
-                    } else {
-                        // Read it into a file
-                        String path = saveTmpFile(fbuf, partDataStart, partDataEnd - partDataStart, fileName);
-                        if (!files.containsKey(partName)) {
-                            files.put(partName, path);
-                        } else {
-                            int count = 2;
-                            while (files.containsKey(partName + count)) {
-                                count++;
-                            }
-                            files.put(partName + count, path);
-                        }
-                        values.add(fileName);
-                    }
-                }
-            } catch (RequestException re) {
-                throw re;
-            } catch (Exception e) {
-                throw new RequestException(e);
-            }
-        }
-
-        private int scipOverNewLine(byte[] partHeaderBuff, int index) {
-            while (partHeaderBuff[index] != '\n') {
-                index++;
-            }
-            return ++index;
-        }
-
         /**
          * Retrieves the content of a sent file and saves it to a temporary file.
          * The full path to the saved file is returned.
@@ -609,52 +653,6 @@ public class Request {
             return path;
         }
 
-        /**
-         * Find the byte positions where multipart boundaries start. This reads a
-         * large block at a time and uses a temporary buffer to optimize (memory
-         * mapped) file access.
-         */
-        private int[] getBoundaryPositions(ByteBuffer b, byte[] boundary) {
-            int[] res = new int[0];
-            if (b.remaining() < boundary.length) {
-                return res;
-            }
-
-            int search_window_pos = 0;
-            byte[] search_window = new byte[4 * 1024 + boundary.length];
-
-            int first_fill = (b.remaining() < search_window.length) ? b.remaining() : search_window.length;
-            b.get(search_window, 0, first_fill);
-            int new_bytes = first_fill - boundary.length;
-
-            do {
-                // Search the search_window
-                for (int j = 0; j < new_bytes; j++) {
-                    for (int i = 0; i < boundary.length; i++) {
-                        if (search_window[j + i] != boundary[i])
-                            break;
-                        if (i == boundary.length - 1) {
-                            // Match found, add it to results
-                            int[] new_res = new int[res.length + 1];
-                            System.arraycopy(res, 0, new_res, 0, res.length);
-                            new_res[res.length] = search_window_pos + j;
-                            res = new_res;
-                        }
-                    }
-                }
-                search_window_pos += new_bytes;
-
-                // Copy the end of the buffer to the start
-                System.arraycopy(search_window, search_window.length - boundary.length, search_window, 0, boundary.length);
-
-                // Refill search_window
-                new_bytes = search_window.length - boundary.length;
-                new_bytes = (b.remaining() < new_bytes) ? b.remaining() : new_bytes;
-                b.get(search_window, boundary.length, new_bytes);
-            } while (new_bytes > 0);
-            return res;
-        }
-
         private RandomAccessFile getTmpBucket() {
             try {
                 ITempFile tempFile = tempFileManager.createTempFile(null);
@@ -671,11 +669,11 @@ public class Request {
     public void response(String content, OutputStream outputStream) throws IOException
     {
         Response response = Response.newFixedLengthResponse(Status.INTERNAL_ERROR, Constant.MIME_HTML, content);
-        String connection = this.headers.get("connection");
-        boolean keepAlive = "HTTP/1.1".equals(protocolVersion) && (connection == null || !connection.matches("(?i).*close.*"));
+        String connection = getHeader("connection");
+        boolean keepAlive = "HTTP/1.1".equals(getProtocolVersion()) && (connection == null || !connection.matches("(?i).*close.*"));
 
-        String acceptEncoding = this.headers.get("accept-encoding");
-        this.cookies.unloadQueue(response);
+        String acceptEncoding = getHeader("accept-encoding");
+        getCookies().unloadQueue(response);
         response.setRequestMethod(this.method);
         if (acceptEncoding == null || !acceptEncoding.contains("gzip")) {
             response.setUseGzip(false);
@@ -695,12 +693,9 @@ public class Request {
      * "name=Jack%20Daniels&pass=Single%20Malt" ) and adds them to given Map.
      */
     private void decodeParams(String params, Map<String, List<String>> p) throws UnsupportedEncodingException {
-        if (params == null) {
-            queryParameterString = "";
+        if (params == null)
             return;
-        }
 
-        queryParameterString = params;
         StringTokenizer st = new StringTokenizer(params, "&");
         while (st.hasMoreTokens()) {
             String e = st.nextToken();
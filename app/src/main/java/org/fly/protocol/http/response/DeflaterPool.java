@@ -0,0 +1,77 @@
+package org.fly.protocol.http.response;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+/**
+ * gzip 用的 Deflater 和缓冲区的池
+ *
+ * Deflater 持有 native 内存, 加载规则时每条预压缩的回复都新建再等 GC 回收的话, native 内存会堆积.
+ * 用完的放回池中复用, 池满时立即 end 释放
+ */
+public class DeflaterPool {
+
+    // 缓冲区的大小, 也是读取 Body 的块大小
+    public static final int BUFFER_SIZE = 16 * 1024;
+
+    private static final int MAX_IDLE = 8;
+
+    private static final ConcurrentLinkedQueue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger idleDeflaters = new AtomicInteger();
+    private static final ConcurrentLinkedQueue<byte[]> buffers = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger idleBuffers = new AtomicInteger();
+
+    /**
+     * 不带 zlib 头的 Deflater, gzip 的头和尾由调用者写
+     *
+     * @param level 0 ~ 9, -1 为默认 (6)
+     */
+    public static Deflater obtainDeflater(int level)
+    {
+        Deflater deflater = deflaters.poll();
+        if (deflater == null)
+            return new Deflater(level, true);
+
+        idleDeflaters.decrementAndGet();
+        deflater.setLevel(level);
+        return deflater;
+    }
+
+    public static void release(Deflater deflater)
+    {
+        if (idleDeflaters.incrementAndGet() > MAX_IDLE)
+        {
+            idleDeflaters.decrementAndGet();
+            deflater.end();
+            return;
+        }
+
+        deflater.reset();
+        deflaters.offer(deflater);
+    }
+
+    public static byte[] obtainBuffer()
+    {
+        byte[] buffer = buffers.poll();
+        if (buffer == null)
+            return new byte[BUFFER_SIZE];
+
+        idleBuffers.decrementAndGet();
+        return buffer;
+    }
+
+    public static void release(byte[] buffer)
+    {
+        if (buffer.length != BUFFER_SIZE)
+            return;
+
+        if (idleBuffers.incrementAndGet() > MAX_IDLE)
+        {
+            idleBuffers.decrementAndGet();
+            return;
+        }
+
+        buffers.offer(buffer);
+    }
+}
@@ -0,0 +1,115 @@
+package org.fly.protocol.http.response;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * 使用 {@link DeflaterPool} 的 gzip 输出流, finish 之后 Deflater 和缓冲区放回池中
+ *
+ * 和 GZIPOutputStream 的输出格式相同 (RFC 1952), 只是不自己创建 Deflater
+ */
+public class GzipOutputStream extends FilterOutputStream {
+
+    private static final byte[] HEADER = {
+            0x1f, (byte) 0x8b, // magic
+            Deflater.DEFLATED, // CM
+            0, // FLG
+            0, 0, 0, 0, // MTIME
+            0, // XFL
+            (byte) 0xff // OS: unknown
+    };
+
+    private final CRC32 crc = new CRC32();
+    private Deflater deflater;
+    private byte[] buffer;
+
+    /**
+     * @param level 0 ~ 9, -1 为默认 (6)
+     */
+    public GzipOutputStream(OutputStream out, int level) throws IOException {
+        super(out);
+
+        // 先写头, 写失败时还没有从池中取出
+        out.write(HEADER);
+        deflater = DeflaterPool.obtainDeflater(level);
+        buffer = DeflaterPool.obtainBuffer();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (deflater == null)
+            throw new IOException("Stream finished");
+        if (len == 0)
+            return;
+
+        crc.update(b, off, len);
+        deflater.setInput(b, off, len);
+        while (!deflater.needsInput())
+            deflate();
+    }
+
+    private void deflate() throws IOException {
+        int n = deflater.deflate(buffer, 0, buffer.length);
+        if (n > 0)
+            out.write(buffer, 0, n);
+    }
+
+    /**
+     * 写完压缩数据和 gzip 尾, 不关闭 out
+     */
+    public void finish() throws IOException {
+        if (deflater == null)
+            return;
+
+        try {
+            deflater.finish();
+            while (!deflater.finished())
+                deflate();
+
+            long size = deflater.getBytesRead();
+            writeInt(buffer, 0, (int) crc.getValue());
+            writeInt(buffer, 4, (int) size);
+            out.write(buffer, 0, 8);
+        } finally {
+            recycle();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            recycle();
+            out.close();
+        }
+    }
+
+    /**
+     * 放回 Deflater 和缓冲区, 出错没有 finish 时也要调用; 之后不能再写入
+     */
+    void recycle() {
+        if (deflater == null)
+            return;
+
+        DeflaterPool.release(deflater);
+        DeflaterPool.release(buffer);
+        deflater = null;
+        buffer = null;
+    }
+
+    private static void writeInt(byte[] b, int off, int value) {
+        b[off] = (byte) value;
+        b[off + 1] = (byte) (value >> 8);
+        b[off + 2] = (byte) (value >> 16);
+        b[off + 3] = (byte) (value >> 24);
+    }
+}
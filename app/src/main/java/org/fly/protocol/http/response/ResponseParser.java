@@ -0,0 +1,212 @@
+package org.fly.protocol.http.response;
+
+import org.fly.protocol.exception.ResponseException;
+import org.fly.protocol.http.request.ChunkedDecoder;
+import org.fly.protocol.http.request.HeaderParser;
+import org.fly.protocol.http.request.Method;
+import org.fly.protocol.http.request.Request;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 服务端回复的流式解析, 用于观察 (状态码, 头, 长度), 不修改也不保存数据
+ *
+ * 只有头会拷贝到 HeaderParser 中, Body 只按 Content-Length 或 chunked 的格式跳过.
+ * 一个回复结束后 source 停在下一个回复的开始, start 之后继续写入
+ */
+public class ResponseParser {
+
+    private static final int HEADER = 0;
+    private static final int BODY = 1;
+    // 没有长度, 直到连接关闭
+    private static final int UNTIL_CLOSE = 2;
+    // 101 或者 CONNECT 成功之后不再是 HTTP
+    private static final int TUNNEL = 3;
+    private static final int DONE = 4;
+
+    private final HeaderParser header = new HeaderParser(Request.BUFF_SIZE);
+    private ChunkedDecoder decoder = null;
+    private boolean chunked = false;
+
+    private int state = HEADER;
+    private Method method = null;
+    private int status = 0;
+    // 还没收到的 Body, chunked 时不用
+    private long remaining = 0;
+    private long received = 0;
+
+    /**
+     * 开始解析下一个回复
+     *
+     * @param method 对应的请求方法, HEAD 和 CONNECT 的回复格式不同; 不知道时为 null
+     */
+    public void start(Method method)
+    {
+        this.method = method;
+        header.reset();
+        if (decoder != null)
+            decoder.reset();
+        state = HEADER;
+        chunked = false;
+        status = 0;
+        remaining = received = 0;
+    }
+
+    /**
+     * @return 当前回复是否已经结束
+     */
+    public boolean write(ByteBuffer source) throws ResponseException
+    {
+        if (state == HEADER)
+        {
+            header.update(source);
+
+            if (header.isFull())
+                throw new ResponseException(Status.INTERNAL_ERROR, "Response header too large");
+
+            if (!header.isComplete())
+                return false;
+
+            parseHeader();
+        }
+
+        switch (state)
+        {
+            case BODY:
+                if (chunked)
+                {
+                    int n;
+                    try {
+                        while ((n = decoder.next(source)) > 0)
+                            skip(source, n);
+                    } catch (IOException e) {
+                        throw new ResponseException(Status.INTERNAL_ERROR, e.getMessage(), e);
+                    }
+
+                    if (decoder.isComplete())
+                        state = DONE;
+                } else {
+                    int n = (int) Math.min(remaining, source.remaining());
+                    skip(source, n);
+                    remaining -= n;
+
+                    if (remaining == 0)
+                        state = DONE;
+                }
+                break;
+            case UNTIL_CLOSE:
+            case TUNNEL:
+                skip(source, source.remaining());
+                break;
+        }
+
+        return state == DONE;
+    }
+
+    private void skip(ByteBuffer source, int n)
+    {
+        source.position(source.position() + n);
+        received += n;
+    }
+
+    /**
+     * 连接关闭, 没有长度的回复在这时结束
+     *
+     * @return 当前回复是否完整
+     */
+    public boolean end()
+    {
+        if (state == UNTIL_CLOSE)
+            state = DONE;
+
+        return state == DONE;
+    }
+
+    private void parseHeader() throws ResponseException
+    {
+        byte[] buffer = header.getBuffer();
+        int offset = header.getStartOffset(0);
+
+        if (header.getStartLength(0) < 5 || buffer[offset] != 'H' || buffer[offset + 1] != 'T' || buffer[offset + 2] != 'T'
+                || buffer[offset + 3] != 'P' || buffer[offset + 4] != '/')
+            throw new ResponseException(Status.INTERNAL_ERROR, "Not a HTTP response: " + header.getStart(0));
+
+        offset = header.getStartOffset(1);
+        if (header.getStartLength(1) != 3)
+            throw new ResponseException(Status.INTERNAL_ERROR, "Invalid status: " + header.getStart(1));
+
+        status = 0;
+        for (int i = 0; i < 3; i++)
+        {
+            int digit = buffer[offset + i] - '0';
+            if (digit < 0 || digit > 9)
+                throw new ResponseException(Status.INTERNAL_ERROR, "Invalid status: " + header.getStart(1));
+            status = status * 10 + digit;
+        }
+
+        // RFC 7230 3.3.3
+        if (status == 101 || (Method.CONNECT.equals(method) && status / 100 == 2))
+        {
+            state = TUNNEL;
+        }
+        else if (status / 100 == 1 || status == 204 || status == 304 || Method.HEAD.equals(method))
+        {
+            state = DONE;
+        }
+        else if (header.isChunked())
+        {
+            if (decoder == null)
+                decoder = new ChunkedDecoder();
+            chunked = true;
+            state = BODY;
+        }
+        else if (header.indexOf("transfer-encoding") >= 0)
+        {
+            state = UNTIL_CLOSE;
+        }
+        else
+        {
+            try {
+                remaining = header.getLong("content-length", -1);
+            } catch (NumberFormatException e) {
+                throw new ResponseException(Status.INTERNAL_ERROR, "Invalid Content-Length", e);
+            }
+
+            state = remaining < 0 ? UNTIL_CLOSE : remaining == 0 ? DONE : BODY;
+        }
+    }
+
+    public boolean isHeaderComplete()
+    {
+        return header.isComplete();
+    }
+
+    /**
+     * 1xx (除了 101) 之后还有真正的回复
+     */
+    public boolean isInterim()
+    {
+        return header.isComplete() && status / 100 == 1 && status != 101;
+    }
+
+    public boolean isTunnel()
+    {
+        return state == TUNNEL;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public HeaderParser getHeader() {
+        return header;
+    }
+
+    /**
+     * Body 的字节数, chunked 时是解码后的长度
+     */
+    public long getBodyReceived() {
+        return received;
+    }
+}
@@ -0,0 +1,408 @@
+package org.fly.protocol.http.response;
+
+import android.util.Log;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.fly.android.localvpn.structs.HttpUtils;
+import org.fly.protocol.http.request.Request;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 预先编译好的 HTTP 回复
+ *
+ * 规则加载时把内容切成固定片段和 ${input.*} 插槽, 固定片段提前编码成 UTF-8.
+ * 没有插槽时连同状态行和头整个编码好, 每次回复只包装同一个数组;
+ * 有插槽时先算出总长度, 再按顺序复制片段和请求参数的值.
+ *
+ * 内容以 "HTTP/1.1 " 开始并且有空行时是完整的回复, 原样发送; 否则作为 200 text/html 的 Body.
+ * 内容是 "file:路径" 时 Body 是映射到内存的文件, 只有头在堆上, 适合较大的回复;
+ * 文件被修改或截断后, 下一次回复前重新映射.
+ * 预压缩时, 没有插槽的 Body 加载时压缩一次, 客户端接受 gzip 时直接发送压缩好的数组
+ */
+public class ResponseTemplate {
+
+    private static final String TAG = ResponseTemplate.class.getSimpleName();
+
+    private static final String FILE_PREFIX = "file:";
+
+    private static final Pattern INPUT_PATTERN = Pattern.compile("\\$\\{input\\.([a-z0-9_\\.]*)\\}", Pattern.CASE_INSENSITIVE);
+
+    // 长度之前的状态行和头, 长度之后是头的结束
+    private static final byte[] HEAD = ("HTTP/1.1 200 OK\r\n"
+            + "Content-Type: text/html; charset=UTF-8\r\n"
+            + "Connection: keep-alive\r\n"
+            + "Content-Length: ").getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HEAD_GZIP = ("HTTP/1.1 200 OK\r\n"
+            + "Content-Type: text/html; charset=UTF-8\r\n"
+            + "Connection: keep-alive\r\n"
+            + "Content-Encoding: gzip\r\n"
+            + "Vary: Accept-Encoding\r\n"
+            + "Content-Length: ").getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HEAD_END = "\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    // 是否需要加上状态行和头
+    private final boolean wrapped;
+    // 比插槽多一个
+    private final byte[][] literals;
+    private final int literalLength;
+    // 插槽的参数名, 以及参数不存在时保留的原文
+    private final String[] inputs;
+    private final byte[][] placeholders;
+    // 没有插槽时的完整回复
+    private final byte[] compiled;
+    // 文件回复的文件, 以及当前的映射
+    private final File file;
+    private volatile Mapping mapping;
+    // 预压缩的完整回复, 压缩后没有变小时为 null
+    private byte[] gzipped = null;
+
+    private ResponseTemplate(boolean wrapped, byte[][] literals, String[] inputs, byte[][] placeholders)
+    {
+        this.wrapped = wrapped;
+        this.literals = literals;
+        this.inputs = inputs;
+        this.placeholders = placeholders;
+        this.file = null;
+        this.mapping = null;
+
+        int length = 0;
+        for (byte[] literal: literals
+             ) {
+            length += literal.length;
+        }
+        literalLength = length;
+
+        if (inputs.length == 0)
+        {
+            ByteBuffer buffer = ByteBuffer.allocate(size(literalLength));
+            write(buffer, literalLength);
+            buffer.put(literals[0]);
+            compiled = buffer.array();
+        } else {
+            compiled = null;
+        }
+    }
+
+    private ResponseTemplate(File file, Mapping mapping)
+    {
+        this.wrapped = false;
+        this.literals = new byte[][] {mapping.head};
+        this.literalLength = mapping.head.length;
+        this.inputs = new String[0];
+        this.placeholders = new byte[0][];
+        this.compiled = null;
+        this.file = file;
+        this.mapping = mapping;
+    }
+
+    /**
+     * @param directory "file:" 中相对路径的根目录
+     * @param precompress 是否预先压缩没有插槽的 Body
+     * @param level 预先压缩的级别, 0 ~ 9, -1 为默认
+     * @return 内容为空时返回 null
+     * @throws IOException 文件不存在或者不能映射
+     */
+    public static ResponseTemplate compile(String content, File directory, boolean precompress, int level) throws IOException
+    {
+        if (content == null || content.isEmpty())
+            return null;
+
+        if (content.startsWith(FILE_PREFIX))
+        {
+            String path = content.substring(FILE_PREFIX.length());
+            // file:///sdcard/a.apk
+            if (path.startsWith("//"))
+                path = path.substring(2);
+
+            File file = new File(path);
+            if (!file.isAbsolute() && directory != null)
+                file = new File(directory, path);
+
+            return new ResponseTemplate(file, map(file));
+        }
+
+        List<byte[]> literals = new ArrayList<>();
+        List<String> inputs = new ArrayList<>();
+        List<byte[]> placeholders = new ArrayList<>();
+
+        Matcher matcher = INPUT_PATTERN.matcher(content);
+        int last = 0;
+        while (matcher.find())
+        {
+            literals.add(content.substring(last, matcher.start()).getBytes(StandardCharsets.UTF_8));
+            inputs.add(matcher.group(1));
+            placeholders.add(matcher.group().getBytes(StandardCharsets.UTF_8));
+            last = matcher.end();
+        }
+        literals.add(content.substring(last).getBytes(StandardCharsets.UTF_8));
+
+        boolean raw = content.startsWith("HTTP/1.1 ") && (content.contains("\r\n\r\n") || content.contains("\n\n"));
+
+        ResponseTemplate template = new ResponseTemplate(!raw, literals.toArray(new byte[0][]), inputs.toArray(new String[0]), placeholders.toArray(new byte[0][]));
+
+        if (precompress && !raw && inputs.isEmpty())
+            template.precompress(level);
+
+        return template;
+    }
+
+    private void precompress(int level) throws IOException
+    {
+        byte[] body = literals[0];
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(body.length / 2 + 64);
+        GzipOutputStream gzipOutputStream = new GzipOutputStream(outputStream, level);
+        try {
+            gzipOutputStream.write(body, 0, body.length);
+            gzipOutputStream.finish();
+        } finally {
+            gzipOutputStream.recycle();
+        }
+
+        byte[] compressed = outputStream.toByteArray();
+        if (compressed.length >= body.length)
+            return;
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEAD_GZIP.length + digits(compressed.length) + HEAD_END.length + compressed.length);
+        buffer.put(HEAD_GZIP);
+        putDecimal(buffer, compressed.length);
+        buffer.put(HEAD_END);
+        buffer.put(compressed);
+
+        gzipped = buffer.array();
+    }
+
+    /**
+     * Accept-Encoding 中有 gzip 或 *, 并且 q 不为 0
+     */
+    private static boolean acceptsGzip(Request request)
+    {
+        String acceptEncoding = request.getHeader("accept-encoding");
+        if (acceptEncoding == null)
+            return false;
+
+        for (String coding: acceptEncoding.split(",")
+             ) {
+            String[] params = coding.split(";");
+            String name = params[0].trim();
+            if (!name.equalsIgnoreCase("gzip") && !name.equals("*"))
+                continue;
+
+            for (int i = 1; i < params.length; i++)
+            {
+                String param = params[i].trim();
+                if (param.startsWith("q=") && param.substring(2).matches("0(\\.0*)?"))
+                    return false;
+            }
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Body 映射到内存, 发送时直接从映射的区域分段复制到包中
+     */
+    private static Mapping map(File file) throws IOException
+    {
+        // 先取 stamp, 映射期间文件又变了时下一次回复会再映射一次
+        long stamp = stamp(file);
+
+        try (FileInputStream in = new FileInputStream(file)) {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+                throw new IOException("File too large: " + file);
+
+            ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+            byte[] head = ("HTTP/1.1 200 OK\r\n"
+                    + "Content-Type: " + HttpUtils.getMimeTypeForFile(file.getName()) + "\r\n"
+                    + "Connection: keep-alive\r\n"
+                    + "Content-Length: " + size + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+
+            return new Mapping(head, mapped, stamp);
+        }
+    }
+
+    /**
+     * 和 Grid.Blocklist 相同: 路径, 长度和修改时间
+     */
+    private static long stamp(File file)
+    {
+        byte[] digest = DigestUtils.sha1(file.getAbsolutePath() + "|" + file.length() + "|" + file.lastModified());
+        return ByteBuffer.wrap(digest).getLong();
+    }
+
+    /**
+     * 文件回复的文件是否有变化, 没变化时可以跳过重新加载规则
+     */
+    public boolean isStale()
+    {
+        return file != null && stamp(file) != mapping.stamp;
+    }
+
+    /**
+     * 文件变化后重新映射: 旧映射的 Content-Length 已经不对, 文件被截断时读到末尾之外还会出错.
+     * 文件不能读取时回复空的 Body
+     */
+    private Mapping current()
+    {
+        Mapping current = mapping;
+        long stamp = stamp(file);
+        if (stamp == current.stamp)
+            return current;
+
+        synchronized (this) {
+            current = mapping;
+            if (stamp(file) == current.stamp)
+                return current;
+
+            try {
+                current = map(file);
+            } catch (IOException e)
+            {
+                Log.w(TAG, "Remap response file failed: " + file, e);
+                current = new Mapping(("HTTP/1.1 200 OK\r\n"
+                        + "Connection: keep-alive\r\n"
+                        + "Content-Length: 0\r\n\r\n").getBytes(StandardCharsets.US_ASCII), ByteBuffer.allocate(0), stamp);
+            }
+
+            mapping = current;
+            return current;
+        }
+    }
+
+    /**
+     * 是否用到了请求参数, 用到时需要保存请求的 Body
+     */
+    public boolean hasInputs()
+    {
+        return inputs.length > 0;
+    }
+
+    /**
+     * 生成回复, 加到 results 中. 没有插槽时共用同一个数组, 文件回复共用映射的区域, 都只能读取
+     *
+     * @param results 已经写入的缓冲区, position 在末尾
+     */
+    public void render(Request request, List<ByteBuffer> results)
+    {
+        if (gzipped != null && request != null && acceptsGzip(request))
+        {
+            results.add(written(ByteBuffer.wrap(gzipped)));
+            return;
+        }
+
+        if (file != null)
+        {
+            Mapping current = current();
+            results.add(written(ByteBuffer.wrap(current.head)));
+
+            if (current.body.capacity() > 0)
+                results.add(written(current.body.duplicate()));
+            return;
+        }
+
+        if (compiled != null)
+        {
+            results.add(written(ByteBuffer.wrap(compiled)));
+            return;
+        }
+
+        // 参数不存在时保留原文
+        byte[][] values = new byte[inputs.length][];
+        int length = literalLength;
+        for (int i = 0; i < inputs.length; i++)
+        {
+            String value = request.input(inputs[i]);
+            values[i] = value == null ? placeholders[i] : value.getBytes(StandardCharsets.UTF_8);
+            length += values[i].length;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size(length));
+        write(buffer, length);
+
+        for (int i = 0; i < inputs.length; i++)
+        {
+            buffer.put(literals[i]);
+            buffer.put(values[i]);
+        }
+        buffer.put(literals[inputs.length]);
+
+        results.add(buffer);
+    }
+
+    private static ByteBuffer written(ByteBuffer buffer)
+    {
+        buffer.position(buffer.limit());
+        return buffer;
+    }
+
+    private int size(int bodyLength)
+    {
+        return wrapped ? HEAD.length + digits(bodyLength) + HEAD_END.length + bodyLength : bodyLength;
+    }
+
+    /**
+     * 写入状态行和头
+     */
+    private void write(ByteBuffer buffer, int bodyLength)
+    {
+        if (!wrapped)
+            return;
+
+        buffer.put(HEAD);
+        putDecimal(buffer, bodyLength);
+        buffer.put(HEAD_END);
+    }
+
+    private static void putDecimal(ByteBuffer buffer, int value)
+    {
+        int start = buffer.position();
+        int end = start + digits(value);
+        for (int p = end - 1; p >= start; p--)
+        {
+            buffer.put(p, (byte) ('0' + value % 10));
+            value /= 10;
+        }
+        buffer.position(end);
+    }
+
+    private static int digits(int value)
+    {
+        int n = 1;
+        while (value >= 10)
+        {
+            value /= 10;
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * 文件的一次映射: 头 (包括长度), Body 和映射时文件的 stamp
+     */
+    private static class Mapping {
+        final byte[] head;
+        final ByteBuffer body;
+        final long stamp;
+
+        Mapping(byte[] head, ByteBuffer body, long stamp) {
+            this.head = head;
+            this.body = body;
+            this.stamp = stamp;
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package org.fly.android.localvpn;
+
+import org.fly.android.localvpn.firewall.Resolver;
+import org.fly.protocol.dns.content.DnsWriter;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * DnsForwarder 多上游竞速的检查, 结果不符合预期时抛出异常
+ *
+ * 在本机起三个 UDP 上游, 分别延迟 20, 100, 250 ms 回复, DnsForwarder 不传 VpnService (不 protect).
+ * 直接运行 main, 需要能在 JVM 上运行的 android.os.SystemClock 和 android.util.Log, 或者在设备上运行.
+ *
+ * 检查:
+ * 1. parallel: 总是最快的上游赢, 三个上游的延迟 EWMA 接近各自的延迟
+ * 2. staggered: 按 EWMA 排序后最快的先发, 在 stagger 之内回复时其它上游不会收到查询
+ * 3. staggered: 最快的回 SERVFAIL 时立即发给下一个, 不等 stagger
+ * 4. staggered: 最快的不回复时, 过了 stagger 才发给下一个
+ */
+public class DnsForwarderRace {
+
+    private static final long[] DELAYS = {20, 100, 250};
+    private static final long STAGGER = 60;
+    // 本机的调度误差
+    private static final long SLACK = 40;
+    private static final int ROUNDS = 20;
+
+    public static void main(String[] args) throws Exception
+    {
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
+        Server[] servers = new Server[DELAYS.length];
+        List<String> upstreams = new ArrayList<>();
+        for (int i = 0; i < DELAYS.length; i++)
+        {
+            servers[i] = new Server(DELAYS[i], scheduler);
+            upstreams.add("127.0.0.1:" + servers[i].address.getPort());
+        }
+
+        Selector selector = Selector.open();
+        DnsForwarder forwarder = new DnsForwarder(selector, null);
+
+        try {
+            Resolver parallel = resolver("parallel", upstreams);
+            for (int i = 0; i < ROUNDS; i++)
+            {
+                Result result = resolve(forwarder, selector, parallel, "p" + i + ".example.com");
+                check(result.server.equals(servers[0].address), "parallel winner " + result.server);
+                check(result.millis < DELAYS[0] + SLACK, "parallel took " + result.millis + "ms");
+            }
+            // 输掉的回复也要读完, 才计入 EWMA
+            drain(forwarder, selector, parallel, DELAYS[2] + SLACK);
+            check(forwarder.getPendingSize() == 0, "parallel pending " + forwarder.getPendingSize());
+
+            for (int i = 0; i < servers.length; i++)
+            {
+                double latency = forwarder.getLatency(servers[i].address);
+                System.out.println(String.format(Locale.US, "upstream %dms: ewma %.1fms, %d queries", DELAYS[i], latency, servers[i].received));
+                check(latency >= DELAYS[i] - 1 && latency < DELAYS[i] + SLACK, "ewma " + latency + " for " + DELAYS[i] + "ms");
+                check(servers[i].received == ROUNDS, "parallel queries " + servers[i].received);
+            }
+
+            Resolver staggered = resolver("staggered", upstreams);
+            // 故意把最快的放到最后, 排序要按 EWMA
+            Resolver reversed = resolver("staggered", Arrays.asList(upstreams.get(2), upstreams.get(1), upstreams.get(0)));
+
+            reset(servers);
+            Result fast = resolve(forwarder, selector, reversed, "s.example.com");
+            drain(forwarder, selector, staggered, STAGGER * 3);
+            check(fast.server.equals(servers[0].address), "staggered winner " + fast.server);
+            check(fast.millis < DELAYS[0] + SLACK, "staggered took " + fast.millis + "ms");
+            check(servers[1].received == 0 && servers[2].received == 0, "staggered sent to slower upstreams");
+            System.out.println("staggered, fast reply: " + fast.millis + "ms, slower upstreams idle");
+
+            reset(servers);
+            servers[0].rcode = 2;
+            Result failed = resolve(forwarder, selector, staggered, "f.example.com");
+            check(failed.server.equals(servers[1].address), "SERVFAIL winner " + failed.server);
+            check(failed.millis < DELAYS[0] + DELAYS[1] + SLACK, "SERVFAIL took " + failed.millis + "ms");
+            System.out.println("staggered, fastest SERVFAIL: " + failed.millis + "ms via " + DELAYS[1] + "ms upstream");
+
+            reset(servers);
+            servers[0].silent = true;
+            Result silent = resolve(forwarder, selector, staggered, "t.example.com");
+            check(silent.server.equals(servers[1].address), "silent winner " + silent.server);
+            check(silent.millis >= STAGGER + DELAYS[1] && silent.millis < STAGGER + DELAYS[1] + SLACK, "silent took " + silent.millis + "ms");
+            System.out.println("staggered, fastest silent: " + silent.millis + "ms, next sent after " + STAGGER + "ms");
+        } finally {
+            forwarder.close();
+            selector.close();
+            for (Server server: servers
+                 ) {
+                server.close();
+            }
+            scheduler.shutdownNow();
+        }
+
+        System.out.println("OK");
+    }
+
+    private static Resolver resolver(String mode, List<String> upstreams)
+    {
+        Resolver resolver = new Resolver();
+        resolver.mode = mode;
+        resolver.upstreams = new ArrayList<>(upstreams);
+        resolver.stagger = STAGGER;
+        resolver.init();
+        return resolver;
+    }
+
+    private static void reset(Server[] servers)
+    {
+        for (Server server: servers
+             ) {
+            server.received = 0;
+            server.rcode = 0;
+            server.silent = false;
+        }
+    }
+
+    private static void check(boolean ok, String message)
+    {
+        if (!ok)
+            throw new AssertionError(message);
+    }
+
+    /**
+     * 发一个 A 查询, 等到 DnsForwarder 选出应答的回复
+     */
+    private static Result resolve(DnsForwarder forwarder, Selector selector, Resolver resolver, String name) throws IOException
+    {
+        ByteBuffer query = ByteBuffer.allocate(512);
+        new DnsWriter().reset(query).header(0x1234, 0x0100, 1, 0, 0, 0).question(name, 1, 1);
+        query.flip();
+
+        long start = System.nanoTime();
+        forwarder.send(null, query, null, resolver);
+
+        long deadline = start + TimeUnit.SECONDS.toNanos(2);
+        while (System.nanoTime() < deadline)
+        {
+            DnsForwarder.Pending item = step(forwarder, selector, resolver);
+            if (item != null)
+                return new Result(item.getServer(), (System.nanoTime() - start) / 1000000);
+        }
+
+        throw new AssertionError("No reply for " + name);
+    }
+
+    private static void drain(DnsForwarder forwarder, Selector selector, Resolver resolver, long millis) throws IOException
+    {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        while (System.nanoTime() < deadline)
+            step(forwarder, selector, resolver);
+    }
+
+    /**
+     * UDPInput 的一轮 select
+     */
+    private static DnsForwarder.Pending step(DnsForwarder forwarder, Selector selector, Resolver resolver) throws IOException
+    {
+        selector.select(forwarder.getTimeout(10));
+        forwarder.tick(resolver);
+
+        DnsForwarder.Pending answer = forwarder.poll();
+
+        Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+        while (it.hasNext())
+        {
+            SelectionKey key = it.next();
+            it.remove();
+
+            DnsForwarder.Pending item = forwarder.receive((DatagramChannel) key.channel(), ByteBuffer.allocate(512));
+            if (item != null && answer == null)
+                answer = item;
+        }
+
+        return answer;
+    }
+
+    private static class Result {
+        final InetSocketAddress server;
+        final long millis;
+
+        Result(InetSocketAddress server, long millis) {
+            this.server = server;
+            this.millis = millis;
+        }
+    }
+
+    /**
+     * 延迟固定时间回复的上游, 回复只是把查询改成 NOERROR (或 rcode) 的应答
+     */
+    private static class Server extends Thread {
+        final DatagramChannel channel;
+        final InetSocketAddress address;
+        final long delay;
+        final ScheduledExecutorService scheduler;
+
+        volatile int received = 0;
+        volatile int rcode = 0;
+        volatile boolean silent = false;
+
+        Server(long delay, ScheduledExecutorService scheduler) throws IOException
+        {
+            this.delay = delay;
+            this.scheduler = scheduler;
+
+            channel = DatagramChannel.open();
+            channel.bind(new InetSocketAddress("127.0.0.1", 0));
+            address = (InetSocketAddress) channel.getLocalAddress();
+
+            setDaemon(true);
+            start();
+        }
+
+        @Override
+        public void run()
+        {
+            try {
+                while (true)
+                {
+                    ByteBuffer buffer = ByteBuffer.allocate(512);
+                    final InetSocketAddress from = (InetSocketAddress) channel.receive(buffer);
+                    buffer.flip();
+
+                    received++;
+                    if (silent)
+                        continue;
+
+                    final ByteBuffer reply = buffer;
+                    reply.put(2, (byte) (reply.get(2) | 0x80));
+                    reply.put(3, (byte) ((reply.get(3) & 0xf0) | 0x80 | rcode));
+
+                    scheduler.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                channel.send(reply, from);
+                            } catch (IOException e)
+                            {
+                                // Closed
+                            }
+                        }
+                    }, delay, TimeUnit.MILLISECONDS);
+                }
+            } catch (IOException e)
+            {
+                // Closed
+            }
+        }
+
+        void close() throws IOException
+        {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package org.fly.android.localvpn.structs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * Automaton 和逐个 Pattern.find() 的对比, 包括会让回溯爆炸的 URL
+ *
+ * 直接运行 main, 参数是恶意 URL 中路径的段数, 默认 16 20 24 28.
+ * 规则和 Grid 中常见的写法相同: 200 条 ".*?hostN\.example\.com/api/v[0-9]+/.*?" 加上一条按目录深度匹配的规则.
+ * JDK 9 以后 Pattern 会记住 (a|aa)+ 这种循环走过的位置, 不再指数回溯, 但计数重复 {12} 里套着 .* 时没有这个优化,
+ * 不匹配时要试遍所有切分, 大约是 n^12
+ */
+public class AutomatonBenchmark {
+
+    private static final int HOSTS = 200;
+    private static final int AUTOMATON_TIMES = 20000;
+
+    public static void main(String[] args)
+    {
+        List<String> rules = new ArrayList<>();
+        for (int i = 0; i < HOSTS; i++)
+            rules.add(".*?host" + i + "\\.example\\.com/api/v[0-9]+/.*?");
+        rules.add("^https?://(.*/){12}admin\\.php");
+
+        Pattern[] patterns = new Pattern[rules.size()];
+        Automaton.Builder builder = new Automaton.Builder(true);
+        for (int i = 0; i < rules.size(); i++)
+        {
+            patterns[i] = Pattern.compile(rules.get(i), Pattern.CASE_INSENSITIVE);
+            if (!builder.add(rules.get(i), i))
+                throw new IllegalStateException("Automaton does not support rule " + i + ": " + rules.get(i));
+        }
+        Automaton automaton = builder.build();
+
+        run(patterns, automaton, "http://host150.example.com/api/v2/users?id=1", 2000);
+
+        // 回溯爆炸时一次就要几毫秒, 不需要重复
+        String[] lengths = args.length == 0 ? new String[] {"16", "20", "24", "28"} : args;
+        for (String length: lengths
+             ) {
+            run(patterns, automaton, hostile(Integer.parseInt(length)), 1);
+        }
+    }
+
+    /**
+     * http://h/a/a/.../a/x, 有 length 段目录但没有 admin.php, 深度规则要试遍 12 个 .* 的所有切分才能确定不匹配
+     */
+    private static String hostile(int length)
+    {
+        StringBuilder builder = new StringBuilder("http://h/");
+        for (int i = 0; i < length; i++)
+            builder.append("a/");
+        return builder.append('x').toString();
+    }
+
+    private static void run(Pattern[] patterns, Automaton automaton, String input, int times)
+    {
+        // 先跑一遍热身, 第二遍计时
+        long patternNanos = 0, automatonNanos = 0;
+        int expected = Automaton.NO_MATCH, actual = Automaton.NO_MATCH;
+
+        for (int round = 0; round < 2; round++)
+        {
+            long start = System.nanoTime();
+            for (int k = 0; k < times; k++)
+                expected = patternLoop(patterns, input);
+            patternNanos = (System.nanoTime() - start) / times;
+
+            start = System.nanoTime();
+            for (int k = 0; k < AUTOMATON_TIMES; k++)
+                actual = automaton.match(input);
+            automatonNanos = (System.nanoTime() - start) / AUTOMATON_TIMES;
+        }
+
+        if (expected != actual)
+            throw new IllegalStateException("Mismatch on " + input + ": pattern " + expected + ", automaton " + actual);
+
+        System.out.println(String.format(Locale.US, "%-66s len=%3d  pattern loop %,12d ns  automaton %,8d ns  rule=%d",
+                input, input.length(), patternNanos, automatonNanos, actual));
+    }
+
+    /**
+     * 原来 Grid 的做法: 按顺序逐个 find, 第一个匹配的规则
+     */
+    private static int patternLoop(Pattern[] patterns, String input)
+    {
+        for (int i = 0; i < patterns.length; i++)
+        {
+            if (patterns[i].matcher(input).find())
+                return i;
+        }
+        return Automaton.NO_MATCH;
+    }
+}
@@ -0,0 +1,119 @@
+package org.fly.android.localvpn.structs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+/**
+ * Automaton 和 Pattern.find() 的差分测试, 结果不一致时抛出异常
+ *
+ * 直接运行 main, 参数是随机输入的个数, 默认 20000.
+ * 每条规则单独比较, 再把所有规则合并成一个 Automaton 比较最小的 id
+ */
+public class AutomatonDifferential {
+
+    private static final String[] RULES = {
+            "abc",
+            "^abc",
+            "abc$",
+            "^$",
+            "a$",
+            "^a\\r?$",
+            "[\\x41-\\x5A]+",
+            "^[\\x41-\\x5A]$",
+            "[\\u0061-\\u0063]x",
+            "[^\\x41-\\x5A]",
+            "\\x41",
+            "[a-c\\-z]+$",
+            "[\\d_]{2,3}",
+            "\\w+\\.example\\.com/",
+            "(a|aa)+b",
+            "(?:ab)*c{1,2}$",
+            ".*?api/v[0-9]+/.*?",
+            "x.y",
+            "\\s$",
+            "[^a-z]$",
+    };
+
+    private static final String ALPHABET = "aAbBcCxXyYzZ09_-./\\: \t\r\n\u0085 ";
+
+    public static void main(String[] args)
+    {
+        int count = args.length == 0 ? 20000 : Integer.parseInt(args[0]);
+
+        List<String> inputs = new ArrayList<>();
+        String[] fixed = {"", "\n", "\r\n", "\r", "abc", "abc\n", "abc\r\n", "abc\n\n", "abc\r", "a\r\n", "a\n\r",
+                "ABC ", "Z", "z", "[", "@", "http://host1.example.com/api/v2/x", "aab", "ab ab cc\n"};
+        for (String input: fixed
+             ) {
+            inputs.add(input);
+        }
+
+        Random random = new Random(42);
+        for (int i = 0; i < count; i++)
+        {
+            StringBuilder builder = new StringBuilder();
+            int length = random.nextInt(12);
+            for (int j = 0; j < length; j++)
+                builder.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+            inputs.add(builder.toString());
+        }
+
+        int checked = 0;
+        for (boolean ignoreCase: new boolean[] {false, true}
+             ) {
+            int flags = ignoreCase ? Pattern.CASE_INSENSITIVE : 0;
+
+            Pattern[] patterns = new Pattern[RULES.length];
+            Automaton.Builder all = new Automaton.Builder(ignoreCase);
+            Automaton[] singles = new Automaton[RULES.length];
+
+            for (int i = 0; i < RULES.length; i++)
+            {
+                patterns[i] = Pattern.compile(RULES[i], flags);
+
+                Automaton.Builder builder = new Automaton.Builder(ignoreCase);
+                if (!builder.add(RULES[i], i) || !all.add(RULES[i], i))
+                    throw new IllegalStateException("Automaton does not support rule " + i + ": " + RULES[i]);
+                singles[i] = builder.build();
+            }
+            Automaton automaton = all.build();
+
+            for (String input: inputs
+                 ) {
+                int expected = Automaton.NO_MATCH;
+                for (int i = 0; i < RULES.length; i++)
+                {
+                    boolean found = patterns[i].matcher(input).find();
+                    if (found && expected == Automaton.NO_MATCH)
+                        expected = i;
+
+                    if (found != (singles[i].match(input) == i))
+                        throw new AssertionError("Rule " + RULES[i] + " ignoreCase=" + ignoreCase + " input=" + escape(input) + ": Pattern " + found);
+                    checked++;
+                }
+
+                int actual = automaton.match(input);
+                if (actual != expected)
+                    throw new AssertionError("Combined ignoreCase=" + ignoreCase + " input=" + escape(input) + ": Pattern " + expected + ", Automaton " + actual);
+            }
+        }
+
+        System.out.println("OK, " + checked + " comparisons");
+    }
+
+    private static String escape(String input)
+    {
+        StringBuilder builder = new StringBuilder("\"");
+        for (int i = 0; i < input.length(); i++)
+        {
+            char c = input.charAt(i);
+            if (c < 0x20 || c > 0x7e)
+                builder.append(String.format("\\u%04x", (int) c));
+            else
+                builder.append(c);
+        }
+        return builder.append('"').toString();
+    }
+}